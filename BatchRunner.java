@@ -0,0 +1,255 @@
+/*
+ * BatchRunner.java
+ *
+ * Processes the alignments of a FASTA list concurrently
+ *
+ * Every alignment is independent, so each one is built and written by a
+ * worker of a fixed-size thread pool.  The threads of each tree's distance
+ * matrix are divided between the workers so the machine is not
+ * oversubscribed.  Output files are written per alignment exactly as in
+ * the sequential mode, and the console output of each alignment is
+ * buffered and printed in list order, so the results do not depend on
+ * which worker finishes first.  A per-file timing summary is printed to
+ * standard error at the end.  If a ConsensusBuilder is set, each worker
+ * adds its tree to it once written, so no tree outlives its worker.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BatchRunner {
+    private static final int PRINTING_DEPTH = 100;
+
+    private String outputDir;     // Directory where the trees and statistics are written
+    private int numWorkers;       // Number of alignments processed at the same time
+    private DistanceWriter.Format distanceFormat;   // Format of the distances files
+    private TreeCache cache;      // Cache of built trees shared by the workers (null for none)
+    private BuildOptions.MatrixStorage matrixStorage;   // Where the distance matrices are stored
+    private boolean metricsReport;  // Write a .metrics.json report per alignment
+    private BuildOptions.Clustering clustering;     // How the species are clustered
+    private ConsensusBuilder consensus;   // Counts the splits of every tree (null for none)
+
+    // CONSTRUCTOR
+
+    // BatchRunner
+    // Pre-conditions:
+    //    - outputDir is an existing directory
+    //    - numWorkers is a positive number
+    // Post-conditions:
+    //    - A runner writing to outputDir with numWorkers workers has been created
+    public BatchRunner(String outputDir, int numWorkers) {
+        this(outputDir, numWorkers, DistanceWriter.Format.EVDISTANCE);
+        return;
+    }
+
+    // BatchRunner
+    // Pre-conditions:
+    //    - outputDir is an existing directory
+    //    - numWorkers is a positive number
+    // Post-conditions:
+    //    - A runner writing the distances in distanceFormat has been created
+    public BatchRunner(String outputDir, int numWorkers, DistanceWriter.Format distanceFormat) {
+        this(outputDir, numWorkers, distanceFormat, null);
+        return;
+    }
+
+    // BatchRunner
+    // Pre-conditions:
+    //    - outputDir is an existing directory
+    //    - numWorkers is a positive number
+    //    - cache is a TreeCache, or null
+    // Post-conditions:
+    //    - A runner writing the distances in distanceFormat and looking the
+    //      trees up in cache has been created
+    public BatchRunner(String outputDir, int numWorkers, DistanceWriter.Format distanceFormat, TreeCache cache) {
+        this(outputDir, numWorkers, distanceFormat, cache, BuildOptions.MatrixStorage.HEAP);
+        return;
+    }
+
+    // BatchRunner
+    // Pre-conditions:
+    //    - outputDir is an existing directory
+    //    - numWorkers is a positive number
+    //    - cache is a TreeCache, or null
+    // Post-conditions:
+    //    - A runner as above, storing the distance matrices as matrixStorage,
+    //      has been created
+    public BatchRunner(String outputDir, int numWorkers, DistanceWriter.Format distanceFormat, TreeCache cache,
+                       BuildOptions.MatrixStorage matrixStorage) {
+        this.outputDir = outputDir;
+        this.numWorkers = Math.max(1, numWorkers);
+        this.distanceFormat = distanceFormat;
+        this.cache = cache;
+        this.matrixStorage = matrixStorage;
+        this.clustering = BuildOptions.Clustering.UPGMA;
+        return;
+    }
+
+    // setMetricsReport
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - If metricsReport is true, the BuildMetrics of every alignment are
+    //      also written as a .metrics.json file (see Program3.writeResults)
+    public void setMetricsReport(boolean metricsReport) {
+        this.metricsReport = metricsReport;
+        return;
+    }
+
+    // setClustering
+    // Pre-conditions:
+    //    - clustering is not null
+    // Post-conditions:
+    //    - The species of every alignment are clustered as given
+    public void setClustering(BuildOptions.Clustering clustering) {
+        this.clustering = clustering;
+        return;
+    }
+
+    // setConsensus
+    // Pre-conditions:
+    //    - consensus is a ConsensusBuilder, or null
+    // Post-conditions:
+    //    - The tree of every alignment is added to consensus by its worker
+    public void setConsensus(ConsensusBuilder consensus) {
+        this.consensus = consensus;
+        return;
+    }
+
+    // run
+    // Pre-conditions:
+    //    - fastaFilenames contains the paths of valid FASTA input files
+    // Post-conditions:
+    //    - The .tree and .distances files of every alignment have been written
+    //    - The console output of every alignment has been printed in list order
+    //    - A timing summary has been printed to standard error
+    public void run(List<String> fastaFilenames) {
+        long startTime = System.nanoTime();
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / this.numWorkers);
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.numWorkers);
+        ArrayList<Future<FileResult>> futures = new ArrayList<Future<FileResult>>();
+        for(String fastaFilename : fastaFilenames)
+            futures.add(pool.submit(new FileTask(fastaFilename, this.outputDir, parallelism, this.distanceFormat, this.cache,
+                                                 this.matrixStorage, this.clustering, this.metricsReport,
+                                                 this.consensus)));
+
+        ArrayList<FileResult> results = new ArrayList<FileResult>();
+        try {
+            for(int i=0; i < futures.size(); i++) {
+                FileResult result = futures.get(i).get();
+                System.err.println("Loading tree " + (i + 1) + " done");
+                System.out.print(result.console);
+                results.add(result);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Error: Interrupted while processing " + fastaFilenames.size() + " alignments");
+            System.exit(1);
+        } catch(ExecutionException e) {
+            System.err.println("Error: Unable to process alignment " + e.getCause());
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+
+        printSummary(results, System.nanoTime() - startTime);
+        return;
+    }
+
+    // printSummary
+    // Pre-conditions:
+    //    - results holds the result of every processed alignment
+    //    - wallTime is the elapsed time of the whole batch in nanoseconds
+    // Post-conditions:
+    //    - A per-file timing table and the overall throughput have been printed
+    //      to standard error
+    private void printSummary(List<FileResult> results, long wallTime) {
+        long totalTime = 0;
+        System.err.println();
+        System.err.format("Batch summary (%d files, %d workers)\n", results.size(), this.numWorkers);
+        System.err.format("%-40s %8s %10s %10s %10s\n", "file", "species", "build ms", "write ms", "total ms");
+        for(FileResult result : results) {
+            totalTime += result.buildTime + result.writeTime;
+            System.err.format("%-40s %8d %10.1f %10.1f %10.1f\n", result.fileName, result.numSpecies,
+                              result.buildTime / 1e6, result.writeTime / 1e6, (result.buildTime + result.writeTime) / 1e6);
+        }
+        System.err.format("Wall-clock %.1f ms, sum of file times %.1f ms, speedup %.2f\n",
+                          wallTime / 1e6, totalTime / 1e6, wallTime > 0 ? (double) totalTime / wallTime : 0.0);
+        return;
+    }
+
+    // FileResult
+    // Timings and buffered console output of one alignment
+    private static class FileResult {
+        String fileName;
+        int numSpecies;
+        long buildTime;        // Nanoseconds spent loading and building the tree
+        long writeTime;        // Nanoseconds spent writing the outputs
+        String console;        // What the sequential mode prints to standard output
+    }
+
+    // FileTask
+    // Builds the tree of one alignment and writes its outputs
+    private static class FileTask implements Callable<FileResult> {
+        private String fastaFilename;
+        private String outputDir;
+        private int parallelism;
+        private DistanceWriter.Format distanceFormat;
+        private TreeCache cache;
+        private BuildOptions.MatrixStorage matrixStorage;
+        private BuildOptions.Clustering clustering;
+        private boolean metricsReport;
+        private ConsensusBuilder consensus;
+
+        FileTask(String fastaFilename, String outputDir, int parallelism, DistanceWriter.Format distanceFormat,
+                 TreeCache cache, BuildOptions.MatrixStorage matrixStorage, BuildOptions.Clustering clustering,
+                 boolean metricsReport, ConsensusBuilder consensus) {
+            this.fastaFilename = fastaFilename;
+            this.outputDir = outputDir;
+            this.parallelism = parallelism;
+            this.distanceFormat = distanceFormat;
+            this.cache = cache;
+            this.matrixStorage = matrixStorage;
+            this.clustering = clustering;
+            this.metricsReport = metricsReport;
+            this.consensus = consensus;
+        }
+
+        public FileResult call() {
+            FileResult result = new FileResult();
+            result.fileName = new java.io.File(this.fastaFilename).getName();
+
+            BuildOptions options = new BuildOptions();
+            options.setParallelism(this.parallelism);
+            options.setCache(this.cache);
+            options.setMatrixStorage(this.matrixStorage);
+            options.setClustering(this.clustering);
+            long startTime = System.nanoTime();
+            PhyloTree tree = new PhyloTree(this.fastaFilename, PRINTING_DEPTH, options);
+            long builtTime = System.nanoTime();
+
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            PrintStream consoleOut = new PrintStream(console);
+            Program3.writeResults(tree, this.fastaFilename, this.outputDir, consoleOut, this.distanceFormat,
+                                  this.metricsReport);
+            consoleOut.flush();
+            if(this.consensus != null)
+                this.consensus.add(tree);
+
+            result.numSpecies = tree.countAllSpecies();
+            result.buildTime = builtTime - startTime;
+            result.writeTime = System.nanoTime() - builtTime;
+            result.console = console.toString();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Bipartitions.java
+ *
+ * The bipartitions (splits) of a tree's internal edges, for comparing the
+ * topologies of trees built from different alignments of the same species
+ *
+ * Removing an edge splits the species into the leaves below it and the
+ * others.  Species are numbered by a taxon index shared by all the trees
+ * compared, and a split is stored as a bitset over those numbers, on the
+ * side that does not hold the lowest numbered species, so a split has one
+ * form whatever the root.  Splits with fewer than two species on a side
+ * are in every tree and are left out.
+ *
+ * Every split also has a 64-bit Zobrist hash, the XOR of a fixed random
+ * key per taxon, computed from the children in O(1) per node (the hash of
+ * the other side is the XOR with the hash of all species).  The trees are
+ * compared by their sorted hashes only, so
+ *
+ *    - the Robinson-Foulds distance of two trees (the number of splits in
+ *      only one of them) is a merge of two sorted arrays, O(n)
+ *    - the all-vs-all matrix of many trees keeps n longs per tree instead
+ *      of the n^2/64 words of the bitsets
+ *
+ * Two different splits have the same hash with probability about 2^-64
+ * per pair, which is ignored.  Species missing from the taxon index are
+ * left out, so trees with different species are compared on the species
+ * they share.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class Bipartitions {
+    private int numTaxa;          // Species of the taxon index in the tree
+    private long[][] splits;      // Bitset of each split (null if not kept)
+    private long[] splitHashes;   // Hash of each split, in the order of splits
+    private long[] hashes;        // Hash of each split, sorted
+
+    // CONSTRUCTOR
+
+    // Bipartitions
+    // Pre-conditions:
+    //    - tree is a strictly binary tree
+    //    - taxa numbers the species compared from 0 (see sharedTaxa)
+    // Post-conditions:
+    //    - The splits of tree over the species of taxa have been found, and
+    //      kept as bitsets if withSplits is true (otherwise only the hashes)
+    // Notes:
+    //    - If a species name is on several leaves, only the first leaf in
+    //      pre-order counts
+    public Bipartitions(CompactTree tree, Map<String,Integer> taxa, boolean withSplits) {
+        int numNodes = tree.getNumNodes();
+        int numWords = (taxa.size() + 63) / 64;
+        int[] taxon = new int[numNodes];            // Taxon of each leaf, -1 if not compared
+        int[] count = new int[numNodes];            // Compared species below each node
+        long[] hash = new long[numNodes];
+        boolean[] hasFirst = new boolean[numNodes];    // The lowest numbered species is below the node
+        long[][] bits = withSplits ? new long[numNodes][] : null;
+
+        // Taxa of the leaves, and the lowest one in the tree
+        Species[] species = tree.getSpecies();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        int firstTaxon = Integer.MAX_VALUE;
+        for(int v=0; v < numNodes; v++) {
+            taxon[v] = -1;
+            if(!tree.isLeaf(v))
+                continue;
+            Integer number = taxa.get(species[tree.getSpeciesIndex(v)].getName());
+            if(number != null && seen.add(number)) {
+                taxon[v] = number;
+                firstTaxon = Math.min(firstTaxon, number);
+            }
+        }
+        this.numTaxa = seen.size();
+
+        // Children have higher ids than their parent
+        for(int v = numNodes - 1; v >= 0; v--) {
+            if(tree.isLeaf(v)) {
+                if(taxon[v] >= 0) {
+                    count[v] = 1;
+                    hash[v] = key(taxon[v]);
+                    hasFirst[v] = (taxon[v] == firstTaxon);
+                }
+                if(withSplits) {
+                    bits[v] = new long[numWords];
+                    if(taxon[v] >= 0)
+                        bits[v][taxon[v] >>> 6] |= 1L << taxon[v];
+                }
+                continue;
+            }
+            int left = tree.getLeftChild(v);
+            int right = tree.getRightChild(v);
+            count[v] = count[left] + count[right];
+            hash[v] = hash[left] ^ hash[right];
+            hasFirst[v] = hasFirst[left] || hasFirst[right];
+            if(withSplits) {
+                bits[v] = bits[left].clone();
+                for(int w=0; w < numWords; w++)
+                    bits[v][w] |= bits[right][w];
+            }
+        }
+
+        // Every edge is above a non-root node; keep each non-trivial split once
+        ArrayList<long[]> splitList = new ArrayList<long[]>();
+        long[] hashList = new long[numNodes];
+        int numSplits = 0;
+        HashSet<Long> found = new HashSet<Long>();
+        for(int v=1; v < numNodes; v++) {
+            if(count[v] < 2 || count[v] > this.numTaxa - 2)
+                continue;
+            long splitHash = hasFirst[v] ? hash[v] ^ hash[0] : hash[v];
+            if(!found.add(splitHash))
+                continue;
+            hashList[numSplits++] = splitHash;
+            if(withSplits) {
+                long[] split = bits[v].clone();
+                if(hasFirst[v]) {
+                    for(int w=0; w < numWords; w++)
+                        split[w] ^= bits[0][w];
+                }
+                splitList.add(split);
+            }
+        }
+        this.splitHashes = Arrays.copyOf(hashList, numSplits);
+        this.hashes = this.splitHashes.clone();
+        Arrays.sort(this.hashes);
+        this.splits = withSplits ? splitList.toArray(new long[numSplits][]) : null;
+        return;
+    }
+
+    // Bipartitions
+    // Pre-conditions:
+    //    - tree has been built
+    //    - taxa numbers the species compared from 0 (see sharedTaxa)
+    // Post-conditions:
+    //    - The splits of tree over the species of taxa have been found and
+    //      kept as bitsets
+    public Bipartitions(PhyloTree tree, Map<String,Integer> taxa) {
+        this(tree.toCompactTree(), taxa, true);
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumTaxa
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of species of the taxon index found in the tree
+    public int getNumTaxa() {
+        return this.numTaxa;
+    }
+
+    // size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of different non-trivial splits
+    public int size() {
+        return this.hashes.length;
+    }
+
+    // getSplit
+    // Pre-conditions:
+    //    - The splits were kept, 0 <= i < size()
+    // Post-conditions:
+    //    - Returns the taxon numbers on the side of split i that does not
+    //      hold the lowest numbered species, the splits being in the
+    //      pre-order of their edges
+    public BitSet getSplit(int i) {
+        return BitSet.valueOf(this.splits[i]);
+    }
+
+    // getSplitHash
+    // Pre-conditions:
+    //    - 0 <= i < size()
+    // Post-conditions:
+    //    - Returns the hash of split i
+    public long getSplitHash(int i) {
+        return this.splitHashes[i];
+    }
+
+    // getHashes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the hashes of the splits, sorted
+    public long[] getHashes() {
+        return this.hashes.clone();
+    }
+
+    // STATIC
+
+    // distance
+    // Pre-conditions:
+    //    - a and b are the splits of two trees over the same species
+    // Post-conditions:
+    //    - Returns their Robinson-Foulds distance: the number of splits in
+    //      one of the trees but not in the other
+    public static int distance(Bipartitions a, Bipartitions b) {
+        return distance(a.hashes, b.hashes);
+    }
+
+    // distanceMatrix
+    // Pre-conditions:
+    //    - trees have been built
+    //    - parallelism is a positive number
+    // Post-conditions:
+    //    - Returns the matrix of the Robinson-Foulds distances between all
+    //      pairs of trees, over the species they all share
+    // Notes:
+    //    - The splits of the trees, then the rows of the matrix, are
+    //      computed on a ForkJoinPool; only the hashes are kept
+    public static int[][] distanceMatrix(List<PhyloTree> trees, int parallelism) {
+        int numTrees = trees.size();
+        Map<String,Integer> taxa = sharedTaxa(trees);
+        long[][] treeHashes = new long[numTrees][];
+        int[][] matrix = new int[numTrees][numTrees];
+        if(parallelism == 1 || numTrees < 2) {
+            hashTrees(trees, taxa, treeHashes, 0, numTrees);
+            fillRows(treeHashes, matrix, 0, numTrees);
+            return matrix;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new TreeTask(trees, taxa, treeHashes, matrix, 0, numTrees, false));
+            pool.invoke(new TreeTask(trees, taxa, treeHashes, matrix, 0, numTrees, true));
+        } finally {
+            pool.shutdown();
+        }
+        return matrix;
+    }
+
+    // sharedTaxa
+    // Pre-conditions:
+    //    - trees have been built
+    // Post-conditions:
+    //    - Returns the names of the species found in every tree, numbered
+    //      from 0 in the order of the first tree's getAllSpecies()
+    public static Map<String,Integer> sharedTaxa(List<PhyloTree> trees) {
+        HashMap<String,Integer> taxa = new HashMap<String,Integer>();
+        if(trees.isEmpty())
+            return taxa;
+        HashMap<String,Integer> numTrees = new HashMap<String,Integer>();
+        for(PhyloTree tree : trees) {
+            HashSet<String> names = new HashSet<String>();
+            for(Species species : tree.getCladeIndex().getAllSpecies()) {
+                if(names.add(species.getName()))
+                    numTrees.merge(species.getName(), 1, Integer::sum);
+            }
+        }
+        for(Species species : trees.get(0).getCladeIndex().getAllSpecies()) {
+            String name = species.getName();
+            if(numTrees.get(name) == trees.size() && !taxa.containsKey(name))
+                taxa.put(name, taxa.size());
+        }
+        return taxa;
+    }
+
+    // hashTrees
+    // Pre-conditions:
+    //    - firstTree <= lastTree <= trees.size()
+    // Post-conditions:
+    //    - treeHashes holds the sorted split hashes of the trees firstTree .. lastTree-1
+    private static void hashTrees(List<PhyloTree> trees, Map<String,Integer> taxa, long[][] treeHashes,
+                                  int firstTree, int lastTree) {
+        for(int i = firstTree; i < lastTree; i++)
+            treeHashes[i] = new Bipartitions(trees.get(i).toCompactTree(), taxa, false).hashes;
+        return;
+    }
+
+    // fillRows
+    // Pre-conditions:
+    //    - treeHashes holds the split hashes of every tree
+    // Post-conditions:
+    //    - The distances of the trees firstRow .. lastRow-1 to every later
+    //      tree, and their mirror entries, have been stored
+    private static void fillRows(long[][] treeHashes, int[][] matrix, int firstRow, int lastRow) {
+        for(int i = firstRow; i < lastRow; i++) {
+            for(int j = i + 1; j < treeHashes.length; j++) {
+                int distance = distance(treeHashes[i], treeHashes[j]);
+                matrix[i][j] = distance;
+                matrix[j][i] = distance;
+            }
+        }
+        return;
+    }
+
+    // distance
+    // Pre-conditions:
+    //    - hashes1 and hashes2 are sorted and hold no repeated values
+    // Post-conditions:
+    //    - Returns the number of values in only one of the arrays
+    private static int distance(long[] hashes1, long[] hashes2) {
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while(i < hashes1.length && j < hashes2.length) {
+            if(hashes1[i] < hashes2[j])
+                i++;
+            else if(hashes1[i] > hashes2[j])
+                j++;
+            else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        return hashes1.length + hashes2.length - 2 * common;
+    }
+
+    // key
+    // Pre-conditions:
+    //    - taxon >= 0
+    // Post-conditions:
+    //    - Returns the Zobrist key of the taxon, the same in every tree
+    // Notes:
+    //    - The SplitMix64 finalizer of the taxon number, so no table is needed
+    private static long key(int taxon) {
+        long z = (taxon + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // TreeTask
+    // Fork/join task over a range of trees, split in halves until a single
+    // tree is left: finds the split hashes of the trees, or fills their
+    // rows of the matrix (the columns of the later trees, and the mirror)
+    private static class TreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<PhyloTree> trees;
+        private Map<String,Integer> taxa;
+        private long[][] treeHashes;
+        private int[][] matrix;
+        private int firstTree;
+        private int lastTree;
+        private boolean fillRows;
+
+        TreeTask(List<PhyloTree> trees, Map<String,Integer> taxa, long[][] treeHashes, int[][] matrix,
+                 int firstTree, int lastTree, boolean fillRows) {
+            this.trees = trees;
+            this.taxa = taxa;
+            this.treeHashes = treeHashes;
+            this.matrix = matrix;
+            this.firstTree = firstTree;
+            this.lastTree = lastTree;
+            this.fillRows = fillRows;
+        }
+
+        protected void compute() {
+            if(this.lastTree - this.firstTree <= 1) {
+                if(this.fillRows)
+                    fillRows(this.treeHashes, this.matrix, this.firstTree, this.lastTree);
+                else
+                    hashTrees(this.trees, this.taxa, this.treeHashes, this.firstTree, this.lastTree);
+                return;
+            }
+            int middle = (this.firstTree + this.lastTree) >>> 1;
+            invokeAll(new TreeTask(this.trees, this.taxa, this.treeHashes, this.matrix,
+                                   this.firstTree, middle, this.fillRows),
+                      new TreeTask(this.trees, this.taxa, this.treeHashes, this.matrix,
+                                   middle, this.lastTree, this.fillRows));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * BuildMetrics.java
+ *
+ * Phase timers and counters of the pipeline of one alignment
+ *
+ * PhyloTree times how long it spends parsing, computing the distance matrix,
+ * clustering and using the cache, and Program3.writeResults adds the time
+ * spent writing the console view, the Newick tree and the distances.  For
+ * each phase the elapsed time and the bytes allocated by the calling thread
+ * (as reported by the JVM's thread allocation counters, so the worker
+ * threads of the distance matrix are not included) are accumulated, and
+ * counters record the size of the input and of the outputs.
+ *
+ * Every phase is also recorded as a JDK Flight Recorder event
+ * (PhyloTree.Phase), and PhyloTree.Alignment sums up an alignment, so a
+ * recording started with -XX:StartFlightRecording shows them next to the
+ * JVM's own events.  Events cost next to nothing when no recording is
+ * running.  toJson gives a machine-readable report of the alignment.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class BuildMetrics {
+    // Steps of the pipeline that are timed
+    public enum Phase {
+        PARSE("parse"), CACHE("cache"), DISTANCES("distances"), CLUSTER("cluster"),
+        CONSOLE("console"), NEWICK("newick"), EXPORT("export");
+
+        private String key;       // Name of the phase in the report
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    // Quantities that are counted
+    public enum Counter {
+        SEQUENCES("sequences"), COLUMNS("columns"), PATTERNS("patterns"), MERGES("merges"),
+        REPLAYED_MERGES("replayedMerges"), CACHE_HITS("cacheHits"),
+        TREE_BYTES("treeBytes"), DISTANCE_BYTES("distanceBytes");
+
+        private String key;       // Name of the counter in the report
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threadBean = allocationCounters();
+
+    private String alignment;         // Name of the alignment
+    private long[] nanos;             // Time spent in each phase
+    private long[] allocatedBytes;    // Bytes allocated by the calling thread in each phase (-1 if unknown)
+    private long[] phaseStart;        // System.nanoTime() when the running phases began
+    private long[] allocationStart;   // Allocated bytes when the running phases began
+    private PhaseEvent[] events;      // Flight Recorder events of the running phases
+    private long[] counters;
+
+    // CONSTRUCTOR
+
+    // BuildMetrics
+    // Pre-conditions:
+    //    - alignment is the name of the alignment
+    // Post-conditions:
+    //    - Metrics with every phase and counter at zero have been created
+    public BuildMetrics(String alignment) {
+        int numPhases = Phase.values().length;
+        this.alignment = alignment;
+        this.nanos = new long[numPhases];
+        this.allocatedBytes = new long[numPhases];
+        this.phaseStart = new long[numPhases];
+        this.allocationStart = new long[numPhases];
+        this.events = new PhaseEvent[numPhases];
+        this.counters = new long[Counter.values().length];
+        if(threadBean == null)
+            java.util.Arrays.fill(this.allocatedBytes, -1);
+        return;
+    }
+
+    // ACCESSORS
+
+    // getAlignment
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the name of the alignment
+    public String getAlignment() {
+        return this.alignment;
+    }
+
+    // getNanos
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the nanoseconds spent in phase
+    public long getNanos(Phase phase) {
+        return this.nanos[phase.ordinal()];
+    }
+
+    // getAllocatedBytes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the bytes allocated by the calling thread in phase, -1 if
+    //      the JVM does not count them
+    public long getAllocatedBytes(Phase phase) {
+        return this.allocatedBytes[phase.ordinal()];
+    }
+
+    // get
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the value of counter
+    public long get(Counter counter) {
+        return this.counters[counter.ordinal()];
+    }
+
+    // getTotalNanos
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the nanoseconds spent in all phases
+    public long getTotalNanos() {
+        long total = 0;
+        for(long phaseNanos : this.nanos)
+            total += phaseNanos;
+        return total;
+    }
+
+    // toJson
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the report of the alignment as a JSON object:
+    //      {"alignment": name, "totalNanos": n,
+    //       "phases": {"parse": {"nanos": n, "allocatedBytes": n}, ...},
+    //       "counters": {"sequences": n, ...}}
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n  \"alignment\": ");
+        appendString(json, this.alignment);
+        json.append(",\n  \"totalNanos\": ").append(getTotalNanos());
+        json.append(",\n  \"phases\": {");
+        for(Phase phase : Phase.values()) {
+            json.append((phase.ordinal() == 0) ? "\n" : ",\n");
+            json.append("    \"").append(phase.getKey()).append("\": {\"nanos\": ").append(getNanos(phase));
+            json.append(", \"allocatedBytes\": ").append(getAllocatedBytes(phase)).append('}');
+        }
+        json.append("\n  },\n  \"counters\": {");
+        for(Counter counter : Counter.values()) {
+            json.append((counter.ordinal() == 0) ? "\n" : ",\n");
+            json.append("    \"").append(counter.getKey()).append("\": ").append(get(counter));
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    // MODIFIER
+
+    // begin
+    // Pre-conditions:
+    //    - phase is not running
+    // Post-conditions:
+    //    - phase is running on the calling thread
+    public void begin(Phase phase) {
+        int p = phase.ordinal();
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        this.events[p] = event;
+        this.allocationStart[p] = allocatedByThisThread();
+        this.phaseStart[p] = System.nanoTime();
+        return;
+    }
+
+    // end
+    // Pre-conditions:
+    //    - phase was begun by the calling thread
+    // Post-conditions:
+    //    - The time and allocations since begin(phase) have been added to phase
+    //    - A PhyloTree.Phase event has been committed if it is enabled
+    public void end(Phase phase) {
+        int p = phase.ordinal();
+        long elapsed = System.nanoTime() - this.phaseStart[p];
+        long allocated = allocatedByThisThread() - this.allocationStart[p];
+        this.nanos[p] += elapsed;
+        if(threadBean != null)
+            this.allocatedBytes[p] += allocated;
+
+        PhaseEvent event = this.events[p];
+        this.events[p] = null;
+        event.end();
+        if(event.shouldCommit()) {
+            event.alignment = this.alignment;
+            event.phase = phase.getKey();
+            event.allocatedBytes = (threadBean == null) ? -1 : allocated;
+            event.commit();
+        }
+        return;
+    }
+
+    // add
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - amount has been added to counter
+    public void add(Counter counter, long amount) {
+        this.counters[counter.ordinal()] += amount;
+        return;
+    }
+
+    // finish
+    // Pre-conditions:
+    //    - No phase is running
+    // Post-conditions:
+    //    - A PhyloTree.Alignment event summing up the alignment has been
+    //      committed if it is enabled
+    public void finish() {
+        AlignmentEvent event = new AlignmentEvent();
+        if(!event.isEnabled())
+            return;
+        event.alignment = this.alignment;
+        event.totalNanos = getTotalNanos();
+        event.sequences = get(Counter.SEQUENCES);
+        event.columns = get(Counter.COLUMNS);
+        event.patterns = get(Counter.PATTERNS);
+        event.merges = get(Counter.MERGES);
+        event.cacheHit = get(Counter.CACHE_HITS) > 0;
+        event.bytesWritten = get(Counter.TREE_BYTES) + get(Counter.DISTANCE_BYTES);
+        event.commit();
+        return;
+    }
+
+    // writeJson
+    // Pre-conditions:
+    //    - file is the path of the report
+    // Post-conditions:
+    //    - toJson() has been written to file in UTF-8
+    //    - Throws IOException if the file cannot be written
+    public void writeJson(File file) throws IOException {
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(toJson());
+        }
+        return;
+    }
+
+    // STATIC
+
+    // allocatedByThisThread
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the bytes allocated so far by the calling thread (0 if unknown)
+    private static long allocatedByThisThread() {
+        if(threadBean == null)
+            return 0;
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // allocationCounters
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the JVM's thread allocation counters, null if they are not supported
+    private static com.sun.management.ThreadMXBean allocationCounters() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean
+           && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+
+    // appendString
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - text has been appended to json as a quoted JSON string
+    private static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for(int i=0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if(c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+        return;
+    }
+
+    // PhaseEvent
+    // Flight Recorder event of one phase of one alignment
+    @Name("PhyloTree.Phase")
+    @Label("Tree Pipeline Phase")
+    @Category("PhyloTree")
+    static class PhaseEvent extends Event {
+        @Label("Alignment")
+        String alignment;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    // AlignmentEvent
+    // Flight Recorder event summing up one alignment
+    @Name("PhyloTree.Alignment")
+    @Label("Tree Pipeline Alignment")
+    @Category("PhyloTree")
+    static class AlignmentEvent extends Event {
+        @Label("Alignment")
+        String alignment;
+
+        @Label("Total Time (ns)")
+        long totalNanos;
+
+        @Label("Sequences")
+        long sequences;
+
+        @Label("Columns")
+        long columns;
+
+        @Label("Site Patterns")
+        long patterns;
+
+        @Label("Merges")
+        long merges;
+
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+}
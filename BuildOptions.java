@@ -0,0 +1,221 @@
+/*
+ * BuildOptions.java
+ *
+ * Settings that control how a PhyloTree is built.  The defaults give the
+ * same tree as the original single-threaded implementation.
+ *
+ */
+
+public class BuildOptions {
+    // Where the distance matrix is stored while the tree is built
+    public enum MatrixStorage {
+        HEAP,            // A double[] on the Java heap (DistanceMatrix)
+        MAPPED,          // float64 in a memory-mapped file (MappedDistanceMatrix)
+        MAPPED_FLOAT     // float32 in a memory-mapped file, half the size but rounded
+    }
+
+    // How the species are clustered into a tree
+    public enum Clustering {
+        UPGMA,           // Weighted average merges (UpgmaClusterer), an ultrametric tree
+        NEIGHBOR_JOINING // Neighbor joining (NeighborJoiner), no molecular clock assumed
+    }
+
+    private int parallelism;      // Number of threads used for the distance matrix
+    private boolean incremental;  // Keep the state needed by PhyloTree.addSpecies
+    private TreeCache cache;      // Where built trees are looked up and stored (null for none)
+    private MatrixStorage matrixStorage;    // Where the distance matrix is stored
+    private java.io.File matrixDirectory;   // Directory of mapped matrices (null for the temporary-file directory)
+    private Clustering clustering;           // How the species are clustered
+    private boolean compact;                 // Build UPGMA trees as a CompactTree, without PhyloTreeNodes
+
+    // CONSTRUCTOR
+
+    // BuildOptions
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Options with the default settings have been created
+    //    - parallelism defaults to the number of available processors
+    //    - incremental defaults to false
+    //    - No cache is used
+    //    - The distance matrix is stored on the heap
+    //    - The species are clustered with UPGMA
+    //    - compact defaults to false
+    public BuildOptions() {
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.matrixStorage = MatrixStorage.HEAP;
+        this.clustering = Clustering.UPGMA;
+        return;
+    }
+
+    // ACCESSORS
+
+    // getParallelism
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of threads used for the distance matrix
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    // isIncremental
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if trees keep the state needed to add species cheaply
+    public boolean isIncremental() {
+        return this.incremental;
+    }
+
+    // getCache
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the cache of built trees, null if none is used
+    public TreeCache getCache() {
+        return this.cache;
+    }
+
+    // getMatrixStorage
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns where the distance matrix is stored
+    public MatrixStorage getMatrixStorage() {
+        return this.matrixStorage;
+    }
+
+    // getMatrixDirectory
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the directory of memory-mapped matrices, null for the
+    //      default temporary-file directory
+    public java.io.File getMatrixDirectory() {
+        return this.matrixDirectory;
+    }
+
+    // getClustering
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns how the species are clustered
+    public Clustering getClustering() {
+        return this.clustering;
+    }
+
+    // isCompact
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if UPGMA trees are built as a CompactTree, whose
+    //      PhyloTreeNodes are only created when they are first needed
+    public boolean isCompact() {
+        return this.compact;
+    }
+
+    // getSettingsKey
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a description of every setting that changes the tree
+    //      built from a given file, used in the keys of TreeCache
+    // Notes:
+    //    - parallelism, incremental and compact do not change the tree, so they are
+    //      not part of the description, and neither does the storage of the
+    //      matrix unless it rounds the distances to float32
+    public String getSettingsKey() {
+        String key = "distance=p-distance;engine=" + ((this.clustering == Clustering.UPGMA) ? "upgma" : "nj");
+        if(this.matrixStorage == MatrixStorage.MAPPED_FLOAT)
+            key += ";precision=float32";
+        return key;
+    }
+
+    // MODIFIER
+
+    // setParallelism
+    // Pre-conditions:
+    //    - parallelism is a positive number
+    // Post-conditions:
+    //    - Sets the number of threads used for the distance matrix, 1 computes it
+    //      on the calling thread
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return;
+    }
+
+    // setIncremental
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - If incremental is true, trees keep their species distances and
+    //      merge history after they are built, so PhyloTree.addSpecies does not
+    //      have to recompute them (this doubles the memory of the distance matrix)
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return;
+    }
+
+    // setCache
+    // Pre-conditions:
+    //    - cache is a TreeCache, or null
+    // Post-conditions:
+    //    - Trees are looked up in cache before being built, and stored in it
+    //      after being built (null disables the cache)
+    public void setCache(TreeCache cache) {
+        this.cache = cache;
+        return;
+    }
+
+    // setMatrixStorage
+    // Pre-conditions:
+    //    - matrixStorage is not null
+    // Post-conditions:
+    //    - The distance matrix of the trees built is stored as given; the
+    //      mapped storages take no heap and allow more than 65,000 species
+    public void setMatrixStorage(MatrixStorage matrixStorage) {
+        this.matrixStorage = matrixStorage;
+        return;
+    }
+
+    // setMatrixDirectory
+    // Pre-conditions:
+    //    - matrixDirectory is an existing directory, or null
+    // Post-conditions:
+    //    - Memory-mapped matrices are created in matrixDirectory (null for
+    //      the default temporary-file directory)
+    public void setMatrixDirectory(java.io.File matrixDirectory) {
+        this.matrixDirectory = matrixDirectory;
+        return;
+    }
+
+    // setClustering
+    // Pre-conditions:
+    //    - clustering is not null
+    // Post-conditions:
+    //    - The species of the trees built are clustered as given
+    // Notes:
+    //    - Only UPGMA trees replay their merges in PhyloTree.addSpecies;
+    //      neighbor-joining trees are spared the distances only
+    public void setClustering(Clustering clustering) {
+        this.clustering = clustering;
+        return;
+    }
+
+    // setCompact
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - If compact is true, UPGMA trees are clustered without creating any
+    //      PhyloTreeNode and laid out as a CompactTree from their merges; the
+    //      PhyloTreeNode view is built the first time it is needed, so a tree
+    //      only used through its CompactTree (e.g. for its distance matrix)
+    //      never holds the node objects
+    // Notes:
+    //    - Neighbor-joining trees are always built as PhyloTreeNodes
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+        return;
+    }
+}
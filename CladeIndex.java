@@ -0,0 +1,157 @@
+/*
+ * CladeIndex.java
+ *
+ * Immutable pre-order interval index over the clades of a built tree
+ *
+ * The leaves are listed once, in pre-order (left subtree first), in a
+ * shared array.  The leaves under any node are then a contiguous range
+ * [start, end) of that array, so
+ *
+ *    - the species of a clade are a view of the shared array, created
+ *      without copying or traversing anything
+ *    - the size of a clade is end - start
+ *    - a node is an ancestor of another if its interval contains the
+ *      other's, and a species is in a clade if its position is in the
+ *      clade's interval; both are O(1)
+ *
+ * In a strictly binary tree every node has a different interval, so the
+ * tests are exact.  The index is built once, in O(n), from the tree's
+ * NodeNumbering, whose ids are already in pre-order.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class CladeIndex {
+    private Species[] leaves;                             // Species of the leaves in pre-order
+    private List<Species> leafList;                       // Read-only view of leaves
+    private NodeNumbering numbering;                      // Pre-order ids of the nodes
+    private int[] leafStart;                              // First leaf position of each node's clade
+    private int[] leafEnd;                                // Position after the last leaf of each node's clade
+    private HashMap<String,Integer> speciesIndex;         // Leaf position of each species name
+
+    // CONSTRUCTOR
+
+    // CladeIndex
+    // Pre-conditions:
+    //    - numbering numbers the nodes of a strictly binary tree
+    // Post-conditions:
+    //    - The clades of the tree have been indexed
+    // Notes:
+    //    - If several leaves share a species name, the first one in
+    //      pre-order is indexed
+    public CladeIndex(NodeNumbering numbering) {
+        int numNodes = numbering.size();
+        int numLeafs = (numNodes == 0) ? 0 : numbering.getNode(0).getNumLeafs();
+        this.leaves = new Species[numLeafs];
+        this.leafList = Collections.unmodifiableList(Arrays.asList(this.leaves));
+        this.numbering = numbering;
+        this.leafStart = new int[numNodes];
+        this.leafEnd = new int[numNodes];
+        this.speciesIndex = new HashMap<String,Integer>(2 * numLeafs);
+
+        // In pre-order, a node's clade starts at the number of leaves met
+        // before it and holds getNumLeafs() of them
+        int numSeen = 0;
+        for(int id=0; id < numNodes; id++) {
+            PhyloTreeNode node = numbering.getNode(id);
+            this.leafStart[id] = numSeen;
+            this.leafEnd[id] = numSeen + node.getNumLeafs();
+            if(node.isLeaf()) {
+                this.speciesIndex.putIfAbsent(node.getSpecies().getName(), numSeen);
+                this.leaves[numSeen++] = node.getSpecies();
+            }
+        }
+        return;
+    }
+
+    // ACCESSORS
+
+    // getAllSpecies
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a read-only view of the species of all leaves, in pre-order
+    public List<Species> getAllSpecies() {
+        return this.leafList;
+    }
+
+    // getDescendantSpecies
+    // Pre-conditions:
+    //    - node is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns a read-only view of the species in the subtree rooted at
+    //      node, in pre-order, backed by the shared leaf array
+    public List<Species> getDescendantSpecies(PhyloTreeNode node) {
+        int id = this.numbering.getId(node);
+        return this.leafList.subList(this.leafStart[id], this.leafEnd[id]);
+    }
+
+    // getCladeSize
+    // Pre-conditions:
+    //    - node is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns the number of species in the subtree rooted at node
+    public int getCladeSize(PhyloTreeNode node) {
+        int id = this.numbering.getId(node);
+        return this.leafEnd[id] - this.leafStart[id];
+    }
+
+    // getLeafStart
+    // Pre-conditions:
+    //    - node is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns the position in getAllSpecies() of the first species of
+    //      the clade of node
+    public int getLeafStart(PhyloTreeNode node) {
+        return this.leafStart[this.numbering.getId(node)];
+    }
+
+    // getLeafEnd
+    // Pre-conditions:
+    //    - node is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns the position after the last species of the clade of node
+    public int getLeafEnd(PhyloTreeNode node) {
+        return this.leafEnd[this.numbering.getId(node)];
+    }
+
+    // getLeafPosition
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the position in getAllSpecies() of the species named
+    //      name, -1 if there is none
+    public int getLeafPosition(String name) {
+        Integer position = this.speciesIndex.get(name);
+        return (position == null) ? -1 : position;
+    }
+
+    // isAncestor
+    // Pre-conditions:
+    //    - ancestor and node are nodes of the indexed tree
+    // Post-conditions:
+    //    - Returns true if ancestor is node or one of its ancestors
+    public boolean isAncestor(PhyloTreeNode ancestor, PhyloTreeNode node) {
+        int a = this.numbering.getId(ancestor);
+        int d = this.numbering.getId(node);
+        return this.leafStart[a] <= this.leafStart[d] && this.leafEnd[d] <= this.leafEnd[a];
+    }
+
+    // contains
+    // Pre-conditions:
+    //    - clade is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns true if the species named name is a leaf of the subtree
+    //      rooted at clade
+    public boolean contains(PhyloTreeNode clade, String name) {
+        Integer position = this.speciesIndex.get(name);
+        if(position == null)
+            return false;
+        int id = this.numbering.getId(clade);
+        return this.leafStart[id] <= position && position < this.leafEnd[id];
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * CompactTree.java
+ *
+ * Immutable struct-of-arrays layout of a strictly binary phylogenetic tree
+ *
+ * Nodes are int ids, numbered in pre-order (node, left subtree, right
+ * subtree), so the root is 0, a left child is its parent's id + 1, and
+ * every subtree is a contiguous range of ids.  A node costs 24 bytes in
+ * five parallel arrays instead of a PhyloTreeNode object, its label String
+ * and the references between them, and a traversal in id order reads the
+ * arrays sequentially:
+ *
+ *    parent[v]            id of the parent (-1 for the root)
+ *    left[v], right[v]    ids of the children (-1 for a leaf)
+ *    branchLength[v]      edge weight from the parent of v to v (0 for the root)
+ *    speciesIndex[v]      index of the leaf's species in getSpecies() (-1 for a non-terminal)
+ *
+ * The weights are kept as doubles so they are exactly those of the
+ * PhyloTreeNode tree, and per edge, so the two children of a node may have
+ * different weights (neighbor-joining trees).  Non-terminal labels
+ * (leftlabel+rightlabel) are not stored; getLabel builds them on request.
+ * A tree can be made from a
+ * PhyloTreeNode tree, or straight from the merges of UpgmaClusterer
+ * without creating any PhyloTreeNode.  getNode gives a PhyloTreeNode view
+ * of any subtree, built the first time it is asked for.
+ *
+ */
+
+import java.util.Arrays;
+
+public class CompactTree {
+    private int[] parent;
+    private int[] left;
+    private int[] right;
+    private double[] branchLength;
+    private int[] speciesIndex;
+    private Species[] species;            // Species of the leaves
+    private PhyloTreeNode[] nodes;        // PhyloTreeNode view, built on demand (null entries until then)
+
+    // CONSTRUCTOR
+
+    // CompactTree
+    // Pre-conditions:
+    //    - root is the root of a strictly binary tree (or null for an empty tree)
+    // Post-conditions:
+    //    - A compact copy of the tree has been created, whose species are
+    //      the species of its leaves in pre-order
+    public CompactTree(PhyloTreeNode root) {
+        int numNodes = (root == null) ? 0 : 2 * root.getNumLeafs() - 1;
+        allocate(numNodes);
+        this.species = new Species[(numNodes + 1) / 2];
+        if(root == null)
+            return;
+
+        // Pre-order traversal, the left child is popped first
+        PhyloTreeNode[] nodeStack = new PhyloTreeNode[64];
+        int[] parentStack = new int[64];
+        int stackSize = 0;
+        int numSpecies = 0;
+        nodeStack[stackSize] = root;
+        parentStack[stackSize++] = -1;
+        for(int v=0; stackSize > 0; v++) {
+            PhyloTreeNode node = nodeStack[--stackSize];
+            int parentId = parentStack[stackSize];
+            this.parent[v] = parentId;
+            if(parentId >= 0) {
+                if(this.left[parentId] < 0)
+                    this.left[parentId] = v;
+                else
+                    this.right[parentId] = v;
+                this.branchLength[v] = node.getBranchLength();
+            }
+            if(node.isLeaf()) {
+                this.speciesIndex[v] = numSpecies;
+                this.species[numSpecies++] = node.getSpecies();
+                continue;
+            }
+
+            if(stackSize + 2 > nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+                parentStack = Arrays.copyOf(parentStack, nodeStack.length);
+            }
+            nodeStack[stackSize] = node.getRightChild();
+            parentStack[stackSize++] = v;
+            nodeStack[stackSize] = node.getLeftChild();
+            parentStack[stackSize++] = v;
+        }
+        return;
+    }
+
+    // CompactTree
+    // Pre-conditions:
+    //    - numNodes is the number of nodes of the tree
+    // Post-conditions:
+    //    - A tree whose arrays are filled by the caller has been created
+    private CompactTree(int numNodes, Species[] species) {
+        allocate(numNodes);
+        this.species = species;
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumNodes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of nodes (0 for an empty tree)
+    public int getNumNodes() {
+        return this.parent.length;
+    }
+
+    // getNumLeafs
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of leaves
+    public int getNumLeafs() {
+        return (this.parent.length + 1) / 2;
+    }
+
+    // getSpecies
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the species of the leaves, indexed by getSpeciesIndex
+    public Species[] getSpecies() {
+        return this.species.clone();
+    }
+
+    // getParent
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the id of the parent of v, -1 for the root
+    public int getParent(int v) {
+        return this.parent[v];
+    }
+
+    // getLeftChild
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the id of the left child of v (always v + 1), -1 for a leaf
+    public int getLeftChild(int v) {
+        return this.left[v];
+    }
+
+    // getRightChild
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the id of the right child of v, -1 for a leaf
+    public int getRightChild(int v) {
+        return this.right[v];
+    }
+
+    // isLeaf
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns true if v is a leaf
+    public boolean isLeaf(int v) {
+        return this.left[v] < 0;
+    }
+
+    // getDistanceToChild
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the edge weight from v to its left child (0 for a leaf),
+    //      as PhyloTreeNode.getDistanceToChild
+    public double getDistanceToChild(int v) {
+        return isLeaf(v) ? 0.0 : this.branchLength[this.left[v]];
+    }
+
+    // getBranchLength
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the edge weight from the parent of v to v (0 for the root)
+    public double getBranchLength(int v) {
+        return this.branchLength[v];
+    }
+
+    // getSpeciesIndex
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the index of the species of leaf v, -1 for a non-terminal
+    public int getSpeciesIndex(int v) {
+        return this.speciesIndex[v];
+    }
+
+    // getSubtreeEnd
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the id after the last node of the subtree of v, so the
+    //      subtree is the ids v .. getSubtreeEnd(v)-1
+    public int getSubtreeEnd(int v) {
+        while(this.right[v] >= 0)
+            v = this.right[v];
+        return v + 1;
+    }
+
+    // getLabel
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the label PhyloTreeNode would have: the species name of
+    //      a leaf, leftlabel+"+"+rightlabel for a non-terminal
+    public String getLabel(int v) {
+        if(isLeaf(v))
+            return this.species[this.speciesIndex[v]].getName();
+        // The leaves of the subtree are in label order
+        StringBuilder label = new StringBuilder();
+        int end = getSubtreeEnd(v);
+        for(int u = v; u < end; u++) {
+            if(!isLeaf(u))
+                continue;
+            if(label.length() > 0)
+                label.append('+');
+            label.append(this.species[this.speciesIndex[u]].getName());
+        }
+        return label.toString();
+    }
+
+    // getNode
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the PhyloTreeNode of v, building the nodes of its subtree
+    //      the first time; the view of the whole tree is getNode(0)
+    // Notes:
+    //    - The nodes are built from the highest id down, so the children of
+    //      a node always exist before it
+    public synchronized PhyloTreeNode getNode(int v) {
+        if(this.nodes == null)
+            this.nodes = new PhyloTreeNode[this.parent.length];
+        if(this.nodes[v] != null)
+            return this.nodes[v];
+
+        for(int u = getSubtreeEnd(v) - 1; u >= v; u--) {
+            if(this.nodes[u] != null)
+                continue;
+            PhyloTreeNode node;
+            if(isLeaf(u)) {
+                node = new PhyloTreeNode(null, this.species[this.speciesIndex[u]]);
+            }
+            else {
+                PhyloTreeNode leftChild = this.nodes[this.left[u]];
+                PhyloTreeNode rightChild = this.nodes[this.right[u]];
+                node = new PhyloTreeNode(null, leftChild, rightChild,
+                                         this.branchLength[this.left[u]], this.branchLength[this.right[u]]);
+                leftChild.setParent(node);
+                rightChild.setParent(node);
+            }
+            this.nodes[u] = node;
+        }
+        // Attach the subtree if its parent was built before
+        int parentId = this.parent[v];
+        if(parentId >= 0 && this.nodes[parentId] != null)
+            this.nodes[v].setParent(this.nodes[parentId]);
+        return this.nodes[v];
+    }
+
+    // MODIFIER
+
+    // allocate
+    // Pre-conditions:
+    //    - numNodes is the number of nodes of the tree
+    // Post-conditions:
+    //    - The node arrays have been created, with no links
+    private void allocate(int numNodes) {
+        this.parent = new int[numNodes];
+        this.left = new int[numNodes];
+        this.right = new int[numNodes];
+        this.branchLength = new double[numNodes];
+        this.speciesIndex = new int[numNodes];
+        Arrays.fill(this.left, -1);
+        Arrays.fill(this.right, -1);
+        Arrays.fill(this.speciesIndex, -1);
+        return;
+    }
+
+    // STATIC
+
+    // fromMerges
+    // Pre-conditions:
+    //    - species are the leaves given to an UpgmaClusterer, in slot order
+    //    - history is its merge history after cluster() (species.length - 1 merges)
+    // Post-conditions:
+    //    - Returns the tree cluster() built, without creating any PhyloTreeNode
+    //    - If history does not cluster every species, an error is printed and the program exits
+    public static CompactTree fromMerges(Species[] species, UpgmaClusterer.MergeHistory history) {
+        int n = species.length;
+        if(n > 0 && history.size() != n - 1) {
+            System.err.println("Error: The merge history does not cluster all " + n + " species");
+            System.exit(6);
+        }
+
+        // Nodes in creation order: the leaves, then merge k as node n+k
+        int numNodes = Math.max(0, 2 * n - 1);
+        int[] createdLeft = new int[numNodes];
+        int[] createdRight = new int[numNodes];
+        int[] createdParent = new int[numNodes];
+        int[] slotNode = new int[n];
+        for(int i=0; i < n; i++) {
+            slotNode[i] = i;
+            createdLeft[i] = -1;
+        }
+        for(int k=0; k < history.size(); k++) {
+            int leftSlot = history.getLeft(k);
+            int rightSlot = history.getRight(k);
+            createdLeft[n + k] = slotNode[leftSlot];
+            createdRight[n + k] = slotNode[rightSlot];
+            createdParent[slotNode[leftSlot]] = n + k;
+            createdParent[slotNode[rightSlot]] = n + k;
+            slotNode[Math.min(leftSlot, rightSlot)] = n + k;
+        }
+
+        // Renumber in pre-order
+        CompactTree tree = new CompactTree(numNodes, species.clone());
+        if(n == 0)
+            return tree;
+        int[] createdStack = new int[64];
+        int[] parentStack = new int[64];
+        int stackSize = 0;
+        createdStack[stackSize] = numNodes - 1;
+        parentStack[stackSize++] = -1;
+        for(int v=0; stackSize > 0; v++) {
+            int created = createdStack[--stackSize];
+            int parentId = parentStack[stackSize];
+            tree.parent[v] = parentId;
+            if(parentId >= 0) {
+                if(tree.left[parentId] < 0)
+                    tree.left[parentId] = v;
+                else
+                    tree.right[parentId] = v;
+                // Same expression as UpgmaClusterer.merge
+                tree.branchLength[v] = history.getDistance(createdParent[created] - n)/2.0;
+            }
+            if(created < n) {
+                tree.speciesIndex[v] = created;
+                continue;
+            }
+
+            if(stackSize + 2 > createdStack.length) {
+                createdStack = Arrays.copyOf(createdStack, 2 * createdStack.length);
+                parentStack = Arrays.copyOf(parentStack, createdStack.length);
+            }
+            createdStack[stackSize] = createdRight[created];
+            parentStack[stackSize++] = v;
+            createdStack[stackSize] = createdLeft[created];
+            parentStack[stackSize++] = v;
+        }
+        return tree;
+    }
+}
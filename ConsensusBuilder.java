@@ -0,0 +1,395 @@
+/*
+ * ConsensusBuilder.java
+ *
+ * Majority-rule consensus of many trees, counted one tree at a time in a
+ * fixed amount of memory
+ *
+ * Every tree added is reduced to its splits over a fixed set of species
+ * (see Bipartitions), which are counted in an open-addressing hash table
+ * keyed by their 64-bit Zobrist hashes.  Only the table is kept, never the
+ * trees, so thousands of trees can be streamed through, and trees may be
+ * added from several threads.  The clades in more than half of the trees
+ * are pairwise compatible, and they make up the consensus tree, each with
+ * the fraction of the trees that hold it as its support.
+ *
+ * The species compared are given up front, usually those shared by all
+ * the alignments (see sharedSpecies); the species of a tree outside the
+ * set are ignored, so every tree is restricted to the same species.
+ *
+ * The table holds at most as many splits as fit in the memory budget, and
+ * always at least twice the splits of one tree.  When it is full and a new
+ * split arrives, every count is lowered by one and the splits whose count
+ * drops to 0 are removed (the Misra-Gries summary).  Each such event takes
+ * one from more than twice as many counts as a tree has splits, so there
+ * are fewer events than half the trees: a split in more than half of the
+ * trees is never removed, and its count is at most (number of events)
+ * below the true one.  The counts are exact as long as the table never
+ * fills up.  Otherwise the splits that can still be in a majority are
+ * kept by beginRecount, and the trees are added a second time to count
+ * exactly those; build() refuses to run until they have been.
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ConsensusBuilder {
+    private static final long DEFAULT_MEMORY = 64L << 20;    // Default budget of the split table in bytes
+    private static final int SLOT_BYTES = 2 * (8 + 4 + 8);   // Two slots per split: key, count and bitset reference
+    private static final int SPLIT_BYTES = SLOT_BYTES + 16;  // Per split, plus the words of its bitset
+
+    private Map<String,Integer> taxa;     // Taxon number of each species compared
+    private Species[] species;            // Species of each taxon number (null until a tree holding it is added)
+    private int numWords;                 // Words of the bitset of a split
+    private int capacity;                 // Maximum number of splits in the table
+    private long[] keys;                  // Hash of the split in each slot
+    private int[] counts;                 // Trees holding the split in each slot
+    private long[][] bits;                // Bitset of the split in each slot (null for an empty slot)
+    private int numEntries;               // Splits in the table
+    private int numTrees;                 // Trees counted
+    private int numSkipped;               // Trees left out for missing species
+    private int numDecrements;            // Times every count was lowered by one
+    private boolean recounting;           // Only the candidates of the first pass are counted
+
+    // CONSTRUCTOR
+
+    // ConsensusBuilder
+    // Pre-conditions:
+    //    - species holds the names of the species compared
+    // Post-conditions:
+    //    - An empty builder with the default memory budget has been created
+    public ConsensusBuilder(List<String> species) {
+        this(species, DEFAULT_MEMORY);
+        return;
+    }
+
+    // ConsensusBuilder
+    // Pre-conditions:
+    //    - species holds the names of the species compared
+    //    - memoryBudget is a positive number of bytes
+    // Post-conditions:
+    //    - An empty builder whose split table uses about memoryBudget bytes
+    //      has been created, numbering the species in list order
+    public ConsensusBuilder(List<String> species, long memoryBudget) {
+        this.taxa = new LinkedHashMap<String,Integer>();
+        for(String name : species)
+            this.taxa.putIfAbsent(name, this.taxa.size());
+        this.species = new Species[this.taxa.size()];
+        this.numWords = (this.taxa.size() + 63) / 64;
+
+        long capacity = memoryBudget / (SPLIT_BYTES + 8L * this.numWords);
+        capacity = Math.max(capacity, 2L * Math.max(1, this.taxa.size() - 3));
+        this.capacity = (int) Math.min(capacity, 1 << 29);
+        int numSlots = Integer.highestOneBit(Math.max(1, 2 * this.capacity - 1)) << 1;
+        this.keys = new long[numSlots];
+        this.counts = new int[numSlots];
+        this.bits = new long[numSlots][];
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumSpecies
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of species compared
+    public int getNumSpecies() {
+        return this.species.length;
+    }
+
+    // getNumTrees
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of trees counted (not those left out) since
+    //      the builder was created or the recount began
+    public synchronized int getNumTrees() {
+        return this.numTrees;
+    }
+
+    // getNumSkipped
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of trees left out for missing species
+    public synchronized int getNumSkipped() {
+        return this.numSkipped;
+    }
+
+    // isExact
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if the split table never filled up, or the trees
+    //      are being recounted, so the counts of the splits built on are exact
+    public synchronized boolean isExact() {
+        return this.numDecrements == 0 || this.recounting;
+    }
+
+    // build
+    // Pre-conditions:
+    //    - isExact() is true, and if a recount began, every tree has been
+    //      added again since
+    // Post-conditions:
+    //    - Returns the majority-rule consensus of the trees added: the
+    //      clades in more than half of them, each with the fraction of the
+    //      trees holding it as its support
+    //    - Returns null if no tree has been counted or no species is compared
+    //    - If the counts are not exact, an error is printed and the program exits
+    // Notes:
+    //    - Clades are on the side of their split without the first species,
+    //      which is a child of the root
+    public synchronized ConsensusTree build() {
+        if(!isExact()) {
+            System.err.println("Error: The consensus split table filled up " + this.numDecrements
+                               + " times; the trees must be recounted before the consensus is built");
+            System.exit(1);
+        }
+        if(this.numTrees == 0 || this.species.length == 0)
+            return null;
+
+        // Clades in more than half of the trees, the largest first
+        ArrayList<Integer> majority = new ArrayList<Integer>();
+        int[] size = new int[this.keys.length];
+        for(int slot=0; slot < this.keys.length; slot++) {
+            if(this.bits[slot] == null || 2L * this.counts[slot] <= this.numTrees)
+                continue;
+            for(long word : this.bits[slot])
+                size[slot] += Long.bitCount(word);
+            majority.add(slot);
+        }
+        Collections.sort(majority, (a, b) -> Integer.compare(size[b], size[a]));
+
+        // Nodes: the root, the clades, then the leaf of each taxon
+        int numTaxa = this.species.length;
+        int numClades = majority.size();
+        int numNodes = 1 + numClades + numTaxa;
+        int[] parent = new int[numNodes];
+        int[] firstTaxon = new int[numNodes];
+        int[] nodeSize = new int[numNodes];
+        Species[] nodeSpecies = new Species[numNodes];
+        double[] support = new double[numNodes];
+        int[] owner = new int[numTaxa];         // Smallest clade found so far holding each taxon
+        parent[0] = -1;
+        support[0] = 1.0;
+
+        // A clade is inside the smallest larger clade that holds its taxa
+        for(int c=0; c < numClades; c++) {
+            int slot = majority.get(c);
+            int node = 1 + c;
+            BitSet split = BitSet.valueOf(this.bits[slot]);
+            firstTaxon[node] = split.nextSetBit(0);
+            parent[node] = owner[firstTaxon[node]];
+            nodeSize[node] = size[slot];
+            support[node] = (double) this.counts[slot] / this.numTrees;
+            for(int t = firstTaxon[node]; t >= 0; t = split.nextSetBit(t + 1))
+                owner[t] = node;
+        }
+        for(int t=0; t < numTaxa; t++) {
+            int node = 1 + numClades + t;
+            parent[node] = owner[t];
+            firstTaxon[node] = t;
+            nodeSize[node] = 1;
+            nodeSpecies[node] = this.species[t];
+            support[node] = 1.0;
+        }
+
+        // Children by their lowest taxon; a clade before the clades and the
+        // leaf inside it that start with the same taxon
+        Integer[] order = new Integer[numNodes - 1];
+        for(int v=1; v < numNodes; v++)
+            order[v - 1] = v;
+        Arrays.sort(order, Comparator.<Integer>comparingInt(v -> firstTaxon[v])
+                                     .thenComparingInt(v -> -nodeSize[v]));
+        int[] childOrder = new int[order.length];
+        for(int i=0; i < order.length; i++)
+            childOrder[i] = order[i];
+
+        return new ConsensusTree(parent, childOrder, nodeSpecies, support);
+    }
+
+    // MODIFIER
+
+    // add
+    // Pre-conditions:
+    //    - tree has been built
+    // Post-conditions:
+    //    - The splits of tree over the species compared have been counted
+    //      (during a recount, only those kept by beginRecount)
+    //    - If tree is missing some of the species compared, a warning is
+    //      printed and it is left out
+    // Notes:
+    //    - The splits are found outside the lock, so several threads can add
+    //      trees at the same time
+    public void add(PhyloTree tree) {
+        CompactTree compact = tree.toCompactTree();
+        Bipartitions splits = new Bipartitions(compact, this.taxa, true);
+        synchronized(this) {
+            if(splits.getNumTaxa() < this.taxa.size()) {
+                System.err.println("Warning: A tree with " + splits.getNumTaxa() + " of the " + this.taxa.size()
+                                   + " species compared was left out of the consensus");
+                this.numSkipped++;
+                return;
+            }
+            if(this.numTrees == 0 && !this.recounting) {
+                for(Species s : compact.getSpecies()) {
+                    Integer number = this.taxa.get(s.getName());
+                    if(number != null && this.species[number] == null)
+                        this.species[number] = s;
+                }
+            }
+            this.numTrees++;
+            for(int i=0; i < splits.size(); i++)
+                count(splits, i);
+        }
+        return;
+    }
+
+    // beginRecount
+    // Pre-conditions:
+    //    - Every tree has been added once, and isExact() is false
+    // Post-conditions:
+    //    - Only the splits whose count plus the number of times every count
+    //      was lowered is more than half of the trees are kept, with a count
+    //      of 0, and no tree is counted
+    //    - The trees should now all be added again, which counts those
+    //      splits exactly and ignores the others
+    public synchronized void beginRecount() {
+        long[] oldKeys = this.keys;
+        int[] oldCounts = this.counts;
+        long[][] oldBits = this.bits;
+        this.keys = new long[oldKeys.length];
+        this.counts = new int[oldCounts.length];
+        this.bits = new long[oldBits.length][];
+        this.numEntries = 0;
+        for(int slot=0; slot < oldKeys.length; slot++) {
+            if(oldBits[slot] == null || 2L * ((long) oldCounts[slot] + this.numDecrements) <= this.numTrees)
+                continue;
+            int newSlot = find(oldKeys[slot]);
+            this.keys[newSlot] = oldKeys[slot];
+            this.bits[newSlot] = oldBits[slot];
+            this.numEntries++;
+        }
+        this.numTrees = 0;
+        this.numSkipped = 0;
+        this.recounting = true;
+        return;
+    }
+
+    // count
+    // Pre-conditions:
+    //    - 0 <= i < splits.size()
+    // Post-conditions:
+    //    - Split i has been counted once more, or, if it is new and the
+    //      table is full, every count has been lowered by one instead
+    //    - During a recount, new splits are ignored
+    private void count(Bipartitions splits, int i) {
+        long hash = splits.getSplitHash(i);
+        int slot = find(hash);
+        if(this.bits[slot] != null) {
+            this.counts[slot]++;
+            return;
+        }
+        if(this.recounting)
+            return;
+        if(this.numEntries == this.capacity) {
+            decrementAll();
+            return;
+        }
+        this.keys[slot] = hash;
+        this.counts[slot] = 1;
+        this.bits[slot] = Arrays.copyOf(splits.getSplit(i).toLongArray(), this.numWords);
+        this.numEntries++;
+        return;
+    }
+
+    // find
+    // Pre-conditions:
+    //    - The table has an empty slot
+    // Post-conditions:
+    //    - Returns the slot of the split with the given hash, or the empty
+    //      slot where it would go
+    private int find(long hash) {
+        int mask = this.keys.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while(this.bits[slot] != null && this.keys[slot] != hash)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    // decrementAll
+    // Pre-conditions:
+    //    - The table is full
+    // Post-conditions:
+    //    - Every count has been lowered by one, and the splits whose count
+    //      reached 0 have been removed
+    private void decrementAll() {
+        long[] oldKeys = this.keys;
+        int[] oldCounts = this.counts;
+        long[][] oldBits = this.bits;
+        this.keys = new long[oldKeys.length];
+        this.counts = new int[oldCounts.length];
+        this.bits = new long[oldBits.length][];
+        this.numEntries = 0;
+        for(int slot=0; slot < oldKeys.length; slot++) {
+            if(oldBits[slot] == null || oldCounts[slot] <= 1)
+                continue;
+            int newSlot = find(oldKeys[slot]);
+            this.keys[newSlot] = oldKeys[slot];
+            this.counts[newSlot] = oldCounts[slot] - 1;
+            this.bits[newSlot] = oldBits[slot];
+            this.numEntries++;
+        }
+        this.numDecrements++;
+        return;
+    }
+
+    // STATIC
+
+    // sharedSpecies
+    // Pre-conditions:
+    //    - fastaFilenames contains the paths of FASTA input files
+    // Post-conditions:
+    //    - Returns the names of the species found in every file, in the
+    //      order of the first file
+    //    - If a file cannot be read, an error is printed and the program exits
+    // Notes:
+    //    - Only the headers are read (see FastaReader.readNames), so this is
+    //      a quick pass before the trees are built
+    public static List<String> sharedSpecies(List<String> fastaFilenames) {
+        ArrayList<String> shared = new ArrayList<String>();
+        if(fastaFilenames.isEmpty())
+            return shared;
+        HashMap<String,Integer> numFiles = new HashMap<String,Integer>();
+        String[] firstNames = null;
+        for(String fastaFilename : fastaFilenames) {
+            String[] names = null;
+            try {
+                names = FastaReader.readNames(fastaFilename);
+            } catch(IOException e) {
+                System.err.println("Error: Not able to open file " + fastaFilename);
+                System.exit(1);
+            }
+            if(firstNames == null)
+                firstNames = names;
+            for(String name : new HashSet<String>(Arrays.asList(names)))
+                numFiles.merge(name, 1, Integer::sum);
+        }
+        HashSet<String> added = new HashSet<String>();
+        for(String name : firstNames) {
+            if(numFiles.get(name) == fastaFilenames.size() && added.add(name))
+                shared.add(name);
+        }
+        return shared;
+    }
+}
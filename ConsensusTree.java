@@ -0,0 +1,123 @@
+/*
+ * ConsensusTree.java
+ *
+ * Immutable tree of the clades found in most of a set of trees, built by
+ * ConsensusBuilder
+ *
+ * Unlike a PhyloTree, a node can have any number of children: the clades
+ * that are not in the consensus are collapsed into their parent.  Nodes
+ * are int ids, the root is 0, and the children of a node are a linked
+ * list (first child, next sibling), ordered by their lowest numbered
+ * species.  Every clade other than the root has a support value, the
+ * fraction of the trees that contain it.  There are no edge weights.
+ *
+ */
+
+import java.util.Arrays;
+
+public class ConsensusTree {
+    private int[] parent;         // Parent of each node (-1 for the root)
+    private int[] firstChild;     // First child of each node (-1 for a leaf)
+    private int[] nextSibling;    // Next child of the same parent (-1 for the last)
+    private Species[] species;    // Species of each leaf (null for a clade)
+    private double[] support;     // Fraction of the trees holding each clade
+
+    // CONSTRUCTOR
+
+    // ConsensusTree
+    // Pre-conditions:
+    //    - parent[0] == -1 and every other node has a parent
+    //    - order lists every node but the root, in the order the children
+    //      of each node should be listed
+    //    - species[v] is the species of leaf v and null for a clade
+    // Post-conditions:
+    //    - The tree has been created
+    public ConsensusTree(int[] parent, int[] order, Species[] species, double[] support) {
+        int numNodes = parent.length;
+        this.parent = parent.clone();
+        this.species = species.clone();
+        this.support = support.clone();
+        this.firstChild = new int[numNodes];
+        this.nextSibling = new int[numNodes];
+        Arrays.fill(this.firstChild, -1);
+        Arrays.fill(this.nextSibling, -1);
+
+        int[] lastChild = new int[numNodes];
+        for(int v : order) {
+            int p = parent[v];
+            if(this.firstChild[p] < 0)
+                this.firstChild[p] = v;
+            else
+                this.nextSibling[lastChild[p]] = v;
+            lastChild[p] = v;
+        }
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumNodes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of nodes (clades, leaves and the root)
+    public int getNumNodes() {
+        return this.parent.length;
+    }
+
+    // getParent
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the parent of v, -1 for the root
+    public int getParent(int v) {
+        return this.parent[v];
+    }
+
+    // getFirstChild
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the first child of v, -1 for a leaf
+    public int getFirstChild(int v) {
+        return this.firstChild[v];
+    }
+
+    // getNextSibling
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the child of the parent of v listed after v, -1 if v is
+    //      the last one (or the root)
+    public int getNextSibling(int v) {
+        return this.nextSibling[v];
+    }
+
+    // isLeaf
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns true if v is a leaf
+    public boolean isLeaf(int v) {
+        return this.species[v] != null;
+    }
+
+    // getSpecies
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the species of leaf v, null for a clade or the root
+    public Species getSpecies(int v) {
+        return this.species[v];
+    }
+
+    // getSupport
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - Returns the fraction of the trees holding the clade of v (1 for
+    //      a leaf or the root, which every tree holds)
+    public double getSupport(int v) {
+        return this.support[v];
+    }
+}
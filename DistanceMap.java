@@ -0,0 +1,263 @@
+/*
+ * DistanceMap.java
+ *
+ * Drop-in replacement for MultiKeyMap<Double> that stores distances
+ * without building key strings or boxing values
+ *
+ * Every label is given a dense integer id the first time it is seen.  The
+ * distance of {k1,k2} is then stored in an open-addressing hash table
+ * (linear probing) whose key is the two ids packed into one long, smaller
+ * id first, so {k1,k2} and {k2,k1} are the same entry.  The values live in
+ * a parallel double[].
+ *
+ * Callers that still use the MultiKeyMap interface keep working (get boxes
+ * its result, as it must); code that knows it has a DistanceMap can use
+ * getDistance / putDistance, or the ids directly, and never allocate.
+ * Unlike MultiKeyMap, keys may contain the bar character.
+ *
+ */
+
+import java.util.HashMap;
+
+public class DistanceMap extends MultiKeyMap<Double> {
+    private static final long EMPTY = -1L;         // Key of an unused table slot
+
+    private HashMap<String,Integer> labelIds;      // Label -> dense id
+    private long[] keys;                           // Packed id pairs (EMPTY if unused)
+    private double[] values;                       // Distance of the pair in the same slot
+    private int numEntries;                        // Number of used slots
+
+    // CONSTRUCTOR
+
+    // DistanceMap
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - An empty DistanceMap has been created
+    public DistanceMap() {
+        this(16);
+        return;
+    }
+
+    // DistanceMap
+    // Pre-conditions:
+    //    - expectedPairs is the number of pairs that will probably be stored
+    // Post-conditions:
+    //    - An empty DistanceMap that can hold expectedPairs pairs without
+    //      growing has been created
+    public DistanceMap(int expectedPairs) {
+        int capacity = 16;
+        while(capacity < 2L * expectedPairs && capacity < (1 << 30))
+            capacity *= 2;
+        this.labelIds = new HashMap<String,Integer>();
+        this.keys = new long[capacity];
+        this.values = new double[capacity];
+        java.util.Arrays.fill(this.keys, EMPTY);
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of pairs stored
+    public int size() {
+        return this.numEntries;
+    }
+
+    // get
+    // Pre-conditions:
+    //    - k1 and k2 are the two keys
+    // Post-conditions:
+    //    - If the map contains an entry for {k1,k2}, the value is returned
+    //    - Else: it returns null
+    public Double get(String k1, String k2) {
+        int slot = find(k1, k2);
+        if(slot < 0)
+            return null;
+        return this.values[slot];
+    }
+
+    // getDistance
+    // Pre-conditions:
+    //    - k1 and k2 are the two keys
+    // Post-conditions:
+    //    - Returns the distance stored for {k1,k2}, NaN if there is none
+    public double getDistance(String k1, String k2) {
+        int slot = find(k1, k2);
+        if(slot < 0)
+            return Double.NaN;
+        return this.values[slot];
+    }
+
+    // getDistance
+    // Pre-conditions:
+    //    - id1 and id2 are ids returned by idOf
+    // Post-conditions:
+    //    - Returns the distance stored for the two ids, NaN if there is none
+    public double getDistance(int id1, int id2) {
+        int slot = findSlot(pack(id1, id2));
+        if(this.keys[slot] == EMPTY)
+            return Double.NaN;
+        return this.values[slot];
+    }
+
+    // idOf
+    // Pre-conditions:
+    //    - label is a key
+    // Post-conditions:
+    //    - Returns the id of label, assigning the next free id if it is new
+    public int idOf(String label) {
+        Integer id = this.labelIds.get(label);
+        if(id == null) {
+            id = this.labelIds.size();
+            this.labelIds.put(label, id);
+        }
+        return id;
+    }
+
+    // find
+    // Pre-conditions:
+    //    - k1 and k2 are the two keys
+    // Post-conditions:
+    //    - Returns the table slot of {k1,k2}, -1 if it is not stored
+    private int find(String k1, String k2) {
+        Integer id1 = this.labelIds.get(k1);
+        Integer id2 = this.labelIds.get(k2);
+        if(id1 == null || id2 == null)
+            return -1;
+        int slot = findSlot(pack(id1, id2));
+        return (this.keys[slot] == EMPTY) ? -1 : slot;
+    }
+
+    // findSlot
+    // Pre-conditions:
+    //    - key is a packed id pair
+    // Post-conditions:
+    //    - Returns the slot holding key, or the empty slot where it would go
+    private int findSlot(long key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while(this.keys[slot] != EMPTY && this.keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    // MODIFIER
+
+    // put
+    // Pre-conditions:
+    //    - k1 and k2 are the two keys
+    //    - value is the value you wish you store (not null)
+    // Post-conditions:
+    //    - {k1,k2} now maps to value
+    public void put(String k1, String k2, Double value) {
+        putDistance(k1, k2, value);
+        return;
+    }
+
+    // putDistance
+    // Pre-conditions:
+    //    - k1 and k2 are the two keys
+    // Post-conditions:
+    //    - {k1,k2} now maps to distance
+    public void putDistance(String k1, String k2, double distance) {
+        putDistance(idOf(k1), idOf(k2), distance);
+        return;
+    }
+
+    // putDistance
+    // Pre-conditions:
+    //    - id1 and id2 are ids returned by idOf
+    // Post-conditions:
+    //    - The two ids now map to distance
+    public void putDistance(int id1, int id2, double distance) {
+        long key = pack(id1, id2);
+        int slot = findSlot(key);
+        if(this.keys[slot] == EMPTY) {
+            if(2 * (this.numEntries + 1) > this.keys.length) {
+                grow();
+                slot = findSlot(key);
+            }
+            this.keys[slot] = key;
+            this.numEntries++;
+        }
+        this.values[slot] = distance;
+        return;
+    }
+
+    // remove
+    // Pre-conditions:
+    //    - k1 and k2 are two keys whose associated value you wish to remove
+    // Post-conditions:
+    //    - No value is associated with {k1,k2}
+    public void remove(String k1, String k2) {
+        int slot = find(k1, k2);
+        if(slot < 0)
+            return;
+
+        // Backward-shift deletion keeps every probe sequence unbroken
+        int mask = this.keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while(this.keys[next] != EMPTY) {
+            int home = hash(this.keys[next]) & mask;
+            // Move the entry into the hole unless its home lies in (hole, next]
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.keys[hole] = EMPTY;
+        this.numEntries--;
+        return;
+    }
+
+    // grow
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The table has twice as many slots and holds the same entries
+    private void grow() {
+        long[] oldKeys = this.keys;
+        double[] oldValues = this.values;
+        this.keys = new long[2 * oldKeys.length];
+        this.values = new double[2 * oldValues.length];
+        java.util.Arrays.fill(this.keys, EMPTY);
+        for(int i=0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                int slot = findSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+        return;
+    }
+
+    // STATIC
+
+    // pack
+    // Pre-conditions:
+    //    - id1 and id2 are non-negative ids
+    // Post-conditions:
+    //    - Returns the same long for (id1,id2) and (id2,id1)
+    private static long pack(int id1, int id2) {
+        if(id1 > id2)
+            return ((long) id2 << 32) | id1;
+        return ((long) id1 << 32) | id2;
+    }
+
+    // hash
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns well mixed bits of key (Fibonacci hashing)
+    private static int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
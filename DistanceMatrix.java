@@ -0,0 +1,179 @@
+/*
+ * DistanceMatrix.java
+ *
+ * Symmetric matrix of distances between a fixed number of items (species
+ * or clusters) identified by dense integer ids 0 .. size-1
+ *
+ * Only the lower triangle is stored, row by row, in one flat double[]:
+ * the {i,j} distance with i > j is at position i*(i-1)/2 + j.  Nothing is
+ * boxed and no key objects are built, so lookups are a multiply and an
+ * array access.  MultiKeyMap-style string keys are handled by DistanceMap.
+ *
+ * A Java array holds at most 2^31 entries (about 65,000 items).  Larger
+ * matrices, or matrices that should not live on the heap, are stored by
+ * the MappedDistanceMatrix subclass in the same layout with long indices.
+ *
+ */
+
+public class DistanceMatrix {
+    public static final long MAX_HEAP_PAIRS = Integer.MAX_VALUE - 8;   // Largest triangle held in a double[]
+
+    private int size;             // Number of items
+    private double[] distances;   // Lower triangle, see index()
+
+    // CONSTRUCTOR
+
+    // DistanceMatrix
+    // Pre-conditions:
+    //    - size is the number of items
+    // Post-conditions:
+    //    - A matrix with all distances 0 has been created
+    //    - If the matrix would not fit in a Java array, an error is printed and the program exits
+    public DistanceMatrix(int size) {
+        this.size = size;
+        this.distances = new double[triangleSize(size)];
+        return;
+    }
+
+    // DistanceMatrix
+    // Pre-conditions:
+    //    - prefix.size() <= size
+    // Post-conditions:
+    //    - A matrix of size items has been created, whose distances between
+    //      the first prefix.size() items are those of prefix and all other
+    //      distances are 0
+    // Notes:
+    //    - The triangle of prefix is the beginning of the larger triangle,
+    //      so it is copied in one block
+    public DistanceMatrix(DistanceMatrix prefix, int size) {
+        this.size = size;
+        this.distances = new double[triangleSize(size)];
+        if(prefix.distances != null)
+            System.arraycopy(prefix.distances, 0, this.distances, 0, prefix.distances.length);
+        else
+            copyPrefix(prefix);
+        return;
+    }
+
+    // DistanceMatrix
+    // Pre-conditions:
+    //    - distances is the triangle of size items (see index), or null for
+    //      subclasses that store the distances elsewhere
+    // Post-conditions:
+    //    - A matrix of size items using distances as its storage has been created
+    protected DistanceMatrix(int size, double[] distances) {
+        this.size = size;
+        this.distances = distances;
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of items
+    public int size() {
+        return this.size;
+    }
+
+    // get
+    // Pre-conditions:
+    //    - i and j are ids below size()
+    // Post-conditions:
+    //    - Returns the distance between i and j (0 if i == j)
+    public double get(int i, int j) {
+        if(i == j)
+            return 0.0;
+        return this.distances[index(i, j)];
+    }
+
+    // copy
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns an independent matrix holding the same distances
+    public DistanceMatrix copy() {
+        return new DistanceMatrix(this.size, this.distances.clone());
+    }
+
+    // MODIFIER
+
+    // set
+    // Pre-conditions:
+    //    - i and j are two different ids below size()
+    // Post-conditions:
+    //    - The distance between i and j (and between j and i) is distance
+    public void set(int i, int j, double distance) {
+        this.distances[index(i, j)] = distance;
+        return;
+    }
+
+    // copyPrefix
+    // Pre-conditions:
+    //    - prefix.size() <= size()
+    // Post-conditions:
+    //    - The distances between the first prefix.size() items are those of prefix
+    protected void copyPrefix(DistanceMatrix prefix) {
+        for(int i=1; i < prefix.size(); i++)
+            for(int j=0; j < i; j++)
+                set(i, j, prefix.get(i, j));
+        return;
+    }
+
+    // STATIC
+
+    // index
+    // Pre-conditions:
+    //    - i and j are two different ids
+    // Post-conditions:
+    //    - Returns the position of the {i,j} distance in the triangular array
+    public static int index(int i, int j) {
+        if(i < j) {
+            int swap = i;
+            i = j;
+            j = swap;
+        }
+        return (int) ((long) i * (i - 1) / 2) + j;
+    }
+
+    // longIndex
+    // Pre-conditions:
+    //    - i and j are two different ids
+    // Post-conditions:
+    //    - Returns the position of the {i,j} distance in the triangle, for
+    //      triangles larger than a Java array
+    public static long longIndex(int i, int j) {
+        if(i < j) {
+            int swap = i;
+            i = j;
+            j = swap;
+        }
+        return (long) i * (i - 1) / 2 + j;
+    }
+
+    // numPairs
+    // Pre-conditions:
+    //    - n is the number of items
+    // Post-conditions:
+    //    - Returns the number of entries in the triangle of n items
+    public static long numPairs(int n) {
+        return (long) n * (n - 1) / 2;
+    }
+
+    // triangleSize
+    // Pre-conditions:
+    //    - n is the number of items
+    // Post-conditions:
+    //    - Returns the number of entries in the triangular distance array
+    //    - If the array would not fit in a Java array, an error is printed and the program exits
+    public static int triangleSize(int n) {
+        long size = numPairs(n);
+        if(size > MAX_HEAP_PAIRS) {
+            System.err.println("Error: Too many species for an in-memory distance matrix (" + n + ")");
+            System.exit(6);
+        }
+        return (int) size;
+    }
+}
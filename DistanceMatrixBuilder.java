@@ -0,0 +1,262 @@
+/*
+ * DistanceMatrixBuilder.java
+ *
+ * Computes the all-pairs Species.distance matrix used by UpgmaClusterer.
+ *
+ * The alignment is first compressed to its weighted variable site patterns
+ * (see SitePatterns), which gives the same distances as Species.distance
+ * from fewer residues.  The triangle is then split into square tiles of
+ * rows x columns whose compressed sequences fit in the L2 cache together,
+ * and the tiles are computed on a ForkJoinPool.  Every entry is computed by
+ * the same call whatever the parallelism, so the matrix is identical.
+ *
+ * The matrix is a DistanceMatrix on the heap, or a MappedDistanceMatrix
+ * when the options ask for it or when the triangle does not fit in a
+ * Java array.
+ *
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class DistanceMatrixBuilder {
+    private static final int TILE_BYTES = 256 * 1024;   // Sequence bytes one tile should touch
+    private static final int MIN_TILE_SIZE = 8;
+    private static final int MAX_TILE_SIZE = 256;
+
+    private int parallelism;      // Number of worker threads (1 = calling thread only)
+    private BuildOptions.MatrixStorage storage;    // Where the matrices are stored
+    private java.io.File directory;                // Directory of mapped matrices (null for the default)
+    private int numPatterns;      // Site patterns of the last alignment built or extended
+
+    // CONSTRUCTOR
+
+    // DistanceMatrixBuilder
+    // Pre-conditions:
+    //    - parallelism is a positive number
+    // Post-conditions:
+    //    - A builder using parallelism threads has been created
+    public DistanceMatrixBuilder(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.storage = BuildOptions.MatrixStorage.HEAP;
+        return;
+    }
+
+    // DistanceMatrixBuilder
+    // Pre-conditions:
+    //    - options holds the build settings
+    // Post-conditions:
+    //    - A builder using the parallelism and matrix storage of options has been created
+    public DistanceMatrixBuilder(BuildOptions options) {
+        this(options.getParallelism());
+        this.storage = options.getMatrixStorage();
+        this.directory = options.getMatrixDirectory();
+        return;
+    }
+
+    // getNumPatterns
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of site patterns of the last alignment given to
+    //      build or extend (0 before either is called)
+    public int getNumPatterns() {
+        return this.numPatterns;
+    }
+
+    // build
+    // Pre-conditions:
+    //    - species contains aligned species
+    // Post-conditions:
+    //    - Returns the matrix whose {i,j} distance is Species.distance(species[i],species[j])
+    public DistanceMatrix build(Species[] species) {
+        DistanceMatrix distances = newMatrix(null, species.length);
+        if(species.length < 2)
+            return distances;
+
+        SitePatterns patterns = new SitePatterns(species);
+        this.numPatterns = patterns.getNumPatterns();
+        int tileSize = tileSize(patterns.getCompressedLength());
+        int numBlocks = (species.length + tileSize - 1) / tileSize;
+        if(this.parallelism == 1 || numBlocks == 1) {
+            computeTiles(patterns, distances, tileSize, 0, numBlocks * (numBlocks + 1) / 2);
+            return distances;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            pool.invoke(new TileTask(patterns, distances, tileSize, 0, numBlocks * (numBlocks + 1) / 2));
+        } finally {
+            pool.shutdown();
+        }
+        return distances;
+    }
+
+    // extend
+    // Pre-conditions:
+    //    - known holds the distances between the first known.size() species
+    // Post-conditions:
+    //    - Returns the matrix of all species, copying the known distances and
+    //      computing only the rows of the species that come after them
+    // Notes:
+    //    - The site patterns are those of all the species, since a column
+    //      that was constant among the known species may not be anymore
+    public DistanceMatrix extend(DistanceMatrix known, Species[] species) {
+        DistanceMatrix distances = newMatrix(known, species.length);
+        int firstRow = known.size();
+        if(firstRow == species.length)
+            return distances;
+        SitePatterns patterns = new SitePatterns(species);
+        this.numPatterns = patterns.getNumPatterns();
+        if(this.parallelism == 1 || species.length - firstRow < 2) {
+            computeRows(patterns, distances, firstRow, species.length);
+            return distances;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            pool.invoke(new RowTask(patterns, distances, firstRow, species.length));
+        } finally {
+            pool.shutdown();
+        }
+        return distances;
+    }
+
+    // newMatrix
+    // Pre-conditions:
+    //    - prefix is null, or a matrix of at most size items
+    // Post-conditions:
+    //    - Returns a matrix of size items stored as configured, holding the
+    //      distances of prefix (if any) between its first items
+    //    - A heap matrix too large for a Java array is mapped instead
+    private DistanceMatrix newMatrix(DistanceMatrix prefix, int size) {
+        BuildOptions.MatrixStorage storage = this.storage;
+        if(storage == BuildOptions.MatrixStorage.HEAP && DistanceMatrix.numPairs(size) > DistanceMatrix.MAX_HEAP_PAIRS)
+            storage = BuildOptions.MatrixStorage.MAPPED;
+        if(storage == BuildOptions.MatrixStorage.HEAP)
+            return (prefix == null) ? new DistanceMatrix(size) : new DistanceMatrix(prefix, size);
+
+        boolean singlePrecision = (storage == BuildOptions.MatrixStorage.MAPPED_FLOAT);
+        if(prefix == null)
+            return new MappedDistanceMatrix(size, singlePrecision, this.directory);
+        return new MappedDistanceMatrix(prefix, size, singlePrecision, this.directory);
+    }
+
+    // computeRows
+    // Pre-conditions:
+    //    - firstRow <= lastRow <= species.length
+    // Post-conditions:
+    //    - The distances of the rows firstRow .. lastRow-1 have been stored
+    private static void computeRows(SitePatterns patterns, DistanceMatrix distances, int firstRow, int lastRow) {
+        for(int i = firstRow; i < lastRow; i++) {
+            for(int j=0; j < i; j++)
+                distances.set(i, j, patterns.distance(i, j));
+        }
+        return;
+    }
+
+    // tileSize
+    // Pre-conditions:
+    //    - sequenceLength is the number of (compressed) residues per species
+    // Post-conditions:
+    //    - Returns the number of rows (and columns) in a tile
+    private static int tileSize(int sequenceLength) {
+        int size = TILE_BYTES / (2 * Math.max(1, sequenceLength));
+        return Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, size));
+    }
+
+    // computeTiles
+    // Pre-conditions:
+    //    - tiles are numbered row by row through the lower triangle of blocks:
+    //      0 = (0,0), 1 = (1,0), 2 = (1,1), 3 = (2,0), ...
+    // Post-conditions:
+    //    - Every distance inside the tiles firstTile .. lastTile-1 has been stored
+    private static void computeTiles(SitePatterns patterns, DistanceMatrix distances, int tileSize, int firstTile, int lastTile) {
+        int numSpecies = distances.size();
+        // Find the block row and column of the first tile
+        int blockRow = (int) ((Math.sqrt(8.0 * firstTile + 1) - 1) / 2);
+        while((long) blockRow * (blockRow + 1) / 2 > firstTile)
+            blockRow--;
+        while((long) (blockRow + 1) * (blockRow + 2) / 2 <= firstTile)
+            blockRow++;
+        int blockColumn = firstTile - blockRow * (blockRow + 1) / 2;
+
+        for(int tile = firstTile; tile < lastTile; tile++) {
+            int rowEnd = Math.min(numSpecies, (blockRow + 1) * tileSize);
+            int columnEnd = Math.min(numSpecies, (blockColumn + 1) * tileSize);
+            for(int i = blockRow * tileSize; i < rowEnd; i++) {
+                int end = Math.min(columnEnd, i);
+                for(int j = blockColumn * tileSize; j < end; j++)
+                    distances.set(i, j, patterns.distance(i, j));
+            }
+
+            // Move on to the next tile of the triangle
+            blockColumn++;
+            if(blockColumn > blockRow) {
+                blockRow++;
+                blockColumn = 0;
+            }
+        }
+        return;
+    }
+
+    // TileTask
+    // Fork/join task computing a contiguous range of tiles, split in halves
+    // until a single tile is left
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private SitePatterns patterns;
+        private DistanceMatrix distances;
+        private int tileSize;
+        private int firstTile;
+        private int lastTile;
+
+        TileTask(SitePatterns patterns, DistanceMatrix distances, int tileSize, int firstTile, int lastTile) {
+            this.patterns = patterns;
+            this.distances = distances;
+            this.tileSize = tileSize;
+            this.firstTile = firstTile;
+            this.lastTile = lastTile;
+        }
+
+        protected void compute() {
+            if(this.lastTile - this.firstTile <= 1) {
+                computeTiles(this.patterns, this.distances, this.tileSize, this.firstTile, this.lastTile);
+                return;
+            }
+            int middle = (this.firstTile + this.lastTile) >>> 1;
+            invokeAll(new TileTask(this.patterns, this.distances, this.tileSize, this.firstTile, middle),
+                      new TileTask(this.patterns, this.distances, this.tileSize, middle, this.lastTile));
+        }
+    }
+
+    // RowTask
+    // Fork/join task computing a range of whole rows, split in halves
+    // until a single row is left
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private SitePatterns patterns;
+        private DistanceMatrix distances;
+        private int firstRow;
+        private int lastRow;
+
+        RowTask(SitePatterns patterns, DistanceMatrix distances, int firstRow, int lastRow) {
+            this.patterns = patterns;
+            this.distances = distances;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            if(this.lastRow - this.firstRow <= 1) {
+                computeRows(this.patterns, this.distances, this.firstRow, this.lastRow);
+                return;
+            }
+            int middle = (this.firstRow + this.lastRow) >>> 1;
+            invokeAll(new RowTask(this.patterns, this.distances, this.firstRow, middle),
+                      new RowTask(this.patterns, this.distances, middle, this.lastRow));
+        }
+    }
+}
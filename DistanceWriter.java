@@ -0,0 +1,356 @@
+/*
+ * DistanceWriter.java
+ *
+ * Writes the pairwise evolutionary distances of a PhyloTree
+ *
+ * Everything goes through one reusable byte buffer that is handed to the
+ * output stream only when it is full, and numbers are formatted by hand
+ * instead of through java.util.Formatter.  The supported formats are
+ *
+ *    EVDISTANCE   the original .distances text, one line per ordered pair:
+ *                 EvDistance(label1,label2) = 0.12
+ *    PHYLIP       a relaxed PHYLIP square matrix: the number of species,
+ *                 then one row per species (name followed by its distances)
+ *    TRIANGULAR   the lower triangle of the PHYLIP matrix: row i only holds
+ *                 the distances to species 0 .. i-1
+ *    BINARY       a little-endian file meant to be memory-mapped:
+ *                    bytes 0-3   magic "PTDM"
+ *                    int32       format version (1)
+ *                    int32       number of species n
+ *                    int32       byte offset of the matrix
+ *                    n times     int32 name length + UTF-8 name bytes
+ *                    padding     zero bytes up to a multiple of 8
+ *                    n*n float32 the square matrix, row by row
+ *
+ * The matrix formats have a zero diagonal.  Only EVDISTANCE keeps the
+ * legacy self-distance of a species (twice the edge to its leaf), so that
+ * its output is the same as before.
+ *
+ * The species are in the order of PhyloTree.getAllSpecies.  The distances
+ * are taken from PhyloTree.findAllEvolutionaryDistances, computed once for
+ * all pairs, and streamed row by row; a tree too large for that matrix is
+ * queried pair by pair instead.
+ *
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class DistanceWriter {
+    public enum Format {
+        EVDISTANCE(".distances"), PHYLIP(".phy"), TRIANGULAR(".lower.phy"), BINARY(".distances.bin");
+
+        private String extension;     // Suffix of the files written in this format
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return this.extension;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BINARY_VERSION = 1;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L,
+                                                 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    private OutputStream out;     // Where the bytes go
+    private Format format;        // Layout of the output
+    private int precision;        // Number of decimals in the text formats
+    private byte[] buffer;        // Bytes waiting to be written
+    private int position;         // Number of bytes in buffer
+    private long bytesWritten;    // Number of bytes handed to out so far
+
+    // CONSTRUCTOR
+
+    // DistanceWriter
+    // Pre-conditions:
+    //    - out is an open output stream
+    // Post-conditions:
+    //    - A writer of the given format with 2 decimals has been created
+    public DistanceWriter(OutputStream out, Format format) {
+        this.out = out;
+        this.format = format;
+        this.precision = 2;
+        this.buffer = new byte[BUFFER_SIZE];
+        return;
+    }
+
+    // ACCESSORS
+
+    // getBytesWritten
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of bytes written so far (including buffered bytes)
+    public long getBytesWritten() {
+        return this.bytesWritten + this.position;
+    }
+
+    // MODIFIER
+
+    // setPrecision
+    // Pre-conditions:
+    //    - precision is between 0 and 9
+    // Post-conditions:
+    //    - The text formats will print that many decimals
+    public void setPrecision(int precision) {
+        this.precision = Math.max(0, Math.min(POWERS_OF_TEN.length - 1, precision));
+        return;
+    }
+
+    // write
+    // Pre-conditions:
+    //    - tree is a built tree
+    // Post-conditions:
+    //    - The distances between all species of tree have been written and flushed
+    //    - Throws IOException if the output cannot be written
+    public void write(PhyloTree tree) throws IOException {
+        ArrayList<Species> speciesList = tree.getAllSpecies();
+        int n = speciesList.size();
+        String[] labels = new String[n];
+        byte[][] names = new byte[n][];
+        for(int i=0; i < n; i++) {
+            labels[i] = speciesList.get(i).getName();
+            names[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        if(this.format == Format.BINARY)
+            writeBinaryHeader(names);
+        else if(this.format != Format.EVDISTANCE) {
+            appendLong(n);
+            appendByte('\n');
+        }
+
+        PatristicMatrix matrix = null;
+        if(DistanceMatrix.numPairs(n) <= DistanceMatrix.MAX_HEAP_PAIRS)
+            matrix = tree.findAllEvolutionaryDistances();
+
+        for(int i=0; i < n; i++) {
+            if(this.format == Format.PHYLIP || this.format == Format.TRIANGULAR)
+                appendBytes(names[i]);
+            int end = (this.format == Format.TRIANGULAR) ? i : n;
+            for(int j=0; j < end; j++) {
+                double distance;
+                if(i == j && this.format != Format.EVDISTANCE)
+                    distance = 0.0;
+                else if(matrix != null)
+                    distance = matrix.get(i, j);
+                else
+                    distance = tree.findEvolutionaryDistance(labels[i], labels[j]);
+                if(this.format == Format.EVDISTANCE) {
+                    appendAscii("EvDistance(");
+                    appendBytes(names[i]);
+                    appendByte(',');
+                    appendBytes(names[j]);
+                    appendAscii(") = ");
+                    appendDouble(distance);
+                    appendByte('\n');
+                }
+                else if(this.format == Format.BINARY) {
+                    appendInt(Float.floatToIntBits((float) distance));
+                }
+                else {
+                    appendByte(' ');
+                    appendDouble(distance);
+                }
+            }
+            if(this.format == Format.PHYLIP || this.format == Format.TRIANGULAR)
+                appendByte('\n');
+        }
+        flush();
+        return;
+    }
+
+    // writeBinaryHeader
+    // Pre-conditions:
+    //    - names holds the UTF-8 names of the species
+    // Post-conditions:
+    //    - The binary header, the names and the padding have been appended
+    private void writeBinaryHeader(byte[][] names) throws IOException {
+        long headerLength = 16;
+        for(byte[] name : names)
+            headerLength += 4 + name.length;
+        long matrixOffset = (headerLength + 7) & ~7L;
+
+        appendAscii("PTDM");
+        appendInt(BINARY_VERSION);
+        appendInt(names.length);
+        appendInt((int) matrixOffset);
+        for(byte[] name : names) {
+            appendInt(name.length);
+            appendBytes(name);
+        }
+        for(long i = headerLength; i < matrixOffset; i++)
+            appendByte(0);
+        return;
+    }
+
+    // flush
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The buffered bytes have been written and the stream flushed
+    public void flush() throws IOException {
+        drain();
+        this.out.flush();
+        return;
+    }
+
+    // drain
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The buffered bytes have been handed to the output stream
+    private void drain() throws IOException {
+        if(this.position > 0) {
+            this.out.write(this.buffer, 0, this.position);
+            this.bytesWritten += this.position;
+            this.position = 0;
+        }
+        return;
+    }
+
+    // appendByte
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The low 8 bits of b have been appended
+    private void appendByte(int b) throws IOException {
+        if(this.position == this.buffer.length)
+            drain();
+        this.buffer[this.position++] = (byte) b;
+        return;
+    }
+
+    // appendBytes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - bytes have been appended
+    private void appendBytes(byte[] bytes) throws IOException {
+        if(bytes.length > this.buffer.length - this.position) {
+            drain();
+            if(bytes.length > this.buffer.length) {
+                this.out.write(bytes);
+                this.bytesWritten += bytes.length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+        return;
+    }
+
+    // appendAscii
+    // Pre-conditions:
+    //    - text only contains ASCII characters
+    // Post-conditions:
+    //    - text has been appended
+    private void appendAscii(String text) throws IOException {
+        for(int i=0; i < text.length(); i++)
+            appendByte(text.charAt(i));
+        return;
+    }
+
+    // appendInt
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - value has been appended as 4 little-endian bytes
+    private void appendInt(int value) throws IOException {
+        appendByte(value);
+        appendByte(value >>> 8);
+        appendByte(value >>> 16);
+        appendByte(value >>> 24);
+        return;
+    }
+
+    // appendLong
+    // Pre-conditions:
+    //    - value >= 0
+    // Post-conditions:
+    //    - The decimal digits of value have been appended
+    private void appendLong(long value) throws IOException {
+        if(value >= 10)
+            appendLong(value / 10);
+        appendByte('0' + (int) (value % 10));
+        return;
+    }
+
+    // appendDouble
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - value has been appended with this.precision decimals, exactly as
+    //      String.format("%.Nf", value) would print it
+    private void appendDouble(double value) throws IOException {
+        long scaled = roundScaled(value, this.precision);
+        if(scaled < 0) {
+            appendAscii(String.format("%." + this.precision + "f", value));
+            return;
+        }
+        if(Double.doubleToRawLongBits(value) < 0)
+            appendByte('-');
+        long scale = POWERS_OF_TEN[this.precision];
+        appendLong(scaled / scale);
+        if(this.precision > 0) {
+            appendByte('.');
+            long fraction = scaled % scale;
+            for(long digit = scale / 10; digit > 0; digit /= 10)
+                appendByte('0' + (int) ((fraction / digit) % 10));
+        }
+        return;
+    }
+
+    // STATIC
+
+    // parseFormat
+    // Pre-conditions:
+    //    - name is a format name such as "phylip" (case is ignored)
+    // Post-conditions:
+    //    - Returns the format with that name, or null if there is none
+    public static Format parseFormat(String name) {
+        for(Format format : Format.values()) {
+            if(format.name().equalsIgnoreCase(name))
+                return format;
+        }
+        return null;
+    }
+
+    // roundScaled
+    // Pre-conditions:
+    //    - 0 <= precision <= 9
+    // Post-conditions:
+    //    - Returns |value| * 10^precision rounded the way java.util.Formatter
+    //      rounds it, or -1 if value is not finite or too large to handle here
+    // Notes:
+    //    - Formatter rounds HALF_UP on the shortest decimal representation of
+    //      the double (the digits of Double.toString), not on its exact binary
+    //      value, so 0.215 (really 0.21499999...) prints as 0.22.  The shortest
+    //      representation reaches the rounding boundary b = (k + 1/2) / 10^p
+    //      exactly when |value| >= the double closest to b, which is what is
+    //      tested here.
+    public static long roundScaled(double value, int precision) {
+        double magnitude = Math.abs(value);
+        if(!(magnitude < 1e9))
+            return -1;
+        double scale = (double) POWERS_OF_TEN[precision];
+
+        // Exact floor of magnitude * scale, using the rounding error of the product
+        double product = magnitude * scale;
+        double error = Math.fma(magnitude, scale, -product);
+        long floor = (long) Math.floor(product);
+        if(product == floor && error < 0)
+            floor--;
+
+        double boundary = (double) (2 * floor + 1) / (2.0 * scale);
+        if(magnitude >= boundary)
+            return floor + 1;
+        return floor;
+    }
+}
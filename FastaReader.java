@@ -0,0 +1,218 @@
+/*
+ * FastaReader.java
+ *
+ * Reads the species of a FASTA alignment file
+ *
+ * The file is memory-mapped through a FileChannel and scanned byte by byte.
+ * Header lines ('>' at the start of a line) are split on the bar character
+ * in place, and residues are copied straight into one reusable byte buffer
+ * that is packed into a PackedSequence at the end of each record, so the
+ * only garbage per record is the species name.
+ *
+ * The records produced are the same as the original Scanner based
+ * PhyloTree.loadSpeciesFile:
+ *    - a header names a species only if it has exactly 7 bar-separated
+ *      fields (trailing empty fields do not count, as with String.split),
+ *      the name being the 7th field; records without a name are skipped
+ *    - the sequence is the concatenation of the record's lines without
+ *      their line terminators
+ *    - the first residue is dropped, like the split("") / copyOfRange(1, ...)
+ *      step did on Java 8 and later, so the distances do not change
+ *
+ * readNames scans the same way but only keeps the names, skipping the
+ * residues, for a quick look at which species a file holds.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class FastaReader {
+    private static final int FIELDS_PER_HEADER = 7;
+    private static final long MAX_MAPPING = 1L << 30;   // Bytes mapped at a time
+
+    private byte[] header;         // Bytes of the header line being read
+    private int headerLength;
+    private byte[] residues;       // Residues of the record being read
+    private int numResidues;
+    private String speciesName;    // Name of the record being read (null if unnamed)
+    private boolean inRecord;      // True once the first header has been read
+    private boolean namesOnly;     // Keep the names of the records, not their species
+    private ArrayList<Species> species;
+    private ArrayList<String> names;
+
+    // CONSTRUCTOR
+
+    // FastaReader
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - An empty reader has been created, keeping only the names of the
+    //      records if namesOnly is true
+    private FastaReader(boolean namesOnly) {
+        this.header = new byte[256];
+        this.residues = new byte[4096];
+        this.namesOnly = namesOnly;
+        this.species = new ArrayList<Species>();
+        this.names = new ArrayList<String>();
+        return;
+    }
+
+    // STATIC
+
+    // read
+    // Pre-conditions:
+    //    - filename contains the path of a FASTA input file
+    // Post-conditions:
+    //    - Returns the species of all named records in the file, in file order
+    //    - Throws IOException if the file cannot be opened or read
+    public static Species[] read(String filename) throws IOException {
+        FastaReader reader = new FastaReader(false);
+        reader.scan(filename);
+        return reader.species.toArray(new Species[reader.species.size()]);
+    }
+
+    // readNames
+    // Pre-conditions:
+    //    - filename contains the path of a FASTA input file
+    // Post-conditions:
+    //    - Returns the names of the species read would return, in file order
+    //    - Throws IOException if the file cannot be opened or read
+    public static String[] readNames(String filename) throws IOException {
+        FastaReader reader = new FastaReader(true);
+        reader.scan(filename);
+        return reader.names.toArray(new String[reader.names.size()]);
+    }
+
+    // MODIFIER
+
+    // scan
+    // Pre-conditions:
+    //    - filename contains the path of a FASTA input file
+    // Post-conditions:
+    //    - Every record of the file has been read
+    //    - Throws IOException if the file cannot be opened or read
+    private void scan(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            boolean inHeader = false;
+            boolean lineStart = true;
+            for(long position = 0; position < size; position += MAX_MAPPING) {
+                long length = Math.min(MAX_MAPPING, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                for(int i=0; i < (int) length; i++) {
+                    byte b = buffer.get(i);
+                    if(b == '\n') {
+                        if(inHeader)
+                            startRecord();
+                        inHeader = false;
+                        lineStart = true;
+                    }
+                    else if(lineStart && b == '>') {
+                        endRecord();
+                        this.headerLength = 0;
+                        inHeader = true;
+                        lineStart = false;
+                    }
+                    else {
+                        if(inHeader)
+                            appendHeader(b);
+                        else if(b != '\r')
+                            appendResidue(b);
+                        lineStart = false;
+                    }
+                }
+            }
+            if(inHeader)
+                startRecord();
+            endRecord();
+        } finally {
+            channel.close();
+        }
+        return;
+    }
+
+    // appendHeader
+    // Pre-conditions:
+    //    - b is the next byte of the current header line
+    // Post-conditions:
+    //    - b has been added to the header buffer
+    private void appendHeader(byte b) {
+        if(this.headerLength == this.header.length)
+            this.header = Arrays.copyOf(this.header, 2 * this.header.length);
+        this.header[this.headerLength++] = b;
+        return;
+    }
+
+    // appendResidue
+    // Pre-conditions:
+    //    - b is the next residue of the current record
+    // Post-conditions:
+    //    - b has been added to the residue buffer (ignored before the first
+    //      header, and when only the names are kept)
+    private void appendResidue(byte b) {
+        if(!this.inRecord || this.namesOnly)
+            return;
+        if(this.numResidues == this.residues.length)
+            this.residues = Arrays.copyOf(this.residues, 2 * this.residues.length);
+        this.residues[this.numResidues++] = b;
+        return;
+    }
+
+    // startRecord
+    // Pre-conditions:
+    //    - The header buffer holds a complete header line (without the '>')
+    // Post-conditions:
+    //    - A new record has been started, named after the 7th header field
+    //      if the header has exactly 7 fields, unnamed otherwise
+    private void startRecord() {
+        int end = this.headerLength;
+        if(end > 0 && this.header[end - 1] == '\r')
+            end--;
+
+        // Drop trailing empty fields, as String.split does
+        while(end > 0 && this.header[end - 1] == '|')
+            end--;
+
+        int numFields = 1;
+        int lastBar = -1;
+        for(int i=0; i < end; i++) {
+            if(this.header[i] == '|') {
+                numFields++;
+                lastBar = i;
+            }
+        }
+        // The '>' removed from the header still makes the first field non-empty
+        this.speciesName = null;
+        if(numFields == FIELDS_PER_HEADER)
+            this.speciesName = new String(this.header, lastBar + 1, end - lastBar - 1, StandardCharsets.UTF_8);
+        this.inRecord = true;
+        this.numResidues = 0;
+        return;
+    }
+
+    // endRecord
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - If the current record is named, its species (or its name) has been added
+    private void endRecord() {
+        if(this.inRecord && this.speciesName != null && this.namesOnly) {
+            this.names.add(this.speciesName);
+        }
+        else if(this.inRecord && this.speciesName != null) {
+            int length = Math.max(0, this.numResidues - 1);
+            this.species.add(new Species(this.speciesName, new PackedSequence(this.residues, this.numResidues - length, length)));
+        }
+        this.speciesName = null;
+        this.numResidues = 0;
+        return;
+    }
+}
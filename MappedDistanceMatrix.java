@@ -0,0 +1,184 @@
+/*
+ * MappedDistanceMatrix.java
+ *
+ * DistanceMatrix stored off the Java heap, in a memory-mapped temporary file
+ *
+ * The lower triangle has the same layout as in DistanceMatrix, but its
+ * position is a long, and the file is mapped in chunks of 1 GiB, so the
+ * matrix is only limited by the disk (50,000 species take 10 GB in double
+ * precision).  The distances are float64 by default, which gives exactly
+ * the distances, and so the tree, of the heap matrix.  In single precision
+ * (float32) the matrix takes half the space, but the distances and the
+ * averages computed by UpgmaClusterer are rounded to float, so near ties
+ * can be broken differently.
+ *
+ * The pages are owned by the operating system: they do not count towards
+ * the Java heap, cause no garbage collection work, and are written back to
+ * the file and dropped when memory is short, so the resident set stays
+ * bounded.  The file is deleted as soon as it is mapped where the platform
+ * allows it (the mapping stays valid), and on exit otherwise.
+ *
+ * Entries are read and written with absolute get/put calls, which leave the
+ * buffers' positions alone, so threads may fill different entries at once.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedDistanceMatrix extends DistanceMatrix {
+    private static final int CHUNK_SHIFT = 30;                  // Chunks of 1 GiB
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private boolean singlePrecision;      // float32 entries instead of float64
+    private int entryShift;               // log2 of the bytes per entry
+    private File directory;               // Where the temporary file is created
+    private MappedByteBuffer[] chunks;    // The mapped file, CHUNK_SHIFT bytes per chunk
+
+    // CONSTRUCTOR
+
+    // MappedDistanceMatrix
+    // Pre-conditions:
+    //    - size is the number of items
+    //    - directory is an existing directory, or null for the default
+    //      temporary-file directory
+    // Post-conditions:
+    //    - A matrix with all distances 0 has been created
+    //    - If the file cannot be created or mapped, an error is printed and the program exits
+    public MappedDistanceMatrix(int size, boolean singlePrecision, File directory) {
+        super(size, null);
+        this.singlePrecision = singlePrecision;
+        this.entryShift = singlePrecision ? 2 : 3;
+        this.directory = directory;
+        this.chunks = map(numPairs(size) << this.entryShift, directory);
+        return;
+    }
+
+    // MappedDistanceMatrix
+    // Pre-conditions:
+    //    - prefix.size() <= size
+    //    - directory is an existing directory, or null
+    // Post-conditions:
+    //    - A matrix of size items has been created, whose distances between
+    //      the first prefix.size() items are those of prefix and all other
+    //      distances are 0
+    public MappedDistanceMatrix(DistanceMatrix prefix, int size, boolean singlePrecision, File directory) {
+        this(size, singlePrecision, directory);
+        if(prefix instanceof MappedDistanceMatrix && ((MappedDistanceMatrix) prefix).singlePrecision == singlePrecision)
+            copyBytes((MappedDistanceMatrix) prefix);
+        else
+            copyPrefix(prefix);
+        return;
+    }
+
+    // ACCESSORS
+
+    // isSinglePrecision
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if the distances are stored as float32
+    public boolean isSinglePrecision() {
+        return this.singlePrecision;
+    }
+
+    // get
+    // Pre-conditions:
+    //    - i and j are ids below size()
+    // Post-conditions:
+    //    - Returns the distance between i and j (0 if i == j)
+    public double get(int i, int j) {
+        if(i == j)
+            return 0.0;
+        long offset = longIndex(i, j) << this.entryShift;
+        MappedByteBuffer chunk = this.chunks[(int) (offset >>> CHUNK_SHIFT)];
+        if(this.singlePrecision)
+            return chunk.getFloat((int) (offset & CHUNK_MASK));
+        return chunk.getDouble((int) (offset & CHUNK_MASK));
+    }
+
+    // copy
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns an independent matrix holding the same distances, in a
+    //      new temporary file
+    public DistanceMatrix copy() {
+        return new MappedDistanceMatrix(this, size(), this.singlePrecision, this.directory);
+    }
+
+    // MODIFIER
+
+    // set
+    // Pre-conditions:
+    //    - i and j are two different ids below size()
+    // Post-conditions:
+    //    - The distance between i and j (and between j and i) is distance,
+    //      rounded to float in single precision
+    public void set(int i, int j, double distance) {
+        long offset = longIndex(i, j) << this.entryShift;
+        MappedByteBuffer chunk = this.chunks[(int) (offset >>> CHUNK_SHIFT)];
+        if(this.singlePrecision)
+            chunk.putFloat((int) (offset & CHUNK_MASK), (float) distance);
+        else
+            chunk.putDouble((int) (offset & CHUNK_MASK), distance);
+        return;
+    }
+
+    // copyBytes
+    // Pre-conditions:
+    //    - prefix has the same precision and prefix.size() <= size()
+    // Post-conditions:
+    //    - The triangle of prefix has been copied to the start of this one
+    // Notes:
+    //    - The triangle of prefix is the beginning of the larger triangle
+    //      and the chunks have the same size, so chunk k is copied to chunk k
+    private void copyBytes(MappedDistanceMatrix prefix) {
+        long remaining = numPairs(prefix.size()) << this.entryShift;
+        for(int k=0; remaining > 0; k++) {
+            int length = (int) Math.min(remaining, 1L << CHUNK_SHIFT);
+            this.chunks[k].put(0, prefix.chunks[k], 0, length);
+            remaining -= length;
+        }
+        return;
+    }
+
+    // STATIC
+
+    // map
+    // Pre-conditions:
+    //    - length is the number of bytes needed
+    // Post-conditions:
+    //    - Returns a zero-filled temporary file of length bytes, mapped
+    //      read-write in chunks
+    //    - If the file cannot be created or mapped, an error is printed and the program exits
+    private static MappedByteBuffer[] map(long length, File directory) {
+        int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+        File file = null;
+        try {
+            file = File.createTempFile("distances", ".matrix", directory);
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // A sparse file: the blocks are allocated as they are written
+                raf.setLength(length);
+                FileChannel channel = raf.getChannel();
+                for(int k=0; k < numChunks; k++) {
+                    long start = (long) k << CHUNK_SHIFT;
+                    chunks[k] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(length - start, 1L << CHUNK_SHIFT));
+                    chunks[k].order(ByteOrder.nativeOrder());
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Error: Unable to map a distance matrix of " + length + " bytes " + e);
+            System.exit(6);
+        }
+        // The mappings outlive the file name on POSIX systems
+        if(!file.delete())
+            file.deleteOnExit();
+        return chunks;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * NeighborJoiner.java
+ *
+ * Neighbor-joining clustering engine, the alternative to UpgmaClusterer
+ * for alignments whose lineages do not evolve at the same rate
+ *
+ * With r active clusters and R_i the sum of the distances from cluster i
+ * to the others, neighbor joining merges the pair minimizing
+ *
+ *    Q(i,j) = (r-2) d(i,j) - R_i - R_j
+ *
+ * under a new node u with edge weights d(i,u) = d(i,j)/2 + (R_i-R_j)/(2(r-2))
+ * and d(j,u) = d(i,j) - d(i,u), both clamped to be non-negative, and sets
+ * d(u,k) = (d(i,k) + d(j,k) - d(i,j))/2.  The tree is unrooted; it is rooted
+ * at the middle of the last edge joined.
+ *
+ * Finding the pair naively costs O(r^2) per merge.  As in RapidNJ, every
+ * row keeps the other clusters sorted by increasing distance, and with
+ * R_max the largest R, Q(i,j) >= (r-2) d(i,j) - R_i - R_max.  A row is
+ * scanned in order only until that bound exceeds the best Q found so far,
+ * which on real data stops after a few entries.  A new cluster gets a new
+ * sorted row; the rows of older clusters are not updated but skip the
+ * clusters that were merged away (or whose slot was reused since the row
+ * was sorted), since the pairs with the new cluster are in its own row.
+ * Initially row i only holds the leaves after i, so every pair is in
+ * exactly one row.  The rows are sorted by float keys, and the bound uses
+ * the next float down and is rounded no higher than Q in either order of
+ * the subtractions, so the pruning is exact: the tree is the one of the
+ * naive search, bit for bit.
+ *
+ * On data that is far from additive (nearly equal distances) the bound
+ * prunes almost nothing, and following the sorted rows is several times
+ * slower per pair than reading the matrix in order.  When a search scans
+ * more than an eighth of the pairs, the next merges scan every pair in
+ * matrix order instead, which finds the same pair; the number of those
+ * merges doubles each time pruning fails again.  Rows that are mostly
+ * entries of retired clusters are compacted.
+ *
+ * Ties on Q are broken by the lowest pair of slots, so the tree does not
+ * depend on the order the rows are scanned in.  The cluster in the lower
+ * slot is the left child, and the new cluster takes that slot.
+ *
+ */
+
+import java.util.Arrays;
+
+public class NeighborJoiner {
+    private static final int PRUNED_SCAN_RATIO = 8;        // A row entry costs about as much as this many matrix entries
+    private static final int MIN_FULL_SCAN_ROUNDS = 8;     // Merges scanned in full when pruning does not pay off
+    private static final int MAX_FULL_SCAN_ROUNDS = 256;
+
+    private PhyloTreeNode[] clusters;     // Active cluster in each slot (null once merged away)
+    private DistanceMatrix distances;     // Distances between slots
+    private double[] rowSum;              // Sum of the distances from each slot to the other active slots
+    private int[][] sortedRows;           // Partner slots of each slot's row, by increasing distance
+    private int[] rowStart;               // First entry of each row that may still be valid
+    private int[] created;                // When the cluster in each slot was created (its row was sorted)
+    private long[] sortKeys;              // Scratch space for sorting a row
+    private int numActive;
+    private int numMerges;
+    private double bestQ;                 // Lowest Q of the last search
+    private int bestLow;                  // Pair of slots with that Q
+    private int bestHigh;
+
+    // CONSTRUCTOR
+
+    // NeighborJoiner
+    // Pre-conditions:
+    //    - leaves contains one leaf PhyloTreeNode per species
+    //    - distances holds the pairwise distances of the leaves (leaf i has id i)
+    // Post-conditions:
+    //    - A clusterer ready to run has been created
+    // Notes:
+    //    - distances is updated in place while clustering
+    public NeighborJoiner(PhyloTreeNode[] leaves, DistanceMatrix distances) {
+        this.clusters = leaves.clone();
+        this.distances = distances;
+        this.numActive = leaves.length;
+        this.rowSum = new double[leaves.length];
+        this.sortedRows = new int[leaves.length][];
+        this.rowStart = new int[leaves.length];
+        this.created = new int[leaves.length];
+        this.sortKeys = new long[leaves.length];
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumMerges
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of merges done so far
+    public int getNumMerges() {
+        return this.numMerges;
+    }
+
+    // MODIFIER
+
+    // cluster
+    // Pre-conditions:
+    //    - cluster has not been called on this object before
+    // Post-conditions:
+    //    - Repeatedly joins the pair of clusters with the lowest Q until two
+    //      are left, and joins those under the root
+    //    - Returns the root of that tree (null if there were no leaves)
+    public PhyloTreeNode cluster() {
+        int n = this.clusters.length;
+        if(n == 0)
+            return null;
+
+        for(int i=0; i < n; i++) {
+            for(int k=0; k < n; k++) {
+                if(k != i)
+                    this.rowSum[i] += this.distances.get(i, k);
+            }
+            sortRow(i, i + 1);
+        }
+
+        int fullScans = 0;
+        int fullScanRounds = MIN_FULL_SCAN_ROUNDS;
+        while(this.numActive > 2) {
+            if(fullScans > 0) {
+                findPairFull();
+                fullScans--;
+            }
+            else if(findPairPruned() > numActivePairs() / PRUNED_SCAN_RATIO) {
+                // The bound hardly prunes on this data: scan the matrix in order
+                // for a while, and for twice as long if that is still so next time
+                fullScans = fullScanRounds;
+                fullScanRounds = Math.min(2 * fullScanRounds, MAX_FULL_SCAN_ROUNDS);
+            }
+            else {
+                fullScanRounds = MIN_FULL_SCAN_ROUNDS;
+            }
+            join(this.bestLow, this.bestHigh);
+        }
+
+        // Root the tree at the middle of the last edge
+        int left = -1;
+        int right = -1;
+        for(int i=0; i < n; i++) {
+            if(this.clusters[i] == null)
+                continue;
+            if(left < 0)
+                left = i;
+            else
+                right = i;
+        }
+        if(right < 0)
+            return this.clusters[left];
+        double half = Math.max(0.0, this.distances.get(left, right)/2.0);
+        PhyloTreeNode root = new PhyloTreeNode(null, this.clusters[left], this.clusters[right], half, half);
+        this.clusters[left].setParent(root);
+        this.clusters[right].setParent(root);
+        this.clusters[left] = root;
+        this.clusters[right] = null;
+        this.numActive--;
+        this.numMerges++;
+        return root;
+    }
+
+    // findPairPruned
+    // Pre-conditions:
+    //    - More than two slots are active
+    // Post-conditions:
+    //    - bestLow < bestHigh is the pair of active slots with the lowest Q
+    //      (the lowest pair of slots among ties)
+    //    - Returns the number of row entries scanned
+    private long findPairPruned() {
+        int n = this.clusters.length;
+        double maxRowSum = Double.NEGATIVE_INFINITY;
+        for(int i=0; i < n; i++) {
+            if(this.clusters[i] != null)
+                maxRowSum = Math.max(maxRowSum, this.rowSum[i]);
+        }
+
+        // Scan each row until its bound exceeds the best Q
+        double factor = this.numActive - 2;
+        this.bestQ = Double.POSITIVE_INFINITY;
+        this.bestLow = -1;
+        this.bestHigh = -1;
+        long numScanned = 0;
+        for(int i=0; i < n; i++) {
+            if(this.clusters[i] == null)
+                continue;
+            int[] row = this.sortedRows[i];
+            double sumI = this.rowSum[i];
+            while(this.rowStart[i] < row.length && !isValid(i, row[this.rowStart[i]]))
+                this.rowStart[i]++;
+            int numInvalid = 0;
+            int k = this.rowStart[i];
+            for(; k < row.length; k++) {
+                int j = row[k];
+                if(!isValid(i, j)) {
+                    numInvalid++;
+                    continue;
+                }
+                double distance = this.distances.get(i, j);
+                double scaled = factor * Math.nextDown((float) distance);
+                double bound = Math.min(scaled - sumI - maxRowSum, scaled - maxRowSum - sumI);
+                if(bound > this.bestQ)
+                    break;
+                consider(Math.min(i, j), Math.max(i, j), factor * distance);
+            }
+            numScanned += k - this.rowStart[i];
+            if(2 * numInvalid > k - this.rowStart[i])
+                compactRow(i);
+        }
+        return numScanned;
+    }
+
+    // findPairFull
+    // Pre-conditions:
+    //    - More than two slots are active
+    // Post-conditions:
+    //    - Same as findPairPruned, by computing Q for every pair of active
+    //      slots in the order of the matrix
+    private void findPairFull() {
+        double factor = this.numActive - 2;
+        this.bestQ = Double.POSITIVE_INFINITY;
+        this.bestLow = -1;
+        this.bestHigh = -1;
+        for(int i=1; i < this.clusters.length; i++) {
+            if(this.clusters[i] == null)
+                continue;
+            for(int j=0; j < i; j++) {
+                if(this.clusters[j] != null)
+                    consider(j, i, factor * this.distances.get(i, j));
+            }
+        }
+        return;
+    }
+
+    // consider
+    // Pre-conditions:
+    //    - low < high are active slots, scaled is (r-2) times their distance
+    // Post-conditions:
+    //    - If their Q is lower than the best so far (or equal, for a lower
+    //      pair of slots), they are the best pair
+    private void consider(int low, int high, double scaled) {
+        double q = scaled - this.rowSum[low] - this.rowSum[high];
+        if(q < this.bestQ || (q == this.bestQ && (low < this.bestLow || (low == this.bestLow && high < this.bestHigh)))) {
+            this.bestQ = q;
+            this.bestLow = low;
+            this.bestHigh = high;
+        }
+        return;
+    }
+
+    // numActivePairs
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of pairs of active slots
+    private long numActivePairs() {
+        return (long) this.numActive * (this.numActive - 1) / 2;
+    }
+
+    // join
+    // Pre-conditions:
+    //    - leftSlot < rightSlot are two active slots, and more than two slots are active
+    // Post-conditions:
+    //    - The two clusters have been joined under a new non-terminal stored
+    //      in leftSlot, rightSlot is retired
+    //    - The distances, row sums and sorted row of the new cluster have been computed
+    private void join(int leftSlot, int rightSlot) {
+        PhyloTreeNode leftChild = this.clusters[leftSlot];
+        PhyloTreeNode rightChild = this.clusters[rightSlot];
+        double distance = this.distances.get(leftSlot, rightSlot);
+        double toLeft = distance/2.0 + (this.rowSum[leftSlot] - this.rowSum[rightSlot])/(2.0*(this.numActive - 2));
+        double toRight = distance - toLeft;
+        // Negative edge weights have no meaning: give the whole distance to the other edge
+        if(toLeft < 0.0) {
+            toLeft = 0.0;
+            toRight = Math.max(0.0, distance);
+        }
+        else if(toRight < 0.0) {
+            toRight = 0.0;
+            toLeft = Math.max(0.0, distance);
+        }
+
+        PhyloTreeNode newNode = new PhyloTreeNode(null, leftChild, rightChild, toLeft, toRight);
+        leftChild.setParent(newNode);
+        rightChild.setParent(newNode);
+
+        double newRowSum = 0.0;
+        for(int k=0; k < this.clusters.length; k++) {
+            if(this.clusters[k] == null || k == leftSlot || k == rightSlot)
+                continue;
+            double distanceLK = this.distances.get(leftSlot, k);
+            double distanceRK = this.distances.get(rightSlot, k);
+            double distanceUK = (distanceLK + distanceRK - distance)/2.0;
+            this.rowSum[k] += distanceUK - distanceLK - distanceRK;
+            newRowSum += distanceUK;
+            this.distances.set(leftSlot, k, distanceUK);
+        }
+        this.clusters[leftSlot] = newNode;
+        this.clusters[rightSlot] = null;
+        this.sortedRows[rightSlot] = null;
+        this.rowSum[leftSlot] = newRowSum;
+        this.numActive--;
+        this.numMerges++;
+        this.created[leftSlot] = this.numMerges;
+        sortRow(leftSlot, 0);
+        return;
+    }
+
+    // isValid
+    // Pre-conditions:
+    //    - row is an active slot and partner an entry of its sorted row
+    // Post-conditions:
+    //    - Returns true if partner still holds the cluster it held when the
+    //      row was sorted
+    private boolean isValid(int row, int partner) {
+        return this.clusters[partner] != null && this.created[partner] <= this.created[row];
+    }
+
+    // compactRow
+    // Pre-conditions:
+    //    - row is an active slot
+    // Post-conditions:
+    //    - The entries of the sorted row of row that are no longer valid
+    //      have been removed, keeping the order of the others
+    private void compactRow(int row) {
+        int[] entries = this.sortedRows[row];
+        int length = 0;
+        for(int k = this.rowStart[row]; k < entries.length; k++) {
+            if(isValid(row, entries[k]))
+                entries[length++] = entries[k];
+        }
+        this.sortedRows[row] = Arrays.copyOf(entries, length);
+        this.rowStart[row] = 0;
+        return;
+    }
+
+    // sortRow
+    // Pre-conditions:
+    //    - row is an active slot
+    // Post-conditions:
+    //    - The sorted row of row holds the active slots from firstPartner on
+    //      (other than row), by increasing distance
+    // Notes:
+    //    - A distance d is sorted by the float nearest to it, in the order of
+    //      the float's value, then by slot; every distance after it in the row
+    //      is then above Math.nextDown((float) d)
+    private void sortRow(int row, int firstPartner) {
+        int length = 0;
+        for(int k = firstPartner; k < this.clusters.length; k++) {
+            if(this.clusters[k] == null || k == row)
+                continue;
+            int bits = Float.floatToIntBits((float) this.distances.get(row, k));
+            // Flip the magnitude of negative floats so the ints sort like the values
+            bits ^= (bits >> 31) & 0x7fffffff;
+            this.sortKeys[length++] = (((long) bits) << 32) | k;
+        }
+        Arrays.sort(this.sortKeys, 0, length);
+        int[] sorted = new int[length];
+        for(int e=0; e < length; e++)
+            sorted[e] = (int) this.sortKeys[e];
+        this.sortedRows[row] = sorted;
+        this.rowStart[row] = 0;
+        return;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * NewickWriter.java
+ *
+ * Writes a phylogenetic tree in the Newick format of PhyloTree.toTreeString
+ *
+ * The tree is walked with an explicit stack and written straight to one
+ * Appendable, so the cost is linear in the size of the output and deep
+ * (caterpillar shaped) trees do not overflow the call stack.  For every
+ * node the right subtree is written before the left one:
+ *
+ *    leaf          label:length
+ *    non-terminal  (right,left):length
+ *
+ * where length is the weight of the edge from the node's parent, rounded
+ * to 4 decimals exactly as Math.round(length*10000.0)/10000.0 and printed
+ * exactly as Double.toString prints it.  The root has no length.
+ *
+ * A ConsensusTree is written with the children of each node in order and
+ * the support of each clade, rounded the same way, in place of a length:
+ *
+ *    leaf          label
+ *    clade         (child1,child2,...)support
+ *
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class NewickWriter {
+    private static final byte ENTER = 0;      // Write the subtree of the node
+    private static final byte COMMA = 1;      // Write the separator between two subtrees
+    private static final byte CLOSE = 2;      // Close the node's parenthesis and write its length
+
+    private Appendable out;                   // Where the tree is written
+    private PhyloTreeNode[] nodeStack;        // Pending nodes
+    private byte[] actionStack;               // What to do with each pending node
+    private char[] digits;                    // Scratch space for formatting lengths
+
+    // CONSTRUCTOR
+
+    // NewickWriter
+    // Pre-conditions:
+    //    - out is where the trees should be written
+    // Post-conditions:
+    //    - A writer to out has been created
+    public NewickWriter(Appendable out) {
+        this.out = out;
+        this.nodeStack = new PhyloTreeNode[64];
+        this.actionStack = new byte[64];
+        this.digits = new char[20];
+        return;
+    }
+
+    // MODIFIER
+
+    // write
+    // Pre-conditions:
+    //    - root is the root of a tree (or null for an empty tree)
+    // Post-conditions:
+    //    - The Newick string of the tree has been appended to out
+    //    - Throws IOException if out throws it
+    public void write(PhyloTreeNode root) throws IOException {
+        if(root == null)
+            return;
+        if(root.isLeaf()) {
+            this.out.append(root.getLabel());
+            return;
+        }
+
+        int stackSize = push(0, root, ENTER);
+        while(stackSize > 0) {
+            stackSize--;
+            PhyloTreeNode node = this.nodeStack[stackSize];
+            byte action = this.actionStack[stackSize];
+            this.nodeStack[stackSize] = null;
+
+            if(action == COMMA) {
+                this.out.append(',');
+            }
+            else if(action == CLOSE) {
+                this.out.append(')');
+                if(node.getParent() != null)
+                    appendLength(node.getBranchLength());
+            }
+            else if(node.isLeaf()) {
+                this.out.append(node.getLabel());
+                appendLength(node.getBranchLength());
+            }
+            else {
+                this.out.append('(');
+                stackSize = push(stackSize, node, CLOSE);
+                stackSize = push(stackSize, node.getLeftChild(), ENTER);
+                stackSize = push(stackSize, null, COMMA);
+                stackSize = push(stackSize, node.getRightChild(), ENTER);
+            }
+        }
+        return;
+    }
+
+    // write
+    // Pre-conditions:
+    //    - tree is a consensus tree (or null for no tree)
+    // Post-conditions:
+    //    - The Newick string of the tree, with the support of every clade
+    //      after its closing parenthesis, has been appended to out
+    //    - Throws IOException if out throws it
+    // Notes:
+    //    - The children of a node are written in the order of the tree, and
+    //      the walk follows the parent and sibling links, so no stack is needed
+    public void write(ConsensusTree tree) throws IOException {
+        if(tree == null || tree.getFirstChild(0) < 0)
+            return;
+        int v = 0;
+        while(true) {
+            // Down to the first leaf of v
+            while(!tree.isLeaf(v)) {
+                this.out.append('(');
+                v = tree.getFirstChild(v);
+            }
+            this.out.append(tree.getSpecies(v).getName());
+
+            // Up past the last children, to the next sibling
+            while(v != 0 && tree.getNextSibling(v) < 0) {
+                v = tree.getParent(v);
+                this.out.append(')');
+                if(v != 0)
+                    appendNumber(tree.getSupport(v));
+            }
+            if(v == 0)
+                return;
+            this.out.append(',');
+            v = tree.getNextSibling(v);
+        }
+    }
+
+    // push
+    // Pre-conditions:
+    //    - stackSize is the number of pending nodes
+    // Post-conditions:
+    //    - node and action have been pushed, and the new stack size is returned
+    private int push(int stackSize, PhyloTreeNode node, byte action) {
+        if(stackSize == this.nodeStack.length) {
+            this.nodeStack = Arrays.copyOf(this.nodeStack, 2 * stackSize);
+            this.actionStack = Arrays.copyOf(this.actionStack, 2 * stackSize);
+        }
+        this.nodeStack[stackSize] = node;
+        this.actionStack[stackSize] = action;
+        return stackSize + 1;
+    }
+
+    // appendLength
+    // Pre-conditions:
+    //    - length is an edge weight
+    // Post-conditions:
+    //    - ":" and the length rounded to 4 decimals have been appended
+    private void appendLength(double length) throws IOException {
+        this.out.append(':');
+        appendNumber(length);
+        return;
+    }
+
+    // appendNumber
+    // Pre-conditions:
+    //    - value is a finite number
+    // Post-conditions:
+    //    - value rounded to 4 decimals has been appended as Double.toString
+    //      prints it
+    // Notes:
+    //    - Double.toString(k/10000.0) is the shortest decimal that rounds to
+    //      the double, which for 10 <= k < 10^11 is k/10^4 itself written
+    //      without trailing zeros, so the digits of k can be printed directly.
+    //      Smaller and larger values use scientific notation and go through
+    //      Double.toString.
+    private void appendNumber(double value) throws IOException {
+        long scaled = Math.round(value * 10000.0);
+        long magnitude = Math.abs(scaled);
+        if(magnitude == 0) {
+            this.out.append("0.0");
+            return;
+        }
+        if(magnitude < 10 || magnitude >= 100000000000L) {
+            this.out.append(Double.toString(scaled / 10000.0));
+            return;
+        }
+
+        // Digits of the fraction, least significant first, without trailing zeros
+        int numDigits = 0;
+        long fraction = magnitude % 10000;
+        int skipped = 0;
+        while(skipped < 3 && fraction % 10 == 0) {
+            fraction /= 10;
+            skipped++;
+        }
+        for(int i = skipped; i < 4; i++) {
+            this.digits[numDigits++] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        this.digits[numDigits++] = '.';
+        long whole = magnitude / 10000;
+        do {
+            this.digits[numDigits++] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while(whole > 0);
+        if(scaled < 0)
+            this.digits[numDigits++] = '-';
+
+        for(int i = numDigits - 1; i >= 0; i--)
+            this.out.append(this.digits[i]);
+        return;
+    }
+
+    // STATIC
+
+    // toString
+    // Pre-conditions:
+    //    - root is the root of a tree (or null for an empty tree)
+    // Post-conditions:
+    //    - Returns the Newick string of the tree
+    public static String toString(PhyloTreeNode root) {
+        int numLeafs = (root == null) ? 0 : root.getNumLeafs();
+        StringBuilder builder = new StringBuilder(24 * numLeafs);
+        try {
+            new NewickWriter(builder).write(root);
+        } catch(IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    // toString
+    // Pre-conditions:
+    //    - tree is a consensus tree (or null for no tree)
+    // Post-conditions:
+    //    - Returns the Newick string of the tree, with support values
+    public static String toString(ConsensusTree tree) {
+        int numNodes = (tree == null) ? 0 : tree.getNumNodes();
+        StringBuilder builder = new StringBuilder(16 * numNodes);
+        try {
+            new NewickWriter(builder).write(tree);
+        } catch(IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    // write
+    // Pre-conditions:
+    //    - root is the root of a tree (or null for an empty tree)
+    //    - channel is open for writing, e.g. a FileChannel
+    // Post-conditions:
+    //    - The UTF-8 Newick string of the tree has been written to channel
+    //    - Throws IOException if the channel cannot be written
+    public static void write(PhyloTreeNode root, WritableByteChannel channel) throws IOException {
+        Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 1 << 16);
+        new NewickWriter(writer).write(root);
+        writer.flush();
+        return;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * NodeNumbering.java
+ *
+ * Pre-order ids of the nodes of a built tree, shared by its indexes
+ *
+ * The nodes are numbered once, left subtree first, by an iterative
+ * traversal.  The CladeIndex, TreeMetrics and TreeQueryIndex of a tree all
+ * store their data in arrays by these ids, so the tree keeps one map from
+ * node to id instead of one per index.  Children have higher ids than
+ * their parent, and the ids of a subtree are contiguous.
+ *
+ * The map is owned by the numbering and never changes once it is built,
+ * so nodes shared with another tree keep their id in each numbering, and
+ * any number of threads can look ids up at the same time.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+public class NodeNumbering {
+    private PhyloTreeNode[] nodes;    // Nodes in pre-order
+    private int[] parent;             // Id of each node's parent (-1 for the root)
+    private IdentityHashMap<PhyloTreeNode,Integer> ids;   // Node -> id
+
+    // CONSTRUCTOR
+
+    // NodeNumbering
+    // Pre-conditions:
+    //    - root is the root of a tree (or null for an empty tree)
+    // Post-conditions:
+    //    - Every node of the tree has been given its pre-order id
+    public NodeNumbering(PhyloTreeNode root) {
+        int numNodes = (root == null) ? 0 : 2 * root.getNumLeafs() - 1;
+        this.nodes = new PhyloTreeNode[numNodes];
+        this.parent = new int[numNodes];
+        this.ids = new IdentityHashMap<PhyloTreeNode,Integer>(numNodes);
+        if(root == null)
+            return;
+
+        PhyloTreeNode[] nodeStack = new PhyloTreeNode[64];
+        int[] parentStack = new int[64];
+        int stackSize = 0;
+        int numSeen = 0;
+        nodeStack[stackSize] = root;
+        parentStack[stackSize++] = -1;
+        while(stackSize > 0) {
+            stackSize--;
+            PhyloTreeNode node = nodeStack[stackSize];
+            if(numSeen == this.nodes.length) {
+                // Only for trees that are not strictly binary
+                this.nodes = Arrays.copyOf(this.nodes, 2 * numSeen + 1);
+                this.parent = Arrays.copyOf(this.parent, this.nodes.length);
+            }
+            int id = numSeen++;
+            this.nodes[id] = node;
+            this.parent[id] = parentStack[stackSize];
+            this.ids.put(node, id);
+
+            if(stackSize + 2 > nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+                parentStack = Arrays.copyOf(parentStack, nodeStack.length);
+            }
+            if(node.getRightChild() != null) {
+                nodeStack[stackSize] = node.getRightChild();
+                parentStack[stackSize++] = id;
+            }
+            if(node.getLeftChild() != null) {
+                nodeStack[stackSize] = node.getLeftChild();
+                parentStack[stackSize++] = id;
+            }
+        }
+        this.nodes = Arrays.copyOf(this.nodes, numSeen);
+        this.parent = Arrays.copyOf(this.parent, numSeen);
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of nodes
+    public int size() {
+        return this.nodes.length;
+    }
+
+    // getNode
+    // Pre-conditions:
+    //    - 0 <= id < size()
+    // Post-conditions:
+    //    - Returns the node with the given id
+    public PhyloTreeNode getNode(int id) {
+        return this.nodes[id];
+    }
+
+    // getParent
+    // Pre-conditions:
+    //    - 0 <= id < size()
+    // Post-conditions:
+    //    - Returns the id of the parent of node id, -1 for the root
+    public int getParent(int id) {
+        return this.parent[id];
+    }
+
+    // getId
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - Returns the pre-order id of node
+    //    - Throws IllegalArgumentException if node is not in the tree
+    public int getId(PhyloTreeNode node) {
+        Integer id = this.ids.get(node);
+        if(id == null)
+            throw new IllegalArgumentException("The node is not in the tree");
+        return id;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * PackedSequence.java
+ *
+ * Compact storage for an aligned biological sequence
+ *
+ * Every residue is encoded in one byte and eight residues are packed into
+ * each long, so a sequence costs about one byte per residue instead of a
+ * String object per residue.  Two packed sequences are compared a word at a
+ * time: the XOR of two words is zero in exactly the bytes where the residues
+ * match, and the non-zero bytes are counted with a couple of mask operations
+ * and a single Long.bitCount (a hardware popcount on current JVMs).
+ *
+ * Residues that are single ASCII characters are stored as their character
+ * code.  Any other residue string is given a code from 128 upwards the first
+ * time it is seen, so equal residue strings always get equal codes.
+ *
+ */
+
+import java.util.HashMap;
+
+public class PackedSequence {
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static volatile String[] residueStrings;                       // Code -> residue string (copied on write)
+    private static final HashMap<String,Integer> extraCodes = new HashMap<String,Integer>();
+    private static int nextExtraCode = 128;
+
+    static {
+        String[] strings = new String[256];
+        for(int c=0; c < 128; c++)
+            strings[c] = String.valueOf((char) c);
+        residueStrings = strings;
+    }
+
+    private long[] words;      // The residues, eight per word, first residue in the low byte
+    private int length;        // The number of residues
+
+    // CONSTRUCTORS
+
+    // PackedSequence
+    // Pre-conditions:
+    //    - residues holds at least offset+length encoded residues
+    // Post-conditions:
+    //    - A packed copy of residues[offset .. offset+length-1] has been created
+    public PackedSequence(byte[] residues, int offset, int length) {
+        this.length = length;
+        this.words = new long[(length + 7) / 8];
+        for(int i=0; i < length; i++)
+            this.words[i >>> 3] |= (residues[offset + i] & 0xFFL) << ((i & 7) << 3);
+        return;
+    }
+
+    // PackedSequence
+    // Pre-conditions:
+    //    - residues holds the encoded residues
+    // Post-conditions:
+    //    - A packed copy of residues has been created
+    public PackedSequence(byte[] residues) {
+        this(residues, 0, residues.length);
+    }
+
+    // PackedSequence
+    // Pre-conditions:
+    //    - sequence is an array of strings, where each string is a single
+    //      residue in the sequence (the layout used by Species)
+    // Post-conditions:
+    //    - A packed copy of sequence has been created
+    public PackedSequence(String[] sequence) {
+        this(encode(sequence));
+    }
+
+    // ACCESSORS
+
+    // length
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of residues
+    public int length() {
+        return this.length;
+    }
+
+    // residueAt
+    // Pre-conditions:
+    //    - 0 <= i < length()
+    // Post-conditions:
+    //    - Returns the code of the i-th residue
+    public byte residueAt(int i) {
+        return (byte) (this.words[i >>> 3] >>> ((i & 7) << 3));
+    }
+
+    // toStrings
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the sequence as an array of one-residue strings
+    // Notes:
+    //    - The strings are shared, but the array is built on every call
+    //    - The code table is read once without a lock: extraCode publishes
+    //      a new table instead of writing into the one being read
+    public String[] toStrings() {
+        String[] strings = residueStrings;
+        String[] sequence = new String[this.length];
+        for(int i=0; i < this.length; i++)
+            sequence[i] = strings[residueAt(i) & 0xFF];
+        return sequence;
+    }
+
+    // STATIC
+
+    // mismatches
+    // Pre-conditions:
+    //    - a and b are two non-null sequences of the same length
+    // Post-conditions:
+    //    - Returns the number of positions where the residues differ
+    public static int mismatches(PackedSequence a, PackedSequence b) {
+        return mismatches(a, b, 0, a.words.length);
+    }
+
+    // mismatches
+    // Pre-conditions:
+    //    - a and b are two non-null sequences of the same length
+    //    - 0 <= fromWord <= toWord <= (length + 7) / 8
+    // Post-conditions:
+    //    - Returns the number of positions where the residues differ among
+    //      the positions 8*fromWord .. 8*toWord-1
+    public static int mismatches(PackedSequence a, PackedSequence b, int fromWord, int toWord) {
+        long[] words1 = a.words;
+        long[] words2 = b.words;
+        int numDiffs = 0;
+        for(int i = fromWord; i < toWord; i++) {
+            long x = words1[i] ^ words2[i];
+            // The high bit of every byte of t is set when that byte of x is non-zero
+            long t = ((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x;
+            numDiffs += Long.bitCount(t & HIGH_BITS);
+        }
+        return numDiffs;
+    }
+
+    // encode
+    // Pre-conditions:
+    //    - sequence is an array of one-residue strings
+    // Post-conditions:
+    //    - Returns the residue codes of sequence
+    public static byte[] encode(String[] sequence) {
+        byte[] residues = new byte[sequence.length];
+        for(int i=0; i < sequence.length; i++) {
+            String residue = sequence[i];
+            if(residue.length() == 1 && residue.charAt(0) < 128)
+                residues[i] = (byte) residue.charAt(0);
+            else
+                residues[i] = (byte) extraCode(residue);
+        }
+        return residues;
+    }
+
+    // extraCode
+    // Pre-conditions:
+    //    - residue is not a single ASCII character
+    // Post-conditions:
+    //    - Returns the code assigned to residue, assigning a new one if needed
+    //    - If more than 128 such residues are seen, an error is printed and the program exits
+    private static synchronized int extraCode(String residue) {
+        Integer code = extraCodes.get(residue);
+        if(code == null) {
+            if(nextExtraCode > 255) {
+                System.err.println("Error: Too many distinct residues in the sequences");
+                System.exit(5);
+            }
+            code = nextExtraCode++;
+            extraCodes.put(residue, code);
+            String[] strings = residueStrings.clone();
+            strings[code] = residue;
+            residueStrings = strings;
+        }
+        return code;
+    }
+}
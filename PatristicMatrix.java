@@ -0,0 +1,258 @@
+/*
+ * PatristicMatrix.java
+ *
+ * All-pairs patristic (path length) distances between the leaves of a
+ * tree, computed in O(n^2) total instead of one ancestor lookup and two
+ * path walks per pair
+ *
+ * The leaves are numbered in pre-order, so the leaves of every subtree are
+ * a contiguous range of positions.  The nodes are visited in post-order,
+ * keeping for every leaf below the current node the sum of the edge
+ * weights from the leaf up to that node.  At a non-terminal u, the weight
+ * of the edge to each child is added to the sums of the leaves of that
+ * child, and every pair with one leaf in each child, whose path turns at
+ * u, gets the sum of its two leaves' sums.  The weights are added one by
+ * one from the leaves up, in the order TreeQueryIndex.pathSumDistance adds
+ * them, so every distance is bit-identical to findEvolutionaryDistance.
+ *
+ * Different non-terminals fill different pairs, and disjoint subtrees
+ * touch disjoint leaf sums, so the two subtrees of a node are filled in
+ * parallel on a ForkJoinPool, as are the rows of a large block of pairs.
+ *
+ * The distance of a species to itself is, as findEvolutionaryDistance
+ * has always computed it, twice the weight of the edge above its leaf.
+ *
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class PatristicMatrix {
+    private static final int MIN_TASK_LEAFS = 256;       // Smaller subtrees are filled on one thread
+    private static final long MIN_TASK_PAIRS = 1 << 16;  // Smaller blocks of pairs are filled on one thread
+
+    private CompactTree tree;             // Tree being measured (only used while filling)
+    private int[] leafStart;              // Position of the first leaf of each node's subtree
+    private int[] leafEnd;                // Position after the last leaf of each node's subtree
+    private double[] sumToNode;           // Edge weights from each leaf up to the node being joined
+    private DistanceMatrix distances;     // Distances between different leaves, by position
+    private double[] diagonal;            // Distance of each leaf to itself
+
+    // CONSTRUCTOR
+
+    // PatristicMatrix
+    // Pre-conditions:
+    //    - tree is a strictly binary tree
+    //    - parallelism is a positive number
+    // Post-conditions:
+    //    - The distances between all leaves of tree have been computed, the
+    //      leaves numbered as in tree.getSpecies()
+    //    - If the matrix would not fit in a Java array, an error is printed and the program exits
+    public PatristicMatrix(CompactTree tree, int parallelism) {
+        int n = tree.getNumLeafs();
+        this.tree = tree;
+        this.distances = new DistanceMatrix(n);
+        this.diagonal = new double[n];
+        this.sumToNode = new double[n];
+        if(n > 0) {
+            numberLeafs();
+            if(parallelism == 1 || n <= MIN_TASK_LEAFS) {
+                fillSubtree(0);
+            }
+            else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    pool.invoke(new SubtreeTask(0));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        this.tree = null;
+        this.leafStart = null;
+        this.leafEnd = null;
+        this.sumToNode = null;
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of leaves
+    public int size() {
+        return this.diagonal.length;
+    }
+
+    // get
+    // Pre-conditions:
+    //    - i and j are leaf positions below size()
+    // Post-conditions:
+    //    - Returns the sum of the edge weights on the path between leaves i
+    //      and j (for i == j, twice the weight of the edge above the leaf)
+    public double get(int i, int j) {
+        if(i == j)
+            return this.diagonal[i];
+        return this.distances.get(i, j);
+    }
+
+    // MODIFIER
+
+    // set
+    // Pre-conditions:
+    //    - i and j are leaf positions below size()
+    // Post-conditions:
+    //    - The distance between i and j (and between j and i) is distance
+    public void set(int i, int j, double distance) {
+        if(i == j)
+            this.diagonal[i] = distance;
+        else
+            this.distances.set(i, j, distance);
+        return;
+    }
+
+    // numberLeafs
+    // Pre-conditions:
+    //    - The tree has at least one node
+    // Post-conditions:
+    //    - leafStart and leafEnd hold the leaf range of every node
+    //    - The distance of every leaf to itself has been stored
+    private void numberLeafs() {
+        int numNodes = this.tree.getNumNodes();
+        this.leafStart = new int[numNodes];
+        this.leafEnd = new int[numNodes];
+        int numSeen = 0;
+        for(int v=0; v < numNodes; v++) {
+            this.leafStart[v] = numSeen;
+            if(this.tree.isLeaf(v)) {
+                double weight = this.tree.getBranchLength(v);
+                this.diagonal[numSeen++] = weight + weight;
+            }
+        }
+        // Children have higher ids than their parent
+        for(int v = numNodes - 1; v >= 0; v--)
+            this.leafEnd[v] = this.tree.isLeaf(v) ? this.leafStart[v] + 1 : this.leafEnd[this.tree.getRightChild(v)];
+        return;
+    }
+
+    // fillSubtree
+    // Pre-conditions:
+    //    - v is a node id
+    // Post-conditions:
+    //    - The distances of every pair of leaves below v have been stored,
+    //      and sumToNode holds the weights from those leaves up to v
+    // Notes:
+    //    - The subtree is the ids v .. v + 2*(number of leaves) - 2, and going
+    //      through them from the highest id down is a post-order
+    private void fillSubtree(int v) {
+        int end = v + 2 * (this.leafEnd[v] - this.leafStart[v]) - 1;
+        for(int u = end - 1; u >= v; u--) {
+            if(!this.tree.isLeaf(u))
+                join(u);
+        }
+        return;
+    }
+
+    // join
+    // Pre-conditions:
+    //    - u is a non-terminal whose subtrees have been filled
+    // Post-conditions:
+    //    - The sums of the leaves of both subtrees reach up to u
+    //    - The distances of the pairs whose path turns at u have been stored
+    private void join(int u) {
+        int left = this.tree.getLeftChild(u);
+        addEdge(left);
+        addEdge(this.tree.getRightChild(u));
+        fillPairs(u, this.leafStart[left], this.leafEnd[left]);
+        return;
+    }
+
+    // addEdge
+    // Pre-conditions:
+    //    - child is a node whose subtree has been filled
+    // Post-conditions:
+    //    - The weight of the edge above child has been added to the sums of
+    //      the leaves below it
+    private void addEdge(int child) {
+        double weight = this.tree.getBranchLength(child);
+        for(int a = this.leafStart[child]; a < this.leafEnd[child]; a++)
+            this.sumToNode[a] += weight;
+        return;
+    }
+
+    // fillPairs
+    // Pre-conditions:
+    //    - The sums of the leaves below u reach up to u
+    //    - firstRow .. lastRow-1 are leaf positions of the left subtree of u
+    // Post-conditions:
+    //    - The distances from the given rows to the leaves of the right
+    //      subtree of u have been stored
+    private void fillPairs(int u, int firstRow, int lastRow) {
+        int right = this.tree.getRightChild(u);
+        int firstColumn = this.leafStart[right];
+        int lastColumn = this.leafEnd[right];
+        for(int a = firstRow; a < lastRow; a++) {
+            double sumA = this.sumToNode[a];
+            for(int b = firstColumn; b < lastColumn; b++)
+                this.distances.set(a, b, sumA + this.sumToNode[b]);
+        }
+        return;
+    }
+
+    // SubtreeTask
+    // Fork/join task filling the subtree of a node: both subtrees in
+    // parallel, then the pairs joined at the node
+    private class SubtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int node;
+
+        SubtreeTask(int node) {
+            this.node = node;
+        }
+
+        protected void compute() {
+            int v = this.node;
+            if(leafEnd[v] - leafStart[v] <= MIN_TASK_LEAFS) {
+                fillSubtree(v);
+                return;
+            }
+            int left = tree.getLeftChild(v);
+            invokeAll(new SubtreeTask(left), new SubtreeTask(tree.getRightChild(v)));
+            addEdge(left);
+            addEdge(tree.getRightChild(v));
+            new PairTask(v, leafStart[left], leafEnd[left]).compute();
+        }
+    }
+
+    // PairTask
+    // Fork/join task filling the pairs joined at a node from a range of
+    // rows, split in halves until the block is small
+    private class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int node;
+        private int firstRow;
+        private int lastRow;
+
+        PairTask(int node, int firstRow, int lastRow) {
+            this.node = node;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            int right = tree.getRightChild(this.node);
+            long numPairs = (long) (this.lastRow - this.firstRow) * (leafEnd[right] - leafStart[right]);
+            if(this.lastRow - this.firstRow <= 1 || numPairs <= MIN_TASK_PAIRS) {
+                fillPairs(this.node, this.firstRow, this.lastRow);
+                return;
+            }
+            int middle = (this.firstRow + this.lastRow) >>> 1;
+            invokeAll(new PairTask(this.node, this.firstRow, middle),
+                      new PairTask(this.node, middle, this.lastRow));
+        }
+    }
+}
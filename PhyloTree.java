@@ -4,8 +4,9 @@
  * Defines a phylogenetic tree, which is a strictly binary tree 
  * that represents inferred hierarchical relationships between species
  * 
- * There are weights along each edge; the weight from parent to left child
- * is the same as parent to right child.
+ * There are weights along each edge; in a UPGMA tree the weight from parent
+ * to left child is the same as parent to right child, in a neighbor-joining
+ * tree they can differ.
  *
  * Students may only use functionality provided in the packages
  *     java.lang
@@ -29,7 +30,6 @@ import java.lang.Math;
 import java.nio.file.Paths;
 import java.util.TreeMap;
 import java.io.Reader;
-import java.util.Stack;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.Scanner;
@@ -38,9 +38,19 @@ import java.util.Arrays;
 
 
 public class PhyloTree {
-    private PhyloTreeNode overallRoot;    // The actual root of the overall tree
+    private PhyloTreeNode overallRoot;    // The actual root of the overall tree (built on first use in compact builds)
+    private CompactTree compactTree;      // Struct-of-arrays layout of the tree (compact builds only)
     private int printingDepth;            // How many spaces to indent the deepest 
                                           // node when printing
+    private BuildOptions options;         // Settings used to build the tree
+    private NodeNumbering numbering;      // Pre-order ids of the nodes, shared by the indexes (built with the tree)
+    private TreeQueryIndex queryIndex;    // Label / ancestor / distance index (built on first query)
+    private TreeMetrics metrics;          // Heights and depths of every node (built with the tree)
+    private CladeIndex cladeIndex;        // Leaf interval of every clade (built on first use)
+    private Species[] leafSpecies;        // Species of the leaves, in clustering order
+    private DistanceMatrix leafDistances; // Distances between leafSpecies (incremental builds only)
+    private UpgmaClusterer.MergeHistory mergeHistory;  // Merges of the last clustering (incremental builds only)
+    private BuildMetrics buildMetrics;    // Phase timers and counters of the build
 
     // CONSTRUCTOR
 
@@ -61,10 +71,52 @@ public class PhyloTree {
     //          and exit with status (return code) 1
     //        - Most of this should be accomplished by calls to loadSpeciesFile and buildTree
     public PhyloTree(String speciesFile, int printingDepth) {
-       
+        this(speciesFile, printingDepth, new BuildOptions());
+    }
+
+    // PhyloTree
+    // Pre-conditions:
+    //        - speciesFile contains the path of a valid FASTA input file
+    //        - printingDepth is a positive number
+    //        - options holds the build settings (e.g. the distance matrix parallelism)
+    // Post-conditions:
+    //        - Same as the constructor above, built according to options
+    // Notes:
+    //        - If options has a TreeCache, the tree is read from it when the
+    //          file was built before with the same settings, and stored in
+    //          it otherwise; the distance matrix and the clustering are then
+    //          skipped on later runs
+    public PhyloTree(String speciesFile, int printingDepth, BuildOptions options) {
+        this.buildMetrics = new BuildMetrics(new java.io.File(speciesFile).getName());
+        this.buildMetrics.begin(BuildMetrics.Phase.PARSE);
         Species[] arrayList = loadSpeciesFile(speciesFile);
+        this.buildMetrics.end(BuildMetrics.Phase.PARSE);
+        this.buildMetrics.add(BuildMetrics.Counter.SEQUENCES, arrayList.length);
+        if(arrayList.length > 0)
+            this.buildMetrics.add(BuildMetrics.Counter.COLUMNS, arrayList[0].getPackedSequence().length());
         this.printingDepth = printingDepth;
+        this.options = options;
+        TreeCache cache = options.getCache();
+        if(cache == null) {
+            buildTree(arrayList);
+            return;
+        }
+
+        this.buildMetrics.begin(BuildMetrics.Phase.CACHE);
+        byte[] key = cache.key(speciesFile, options);
+        TreeCache.Entry entry = cache.load(key, arrayList, options.isIncremental());
+        this.buildMetrics.end(BuildMetrics.Phase.CACHE);
+        if(entry != null) {
+            this.buildMetrics.add(BuildMetrics.Counter.CACHE_HITS, 1);
+            restoreTree(arrayList, entry);
+            return;
+        }
         buildTree(arrayList);
+        this.buildMetrics.begin(BuildMetrics.Phase.CACHE);
+        cache.store(key, this.leafSpecies, this.leafDistances, getOverallRoot());
+        this.buildMetrics.end(BuildMetrics.Phase.CACHE);
+        if(!options.isIncremental())
+            this.leafDistances = null;
         return;
     }
 
@@ -75,7 +127,12 @@ public class PhyloTree {
     //    - None
     // Post-conditions:
     //    - Returns the overall root
+    // Notes:
+    //    - In a compact build (BuildOptions.setCompact) the PhyloTreeNodes of
+    //      the tree are created by the first call
     public PhyloTreeNode getOverallRoot() {
+        if(this.overallRoot == null && this.compactTree != null && this.compactTree.getNumNodes() > 0)
+            this.overallRoot = this.compactTree.getNode(0);
         return this.overallRoot;
     }
 
@@ -89,8 +146,21 @@ public class PhyloTree {
     //        (it will be a kind of reverse in-order [RNL] traversal)
     //    - Can be a simple wrapper around the following toString
     //    - Hint: StringBuilder is much faster than repeated concatenation
+    //    - The lines are rendered by TreeRenderer, in one iterative pass
     public String toString() {
-        return "";
+        return new TreeRenderer(getOverallRoot(), this.printingDepth).toString();
+    }
+
+    // writeString
+    // Pre-conditions:
+    //    - out is where the tree should be written
+    // Post-conditions:
+    //    - The same string as toString has been appended to out, without
+    //      building it in memory first
+    //    - Throws IOException if out throws it
+    public void writeString(Appendable out) throws IOException {
+        new TreeRenderer(getOverallRoot(), this.printingDepth).write(out);
+        return;
     }
 
     // toString 
@@ -104,7 +174,7 @@ public class PhyloTree {
     // Notes:
     //    - See assignment description for proper format
     private String toString(PhyloTreeNode node, double weightedDepth, double maxDepth) {
-        return "";
+        return new TreeRenderer(node, this.printingDepth, weightedDepth, maxDepth).toString();
     }
 
     // toTreeString 
@@ -117,7 +187,7 @@ public class PhyloTree {
     //    - Can be a simple wrapper around the following toTreeString
     public String toTreeString() {
     
-        return toTreeString(this.overallRoot);
+        return toTreeString(getOverallRoot());
     }
 
     // toTreeString 
@@ -128,22 +198,19 @@ public class PhyloTree {
     // Notes:
     //    - See assignment description for proper format
     private String toTreeString(PhyloTreeNode node) {
-        StringBuilder treeBuilder = new StringBuilder();
-        if(node.isLeaf() == true && node.getParent() != null) 
-            treeBuilder.append(node.getLabel()+":"+ Math.round(node.getParent().getDistanceToChild()*10000.0)/10000.0);
-        else{
-            treeBuilder.append("(");
-            treeBuilder.append(toTreeString(node.getRightChild()));    
-            treeBuilder.append(",");
-            treeBuilder.append(toTreeString(node.getLeftChild()));
-            if(node.getParent() != null){
-                treeBuilder.append("):");
-                treeBuilder.append(Math.round(node.getParent().getDistanceToChild()*10000.0)/10000.0);
-            }
-            else
-                treeBuilder.append(")");   
-        }
-        return treeBuilder.toString();
+        return NewickWriter.toString(node);
+    }
+
+    // writeTreeString
+    // Pre-conditions:
+    //    - out is where the tree should be written
+    // Post-conditions:
+    //    - The same string as toTreeString has been appended to out, without
+    //      building it in memory first
+    //    - Throws IOException if out throws it
+    public void writeTreeString(Appendable out) throws IOException {
+        new NewickWriter(out).write(getOverallRoot());
+        return;
     }
 
     // getHeight
@@ -153,8 +220,9 @@ public class PhyloTree {
     //    - Returns the tree height as defined in class
     // Notes:
     //    - Can be a simple wrapper on nodeHeight
+    //    - O(1): the height is read from the metrics computed at build time
     public int getHeight() {
-        return nodeHeight(this.overallRoot);
+        return getMetrics().getHeight();
     }
 
     // getWeightedHeight
@@ -166,8 +234,65 @@ public class PhyloTree {
     //      to any leaf node.
     // Notes:
     //   - Can be a simple wrapper for weightedNodeHeight
+    //   - O(1): the height is read from the metrics computed at build time
     public double getWeightedHeight() {
-        return weightedNodeHeight(this.overallRoot);
+        return getMetrics().getWeightedHeight();
+    }
+
+    // getHeight
+    // Pre-conditions:
+    //    - node is null or a node of the tree
+    // Post-conditions:
+    //    - If null: returns -1
+    //    - Else: returns the height of the subtree rooted at node
+    // Notes:
+    //    - O(1): read from the metrics computed at build time
+    public int getHeight(PhyloTreeNode node) {
+        if(node == null)
+            return -1;
+        return getMetrics().getHeight(node);
+    }
+
+    // getWeightedHeight
+    // Pre-conditions:
+    //    - node is null or a node of the tree
+    // Post-conditions:
+    //    - If null: returns NEGATIVE_INFINITY
+    //    - Else: returns the weighted height of the subtree rooted at node
+    // Notes:
+    //    - O(1): read from the metrics computed at build time
+    public double getWeightedHeight(PhyloTreeNode node) {
+        if(node == null)
+            return Double.NEGATIVE_INFINITY;
+        return getMetrics().getWeightedHeight(node);
+    }
+
+    // getDepth
+    // Pre-conditions:
+    //    - node is null or a node of the tree
+    // Post-conditions:
+    //    - If null: returns -1
+    //    - Else: returns the number of edges from the root to node
+    // Notes:
+    //    - O(1): read from the metrics computed at build time
+    public int getDepth(PhyloTreeNode node) {
+        if(node == null)
+            return -1;
+        return getMetrics().getDepth(node);
+    }
+
+    // getWeightedDepth
+    // Pre-conditions:
+    //    - node is null or a node of the tree
+    // Post-conditions:
+    //    - If null: returns NEGATIVE_INFINITY
+    //    - Else: returns the sum of the edge weights from the root to node
+    // Notes:
+    //    - O(1): read from the metrics computed at build time
+    public double getWeightedDepth(PhyloTreeNode node) {
+        if(node == null)
+            return Double.NEGATIVE_INFINITY;
+        return getMetrics().getWeightedDepth(node);
     }
 
     // countAllSpecies
@@ -180,7 +305,9 @@ public class PhyloTree {
     //    - This functionality is provided for you elsewhere
     //      just call the appropriate method
     public int countAllSpecies() {
-        return this.overallRoot.getNumLeafs();
+        if(this.compactTree != null)
+            return this.compactTree.getNumLeafs();
+        return getOverallRoot().getNumLeafs();
     }
 
     // getAllSpecies
@@ -190,23 +317,9 @@ public class PhyloTree {
     //    - Returns an ArrayList containing all species in the tree
     // Notes:
     //    - Non-terminals do not represent species
+    //    - The species are copied from the clade index, in pre-order
     public java.util.ArrayList<Species> getAllSpecies() {
-        
-        ArrayList<Species> allSpecies = new ArrayList<Species>();
-        Stack<PhyloTreeNode> nodeStack = new Stack<PhyloTreeNode>();
-        nodeStack.add(this.overallRoot);
-        // While the stack of nodes is not empty, check if it is a leaf and then add it to an ArrayList
-        while(!nodeStack.empty()) {
-            PhyloTreeNode node = nodeStack.pop();
-            if(node.isLeaf()){
-                allSpecies.add(node.getSpecies());
-            }
-            if(node.getRightChild() != null)
-                nodeStack.push(node.getRightChild());
-            if(node.getLeftChild() != null)
-                nodeStack.push(node.getLeftChild());
-        }
-        return allSpecies;
+        return new ArrayList<Species>(getCladeIndex().getAllSpecies());
     }
 
     // findTreeNodeByLabel
@@ -217,7 +330,7 @@ public class PhyloTree {
     //    - If found: returns the PhyloTreeNode with the specified label
     //    - If not found: returns null
     public PhyloTreeNode findTreeNodeByLabel(String label) {
-        return findTreeNodeByLabel(this.overallRoot, label);
+        return getQueryIndex().findNode(label);
     }
 
     // findLeastCommonAncestor
@@ -231,12 +344,12 @@ public class PhyloTree {
     //      is the only node in the tree where A is in the left tree
     //      and B is in the right tree (or vice-versa)
     // Notes:
-    //    - Can be a wrapper around the static findLeastCommonAncestor
+    //    - Answered in O(1) by the query index
     public PhyloTreeNode findLeastCommonAncestor(String label1, String label2) {
         PhyloTreeNode node1 = findTreeNodeByLabel(label1);
         PhyloTreeNode node2 = findTreeNodeByLabel(label2);
         
-        return findLeastCommonAncestor(node1, node2);
+        return getQueryIndex().commonProperAncestor(node1, node2);
     }
     
     // findEvolutionaryDistance
@@ -247,31 +360,150 @@ public class PhyloTree {
     //    - If both nodes can be found: returns the sum of the weights 
     //      along the paths from their least common ancestor to each of
     //      the two nodes
+    // Notes:
+    //    - The nodes and their ancestor are found in O(1) by the query index,
+    //      the weights are then added along the two paths so the result is
+    //      bit-identical to previous versions (see TreeQueryIndex.pathSumDistance)
     public double findEvolutionaryDistance(String label1, String label2) {
-        double weight1 = 0;
-        double weight2 = 0;
-
-        if(findTreeNodeByLabel(label1) == null || findTreeNodeByLabel(label2) == null)
-            return Double.POSITIVE_INFINITY;
+        return getQueryIndex().pathSumDistance(label1, label2);
+    }
 
-        PhyloTreeNode node1 = findTreeNodeByLabel(label1);
-        PhyloTreeNode node2 = findTreeNodeByLabel(label2);
-        PhyloTreeNode commonAncestor = findLeastCommonAncestor(label1, label2);
-        
-        if(node1 == commonAncestor)
-            return weight1;
-        if(node2 == commonAncestor)
-            return weight2;
-        
-        while(node1 != commonAncestor) {
-            node1 = node1.getParent();
-            weight1 += node1.getDistanceToChild();
-        } 
-        while(node2 != commonAncestor) {
-            node2 = node2.getParent();
-            weight2 += node2.getDistanceToChild();
+    // findAllEvolutionaryDistances
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns the matrix whose {i,j} entry is findEvolutionaryDistance
+    //      of the names of species i and j of getAllSpecies(), bit for bit
+    //    - If the matrix would not fit in a Java array, an error is printed and the program exits
+    // Notes:
+    //    - Computed in O(n^2) total by one traversal of the tree (see
+    //      PatristicMatrix), on the threads of the build options
+    //    - A name that does not lead to its own leaf (one shared by several
+    //      species, or equal to the label of a non-terminal) has its row
+    //      looked up pair by pair, as findEvolutionaryDistance does
+    public PatristicMatrix findAllEvolutionaryDistances() {
+        PatristicMatrix matrix = new PatristicMatrix(toCompactTree(), this.options.getParallelism());
+        List<Species> species = getCladeIndex().getAllSpecies();
+        for(int i=0; i < species.size(); i++) {
+            String name = species.get(i).getName();
+            PhyloTreeNode node = findTreeNodeByLabel(name);
+            if(node != null && node.isLeaf() && getCladeIndex().getLeafPosition(name) == i)
+                continue;
+            for(int j=0; j < species.size(); j++)
+                matrix.set(i, j, findEvolutionaryDistance(name, species.get(j).getName()));
         }
-        return weight1+weight2;
+        return matrix;
+    }
+
+    // findNearestRelatives
+    // Pre-conditions:
+    //    - k >= 0
+    // Post-conditions:
+    //    - If label is not the label of a species in the tree: returns null
+    //    - Else: returns the k other species closest to it by evolutionary
+    //      distance (all of them if there are fewer), closest first
+    // Notes:
+    //    - A best-first search outward from the species' leaf visits about
+    //      O(k log n) nodes instead of measuring every species (see
+    //      TreeQueryIndex.nearestRelatives)
+    public List<TreeQueryIndex.Relative> findNearestRelatives(String label, int k) {
+        return getQueryIndex().nearestRelatives(label, k);
+    }
+
+    // findNearestRelatives
+    // Pre-conditions:
+    //    - k >= 0
+    // Post-conditions:
+    //    - Returns, for each label in order, findNearestRelatives(label, k)
+    public List<List<TreeQueryIndex.Relative>> findNearestRelatives(List<String> labels, int k) {
+        TreeQueryIndex index = getQueryIndex();
+        ArrayList<List<TreeQueryIndex.Relative>> results = new ArrayList<List<TreeQueryIndex.Relative>>(labels.size());
+        for(String label : labels)
+            results.add(index.nearestRelatives(label, k));
+        return results;
+    }
+
+    // findRobinsonFouldsDistance
+    // Pre-conditions:
+    //    - other has been built
+    // Post-conditions:
+    //    - Returns the number of internal edges splitting the shared species
+    //      in a way found in only one of the two trees (0 for the same
+    //      unrooted topology)
+    // Notes:
+    //    - Species found in only one tree are left out; see Bipartitions,
+    //      whose distanceMatrix compares many trees at once
+    public int findRobinsonFouldsDistance(PhyloTree other) {
+        List<PhyloTree> trees = Arrays.asList(this, other);
+        Map<String,Integer> taxa = Bipartitions.sharedTaxa(trees);
+        return Bipartitions.distance(new Bipartitions(this, taxa), new Bipartitions(other, taxa));
+    }
+
+    // getQueryIndex
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns the query index of the tree, building it on the first call
+    public TreeQueryIndex getQueryIndex() {
+        if(this.queryIndex == null)
+            this.queryIndex = new TreeQueryIndex(getNumbering());
+        return this.queryIndex;
+    }
+
+    // toCompactTree
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns a struct-of-arrays copy of the tree, or the layout the
+    //      tree was built as in a compact build (it is immutable)
+    public CompactTree toCompactTree() {
+        if(this.compactTree != null)
+            return this.compactTree;
+        return new CompactTree(this.overallRoot);
+    }
+
+    // getCladeIndex
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns the clade index of the tree (leaf intervals, descendant
+    //      species and ancestor tests)
+    public CladeIndex getCladeIndex() {
+        if(this.cladeIndex == null)
+            this.cladeIndex = new CladeIndex(getNumbering());
+        return this.cladeIndex;
+    }
+
+    // getBuildMetrics
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the phase timers and counters of the build of this tree
+    public BuildMetrics getBuildMetrics() {
+        return this.buildMetrics;
+    }
+
+    // getMetrics
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns the height / depth side table of the tree
+    public TreeMetrics getMetrics() {
+        if(this.metrics == null)
+            this.metrics = new TreeMetrics(getNumbering());
+        return this.metrics;
+    }
+
+    // getNumbering
+    // Pre-conditions:
+    //    - The tree has been built
+    // Post-conditions:
+    //    - Returns the pre-order ids of the nodes, shared by the metrics,
+    //      clade and query indexes
+    public NodeNumbering getNumbering() {
+        if(this.numbering == null)
+            this.numbering = new NodeNumbering(getOverallRoot());
+        return this.numbering;
     }
      
     //findMinTreeDistance
@@ -280,6 +512,9 @@ public class PhyloTree {
     // Post-conditions:
     //      - Finds the two closest trees in the treeMap and makes a new PhyloTreeNode with those two trees
     //      - Computes the distances between a tree and the new tree
+    // Notes:
+    //      - If distanceMap is a DistanceMap, its distances are read and
+    //        written without boxing (see getDistance / putDistance)
     public void findMinTreeDistance(HashMap<String,PhyloTreeNode> treeMap, MultiKeyMap<Double> distanceMap) {
         double minDistance = 99999999.0;
         String leftChild = "";
@@ -290,7 +525,7 @@ public class PhyloTree {
             for(String tree2 : treeMap.keySet()) {
                 if(!tree1.equals(tree2)) {
                     // Get the current stored distance
-                    double currentDistance = (double) distanceMap.get(tree1, tree2);
+                    double currentDistance = getDistance(distanceMap, tree1, tree2);
 
                     // Check the minDistance
                     if (currentDistance < minDistance) {
@@ -331,12 +566,12 @@ public class PhyloTree {
             // If the name of the tree equals the leftchild and/or the rightchild then do nothing
             // otherwise calculate the distances between the trees
             if(!tree.equals(leftChild) && !tree.equals(rightChild)){
-                double distanceTiT = (double) distanceMap.get(leftChild, tree);
-                double distanceTjT = (double) distanceMap.get(rightChild, tree);
+                double distanceTiT = getDistance(distanceMap, leftChild, tree);
+                double distanceTjT = getDistance(distanceMap, rightChild, tree);
                 double iLeafs = (double) newNode.getLeftChild().getNumLeafs();
                 double jLeafs = (double) newNode.getRightChild().getNumLeafs();
                 double currentDistance = (distanceTiT*(iLeafs/(iLeafs + jLeafs))) + (distanceTjT*(jLeafs/(iLeafs + jLeafs)));
-                distanceMap.put(newNode.getLabel(), tree, currentDistance);
+                putDistance(distanceMap, newNode.getLabel(), tree, currentDistance);
             }
         }
 
@@ -348,6 +583,14 @@ public class PhyloTree {
         treeMap.remove(rightChild);
         if(treeMap.size() == 1) {
             this.overallRoot = newNode;
+            this.compactTree = null;
+            this.numbering = null;
+            this.queryIndex = null;
+            this.metrics = null;
+            this.cladeIndex = null;
+            this.leafSpecies = null;
+            this.leafDistances = null;
+            this.mergeHistory = null;
         }
     }
 
@@ -371,42 +614,188 @@ public class PhyloTree {
     //    - Important hint: although the distances are defined recursively, you
     //      do NOT want to implement them recursively, as that would be very inefficient
     private void buildTree(Species[] species) {
-        // Set each node of the Species array to a separate tree
-        int speciesLength = species.length;
-
-        //Create a multikeymap for the distances between the species and map of the trees
-        MultiKeyMap<Double> distanceMap = new MultiKeyMap<Double>();
-        HashMap<String, PhyloTreeNode> treeMap = new HashMap<String, PhyloTreeNode>();
-
-        // For the length of the species, get the first species and create a null-parent tree
-        // and put them in a HashMap of species string name and its PhyloTreeNode
-        for(int i=0; i < speciesLength; i++) {
-            Species a = species[i];
-            PhyloTreeNode newNode = new PhyloTreeNode(null, a);
-            treeMap.put(a.getName(), newNode);
-            
-            // For every other node in the list get the distances between a and b
-            for(int j=i+1; j < speciesLength; j++) {
-                Species b = species[j];
-                double distanceAB = Species.distance(a,b);
-                distanceMap.put(a.getName(), b.getName(), distanceAB);
+        // Compute the distances between every pair of species in parallel
+        this.buildMetrics.begin(BuildMetrics.Phase.DISTANCES);
+        DistanceMatrixBuilder builder = new DistanceMatrixBuilder(this.options);
+        DistanceMatrix distances = builder.build(species);
+        this.buildMetrics.end(BuildMetrics.Phase.DISTANCES);
+        this.buildMetrics.add(BuildMetrics.Counter.PATTERNS, builder.getNumPatterns());
+
+        // Repeatedly merge the closest trees until only the overall root is left
+        clusterSpecies(species, distances, null);
+        return;
+    }
+
+    // addSpecies
+    // Pre-conditions:
+    //    - The tree has been built
+    //    - added contains species aligned with the species of the tree, whose
+    //      names are not in the tree yet
+    // Post-conditions:
+    //    - The tree is the one that would have been built from the species of
+    //      the tree followed by the species of added
+    //    - If a name is already in the tree, an error is printed and the program exits
+    // Notes:
+    //    - If the tree was built with BuildOptions.setIncremental(true), only
+    //      the distances of the added species are computed, and the merges of
+    //      the previous build are replayed for as long as they provably come
+    //      before any merge involving an added species (see UpgmaClusterer.replay).
+    //      The rest of the clustering is then done as usual, so the result is
+    //      exactly that of a full rebuild.  A tree read from a TreeCache has
+    //      its distances but no merges, so it is only spared the distances,
+    //      and so is a neighbor-joining tree.
+    //    - Otherwise the tree is fully rebuilt
+    public void addSpecies(Species[] added) {
+        Species[] oldSpecies = (this.leafSpecies != null) ? this.leafSpecies : getAllSpecies().toArray(new Species[0]);
+        HashSet<String> names = new HashSet<String>();
+        for(Species species : oldSpecies)
+            names.add(species.getName());
+        for(Species species : added) {
+            if(!names.add(species.getName())) {
+                System.err.println("Error: Species " + species.getName() + " is already in the tree");
+                System.exit(7);
             }
         }
-        //While the tree's size is greater than 1 get the minimum distances between nodes in the tree
-        while(treeMap.size() > 1) {
-            findMinTreeDistance(treeMap, distanceMap);
+
+        Species[] species = Arrays.copyOf(oldSpecies, oldSpecies.length + added.length);
+        System.arraycopy(added, 0, species, oldSpecies.length, added.length);
+        if(this.leafDistances == null || this.leafSpecies == null) {
+            buildTree(species);
+            return;
+        }
+
+        this.buildMetrics.begin(BuildMetrics.Phase.DISTANCES);
+        DistanceMatrixBuilder builder = new DistanceMatrixBuilder(this.options);
+        DistanceMatrix distances = builder.extend(this.leafDistances, species);
+        this.buildMetrics.end(BuildMetrics.Phase.DISTANCES);
+        this.buildMetrics.add(BuildMetrics.Counter.PATTERNS, builder.getNumPatterns());
+        clusterSpecies(species, distances, this.mergeHistory);
+        return;
+    }
+
+    // addSpecies
+    // Pre-conditions:
+    //    - speciesFile contains the path of a valid FASTA input file
+    // Post-conditions:
+    //    - The species of speciesFile have been added as by addSpecies(Species[])
+    public void addSpecies(String speciesFile) {
+        addSpecies(loadSpeciesFile(speciesFile));
+        return;
+    }
+
+    // clusterSpecies
+    // Pre-conditions:
+    //    - distances holds the distances between species
+    //    - history is null, or the merges of the previous clustering, whose
+    //      species are the first species of the array
+    // Post-conditions:
+    //    - overallRoot is the root of the clustering of species, or in a
+    //      compact build compactTree is its layout and overallRoot is null
+    //    - The cached state of the tree has been reset or refreshed
+    private void clusterSpecies(Species[] species, DistanceMatrix distances, UpgmaClusterer.MergeHistory history) {
+        this.buildMetrics.begin(BuildMetrics.Phase.CLUSTER);
+        // The clusterer overwrites the distances, keep the leaf distances for
+        // addSpecies and the cache
+        boolean keepDistances = this.options.isIncremental() || this.options.getCache() != null;
+        this.leafDistances = keepDistances ? distances.copy() : null;
+        boolean compact = this.options.isCompact() && this.options.getClustering() == BuildOptions.Clustering.UPGMA;
+        this.overallRoot = null;
+        this.compactTree = null;
+        if(compact) {
+            // No PhyloTreeNode is created until the tree is asked for one
+            UpgmaClusterer clusterer = new UpgmaClusterer(species, distances);
+            if(history != null)
+                this.buildMetrics.add(BuildMetrics.Counter.REPLAYED_MERGES, clusterer.replay(history, this.leafSpecies.length));
+            this.compactTree = clusterer.clusterCompact();
+            this.buildMetrics.add(BuildMetrics.Counter.MERGES, clusterer.getNumMerges());
+            this.mergeHistory = this.options.isIncremental() ? clusterer.getMergeHistory() : null;
+        }
+        else {
+            // Set each node of the Species array to a separate tree
+            int speciesLength = species.length;
+            PhyloTreeNode[] leaves = new PhyloTreeNode[speciesLength];
+            for(int i=0; i < speciesLength; i++)
+                leaves[i] = new PhyloTreeNode(null, species[i]);
+            if(this.options.getClustering() == BuildOptions.Clustering.NEIGHBOR_JOINING) {
+                NeighborJoiner joiner = new NeighborJoiner(leaves, distances);
+                this.overallRoot = joiner.cluster();
+                this.buildMetrics.add(BuildMetrics.Counter.MERGES, joiner.getNumMerges());
+                this.mergeHistory = null;
+            }
+            else {
+                UpgmaClusterer clusterer = new UpgmaClusterer(leaves, distances);
+                if(history != null)
+                    this.buildMetrics.add(BuildMetrics.Counter.REPLAYED_MERGES, clusterer.replay(history, this.leafSpecies.length));
+                this.overallRoot = clusterer.cluster();
+                this.buildMetrics.add(BuildMetrics.Counter.MERGES, clusterer.getNumMerges());
+                this.mergeHistory = this.options.isIncremental() ? clusterer.getMergeHistory() : null;
+            }
         }
+        this.leafSpecies = species;
+        this.queryIndex = null;
+        this.cladeIndex = null;
+        // The node indexes of a compact build are built on first use
+        this.numbering = compact ? null : new NodeNumbering(this.overallRoot);
+        this.metrics = compact ? null : new TreeMetrics(this.numbering);
+        this.buildMetrics.end(BuildMetrics.Phase.CLUSTER);
+        return;
+    }
+
+    // restoreTree
+    // Pre-conditions:
+    //    - entry was read from the cache for species
+    // Post-conditions:
+    //    - overallRoot is the root of the cached tree
+    //    - The cached state of the tree has been reset, the distances of
+    //      entry being kept if the options are incremental
+    private void restoreTree(Species[] species, TreeCache.Entry entry) {
+        this.overallRoot = entry.getRoot();
+        this.compactTree = null;
+        this.leafSpecies = species;
+        this.leafDistances = this.options.isIncremental() ? entry.getDistances() : null;
+        this.mergeHistory = null;
+        this.numbering = new NodeNumbering(this.overallRoot);
+        this.queryIndex = null;
+        this.metrics = new TreeMetrics(this.numbering);
+        this.cladeIndex = null;
         return;
     }
 /***************************************************************************************************************************************************/
     // STATIC
 
+    // getDistance
+    // Pre-conditions:
+    //    - distanceMap holds a distance for {label1,label2}
+    // Post-conditions:
+    //    - Returns that distance, without boxing if distanceMap is a DistanceMap
+    private static double getDistance(MultiKeyMap<Double> distanceMap, String label1, String label2) {
+        if(distanceMap instanceof DistanceMap)
+            return ((DistanceMap) distanceMap).getDistance(label1, label2);
+        return (double) distanceMap.get(label1, label2);
+    }
+
+    // putDistance
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - {label1,label2} maps to distance, without boxing if distanceMap is a DistanceMap
+    private static void putDistance(MultiKeyMap<Double> distanceMap, String label1, String label2, double distance) {
+        if(distanceMap instanceof DistanceMap)
+            ((DistanceMap) distanceMap).putDistance(label1, label2, distance);
+        else
+            distanceMap.put(label1, label2, distance);
+        return;
+    }
+
     // nodeDepth
     // Pre-conditions:
     //    - node is null or the root of tree (possibly subtree)
     // Post-conditions:
     //    - If null: returns -1
     //    - Else: returns the depth of the node within the overall tree
+    // Notes:
+    //    - Legacy: walks the parent pointers, O(depth); use getDepth(node)
+    //      for the O(1) value of a node of a built tree
     public static int nodeDepth(PhyloTreeNode node) {
         int depth = 0;
 
@@ -428,40 +817,16 @@ public class PhyloTree {
     // Post-conditions:
     //    - If null: returns -1
     //    - Else: returns the height subtree rooted at node
+    // Notes:
+    //    - Legacy: one pass over the subtree, O(size of the subtree); use
+    //      getHeight(node) for the O(1) value of a node of a built tree
     public static int nodeHeight(PhyloTreeNode node) {
         if(node == null) {
             return -1;
         }
-        int maxHeight = 0;
-        PhyloTreeNode origRoot = node;
-        ArrayList<PhyloTreeNode> leafs = new ArrayList<PhyloTreeNode>();
-        Stack<PhyloTreeNode> nodeStack = new Stack<PhyloTreeNode>();
-        nodeStack.add(node);
-
-        // While the stack is not empty
-        while(!nodeStack.empty()) {
-            PhyloTreeNode currentNode = nodeStack.pop();
-            if(currentNode.getNumLeafs() == 1) {
-                leafs.add(currentNode);
-            }
-            if(currentNode.getLeftChild() != null)
-                nodeStack.push(currentNode.getRightChild());
-            if(currentNode.getLeftChild() != null)
-                nodeStack.push(currentNode.getLeftChild());
-        }
-
-        for(PhyloTreeNode nodeLeaf : leafs) {
-            int currentHeight = 0;
-            while(nodeLeaf != origRoot) {
-                nodeLeaf = nodeLeaf.getParent();
-                currentHeight++;
-            }
-            if(currentHeight > maxHeight)
-                maxHeight = currentHeight;
-        }
-
-        return maxHeight;
+        return (int) subtreeHeight(node, false);
     }
+
     // weightedNodeHeight 
     // Pre-conditions:
     //    - node is null or the root of tree (possibly subtree)
@@ -471,27 +836,72 @@ public class PhyloTree {
     //     (i.e. the sum of the largest weight path from node
     //     to a leaf; this might NOT be the same as the sum of the weights
     //     along the longest path from the node to a leaf)
+    // Notes:
+    //    - Legacy: one pass over the subtree, O(size of the subtree); use
+    //      getWeightedHeight(node) for the O(1) value of a node of a built tree
     public static double weightedNodeHeight(PhyloTreeNode node) {
-        double weightLeft = 0.0;
-        double weightRight = 0.0;
-        
         if(node == null)
             return Double.NEGATIVE_INFINITY;
-        
-        // If both the childs are not null then assign the weight and recursively go through the tree
-        if(node.getRightChild() != null && node.getLeftChild() != null) {
-            weightLeft = weightedNodeHeight(node.getLeftChild());
-            weightRight = weightedNodeHeight(node.getRightChild());
+        return subtreeHeight(node, true);
+    }
+
+    // subtreeHeight
+    // Pre-conditions:
+    //    - node is not null
+    // Post-conditions:
+    //    - Returns the height of the subtree rooted at node, or its weighted
+    //      height if weighted is true
+    // Notes:
+    //    - An iterative post-order pass keeping the heights of the children
+    //      on a stack, with the same expressions as TreeMetrics, so the
+    //      values are identical to the ones read by getHeight(node) and
+    //      getWeightedHeight(node)
+    private static double subtreeHeight(PhyloTreeNode node, boolean weighted) {
+        PhyloTreeNode[] nodeStack = new PhyloTreeNode[64];
+        boolean[] leaving = new boolean[64];
+        double[] heights = new double[64];
+        int stackSize = 0;
+        int numHeights = 0;
+        nodeStack[stackSize++] = node;
+        while(stackSize > 0) {
+            PhyloTreeNode current = nodeStack[--stackSize];
+            if(leaving[stackSize]) {
+                // The left child's height was pushed first
+                boolean hasLeft = current.getLeftChild() != null;
+                boolean hasRight = current.getRightChild() != null;
+                double right = hasRight ? heights[--numHeights] : 0.0;
+                double left = hasLeft ? heights[--numHeights] : 0.0;
+                double height = 0.0;
+                if(weighted) {
+                    height = Math.max(left + current.getDistanceToLeftChild(), right + current.getDistanceToRightChild());
+                }
+                else {
+                    if(hasLeft)
+                        height = left + 1;
+                    if(hasRight)
+                        height = Math.max(height, right + 1);
+                }
+                heights[numHeights++] = height;
+                continue;
+            }
+            if(stackSize + 3 > nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+                leaving = Arrays.copyOf(leaving, nodeStack.length);
+            }
+            if(numHeights + 2 > heights.length)
+                heights = Arrays.copyOf(heights, 2 * heights.length);
+            nodeStack[stackSize] = current;
+            leaving[stackSize++] = true;
+            if(current.getRightChild() != null) {
+                nodeStack[stackSize] = current.getRightChild();
+                leaving[stackSize++] = false;
+            }
+            if(current.getLeftChild() != null) {
+                nodeStack[stackSize] = current.getLeftChild();
+                leaving[stackSize++] = false;
+            }
         }
-        else if (node.getRightChild() == null && node.getLeftChild() != null) 
-            weightLeft = weightedNodeHeight(node.getLeftChild());
-        else if (node.getRightChild() != null && node.getLeftChild() == null) 
-            weightRight = weightedNodeHeight(node.getRightChild());
-
-        if(weightLeft > weightRight)
-            return weightLeft + node.getDistanceToChild(); 
-        return weightRight + node.getDistanceToChild();
-        
+        return heights[0];
     }
 
     // loadSpeciesFile
@@ -503,175 +913,18 @@ public class PhyloTree {
     // Notes:
     //    - Species without names are skipped
     //    - See assignment description for details on the FASTA format
-    // Hints:
-    //    - Because the bar character ("|") denotes OR, you need to escape it
-    //      if you want to use it to split a string, i.e. you can use "\\|" 
+    //    - The file is memory-mapped and parsed by FastaReader
    public static Species[] loadSpeciesFile(String filename) {
-
-        // Create a scanner and an Arraylist for the file data
-        ArrayList<Species> tempSpeciesArray = new ArrayList<Species>();
         Species[] speciesArray = null;
-        String[] speciesDNA;   //DNA sequence data for species
-        String speciesName = null;
-        String inputLine;
-        String[] speciesSection = null;
-        int count =0;
         try {
-            Scanner speciesData = new Scanner(Paths.get(filename));
-            Species newSpecies;
-            StringBuilder darwinBuilder = new StringBuilder();
-            
-            // While speciesData has a next line of input
-            inputLine = speciesData.nextLine();    
-            while(speciesData.hasNextLine()){ 
-                
-                if (inputLine.charAt(0)== '>') { 
-                    darwinBuilder = new StringBuilder();
-                    
-                    // Get the speciesName
-                    speciesSection = inputLine.split("\\|");
-                    if(speciesSection.length == 7)
-                        speciesName = speciesSection[6];
-                }
-                if(speciesSection.length == 7) {
-                    // If the char does not equal '>' append the lines to a StringBuilder
-                    if(inputLine.charAt(0) != '>' && speciesData.hasNextLine())                          
-                        darwinBuilder.append(inputLine);
-                
-                    // If there is another line, set inputline to be the next line
-                    if(speciesData.hasNextLine())
-                        inputLine = speciesData.nextLine();    
-                    
-                    // If at the end of file append the last line
-                    if(!speciesData.hasNextLine())
-                        darwinBuilder.append(inputLine);  
-                        
-                    // Convert the stringBuilder to a string and add the speciesSequence tp an array
-                    String speciesSequenceString = darwinBuilder.toString();
-                    speciesDNA = speciesSequenceString.split("");   
-                    speciesDNA = Arrays.copyOfRange(speciesDNA, 1, speciesDNA.length);
-                    
-                    // Create a new species and add it to a temporary species array
-                    if(inputLine.charAt(0) == '>' || !speciesData.hasNextLine()) {  
-                        newSpecies = new Species(speciesName, speciesDNA);
-                        tempSpeciesArray.add(newSpecies);
-                    }
-                }
-                // If the species does not have a name then get the next line
-                if(speciesSection.length != 7) {
-                    inputLine = speciesData.nextLine();
-                }
-            }
+            speciesArray = FastaReader.read(filename);
         // Catch block 
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Error: Not able to open file " + filename);
             System.exit(1);
         }
-        // Create an array that is suitable for the return
-        speciesArray = new Species[tempSpeciesArray.size()];
-        speciesArray = tempSpeciesArray.toArray(speciesArray);
-
         return speciesArray;
     }
 
-    // getAllDescendantSpecies
-    // Pre-conditions:
-    //    - node points to a node in a phylogenetic tree structure
-    //    - descendants is a non-null reference variable to an empty arraylist object
-    // Post-conditions:
-    //    - descendants is populated with all species in the subtree rooted at node
-    //      in in-/pre-/post-order (they are equivalent here)
-    private static void getAllDescendantSpecies(PhyloTreeNode node, java.util.ArrayList<Species> descendants) {
-        Stack<PhyloTreeNode> nodeStack = new Stack<PhyloTreeNode>();
-        nodeStack.add(node);
-        
-        // While the stack is not empty traverse the tree till you get to a leaf
-        // and add it to an ArrayList of Species
-        while(!nodeStack.isEmpty()) {
-            PhyloTreeNode currentNode = nodeStack.pop();
-            if(currentNode.isLeaf())
-                descendants.add(currentNode.getSpecies());
-            if(currentNode.getRightChild() != null)
-                nodeStack.push(currentNode.getRightChild());
-            if(currentNode.getLeftChild() != null)
-                nodeStack.push(currentNode.getLeftChild());
-        }
-        return;
-    }
-
-    // findTreeNodeByLabel
-    // Pre-conditions:
-    //    - node points to a node in a phylogenetic tree structure
-    //    - label is the label of a tree node that you intend to locate
-    // Post-conditions:
-    //    - If no node with the label exists in the subtree, return null
-    //    - Else: return the PhyloTreeNode with the specified label 
-    // Notes:
-    //    - Assumes labels are unique in the tree
-    //
-    private static PhyloTreeNode findTreeNodeByLabel(PhyloTreeNode node, String label) {
-        
-        // Push the root onto the stack
-        Stack<PhyloTreeNode> nodeStack = new Stack<PhyloTreeNode>();
-        nodeStack.add(node);
-
-        // While the stack is not empty traverse the tree till you find the label
-        while(!nodeStack.empty()) {
-            PhyloTreeNode currentNode = nodeStack.pop();
-            if(currentNode.getLabel().equals(label))
-                return currentNode;
-            if(currentNode.isLeaf()) {
-                if(currentNode.getSpecies().getName().equals(label))
-                    return currentNode;
-            }
-            if(currentNode.getRightChild() != null)
-                nodeStack.push(currentNode.getRightChild());
-            if(currentNode.getLeftChild() != null)
-                nodeStack.push(currentNode.getLeftChild());
-        }
-        return null;
-    }
-
-    // findLeastCommonAncestor
-    // Pre-conditions:
-    //    - node1 and node2 point to nodes in the phylogenetic tree
-    // Post-conditions:
-    //    - If node1 or node2 are null, return null
-    //    - Else: returns the PhyloTreeNode of their common ancestor 
-    //      with the largest depth
-    //SWITCH TO PRIVATE
-    private static PhyloTreeNode findLeastCommonAncestor(PhyloTreeNode node1, PhyloTreeNode node2) {
-        ArrayList<PhyloTreeNode> node1List = new ArrayList<PhyloTreeNode>();
-        ArrayList<PhyloTreeNode> node2List = new ArrayList<PhyloTreeNode>();
-
-        if(node1 == null || node2 == null)
-            return null;
-        // While the parent of the node is not null add it to a list
-        while(node1.getParent() != null){
-            node1List.add(node1.getParent());
-            node1 = node1.getParent();
-        }
-        // While the parent of the node is not null add it to a list
-        while(node2.getParent() != null){
-            node2List.add(node2.getParent());
-            node2 = node2.getParent();
-        }
-        // Find LCA (when both lists are the same size)
-        if(node1List.size() == node2List.size()) {
-            for(int i=0; i < node1List.size(); i++) {
-                if(node1List.get(i) == node2List.get(i)) 
-                    return node1List.get(i);
-            }
-        }
-        // Find LCA (when both lists are not the same size)
-        for(int i=0; i < node1List.size(); i++) {
-            for(int j=0; j < node2List.size(); j++) {
-                if(node1List.get(i) == node2List.get(j)) 
-                    return node1List.get(i);
-            }
-        }
-        return null;
-    }
-
 }
\ No newline at end of file
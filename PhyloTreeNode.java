@@ -15,9 +15,10 @@ public class PhyloTreeNode {
     private PhyloTreeNode parent;        // Reference variable for parent node (null for root)
     private PhyloTreeNode leftChild;     // Reference variable for left child (null if empty)
     private PhyloTreeNode rightChild;    // Reference variable for right child (null if empty)    
-    private String label;                // A unique string label for the species or non-terminal
+    private String label;                // A unique string label for the species or non-terminal (built on first use if null)
     private Species species;             // Reference variable for a species object (null for non-terminals)
     private double distanceToChild;      // Edge weight to left child (which is also the edge weight to the right child) (Use 0 for terminals)
+    private double distanceToRightChild; // Edge weight to right child, which only differs for trees that are not ultrametric
     private int numLeafs;                // Caches the # leaves in the tree -- can't change after Constructor
 
     // CONSTRUCTORS
@@ -55,6 +56,7 @@ public class PhyloTreeNode {
         this.leftChild = leftChild;
         this.rightChild = rightChild;
         this.distanceToChild = distanceToChild;
+        this.distanceToRightChild = distanceToChild;
         this.numLeafs = 0;
         if( leftChild != null ) {
             this.numLeafs += leftChild.getNumLeafs();
@@ -63,6 +65,33 @@ public class PhyloTreeNode {
             this.numLeafs += rightChild.getNumLeafs();
         }
     }
+
+    // PhyloTree - constructor for a non-terminal whose label is built on demand
+    // Pre-conditions:
+    //        - parent is a PhyloTreeNode (or null) to be the node's parent
+    //        - leftChild and rightChild are the (non-null) children
+    //        - distanceToChild is the edge weight from this new node to each of its children
+    // Post-conditions:
+    //        - A new non-terminal PhyloTree node is created, whose label
+    //          (leftlabel+"+"+rightlabel) is only built when getLabel is called
+    public PhyloTreeNode(PhyloTreeNode parent, PhyloTreeNode leftChild, PhyloTreeNode rightChild, double distanceToChild) {
+        this(null, parent, leftChild, rightChild, distanceToChild);
+    }
+
+    // PhyloTree - constructor for a non-terminal with different edge weights to its children
+    // Pre-conditions:
+    //        - parent is a PhyloTreeNode (or null) to be the node's parent
+    //        - leftChild and rightChild are the (non-null) children
+    //        - distanceToLeftChild and distanceToRightChild are the edge
+    //          weights from this new node to each child
+    // Post-conditions:
+    //      - A new non-terminal PhyloTree node is created, whose label is
+    //        built on demand; getDistanceToChild returns the weight to the left child
+    public PhyloTreeNode(PhyloTreeNode parent, PhyloTreeNode leftChild, PhyloTreeNode rightChild,
+                         double distanceToLeftChild, double distanceToRightChild) {
+        this(null, parent, leftChild, rightChild, distanceToLeftChild);
+        this.distanceToRightChild = distanceToRightChild;
+    }
     
     // ACCESSORS
 
@@ -98,7 +127,12 @@ public class PhyloTreeNode {
     //        - None
     // Post-conditions:
     //        - Returns the label
+    // Notes:
+    //        - A label left to be built on demand is built on the first call
+    //          and kept; the labels of the nodes below are not kept
     public String getLabel() {
+        if(this.label == null)
+            this.label = buildLabel();
         return this.label;
     }
 
@@ -120,6 +154,37 @@ public class PhyloTreeNode {
         return this.distanceToChild;
     }
 
+    // getDistanceToLeftChild
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the edge weight to the left child (0 for terminals)
+    public double getDistanceToLeftChild() {
+        return this.distanceToChild;
+    }
+
+    // getDistanceToRightChild
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the edge weight to the right child (0 for terminals)
+    public double getDistanceToRightChild() {
+        return this.distanceToRightChild;
+    }
+
+    // getBranchLength
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the edge weight from the parent to this node (0 for the root)
+    public double getBranchLength() {
+        if(this.parent == null)
+            return 0.0;
+        if(this.parent.rightChild == this)
+            return this.parent.distanceToRightChild;
+        return this.parent.distanceToChild;
+    }
+
     // getNumLeafs
     // Pre-conditions:
     //        - None
@@ -159,6 +224,33 @@ public class PhyloTreeNode {
         }
     }
 
+    // buildLabel
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns leftlabel+"+"+rightlabel, built from the labels of the
+    //          leaves (or of the nearest nodes that have one) in pre-order
+    private String buildLabel() {
+        StringBuilder label = new StringBuilder();
+        PhyloTreeNode[] nodeStack = new PhyloTreeNode[64];
+        int stackSize = 0;
+        nodeStack[stackSize++] = this;
+        while(stackSize > 0) {
+            PhyloTreeNode node = nodeStack[--stackSize];
+            if(node != this && node.label != null) {
+                if(label.length() > 0)
+                    label.append('+');
+                label.append(node.label);
+                continue;
+            }
+            if(stackSize + 2 > nodeStack.length)
+                nodeStack = java.util.Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+            nodeStack[stackSize++] = node.rightChild;
+            nodeStack[stackSize++] = node.leftChild;
+        }
+        return label.toString();
+    }
+
     // MODIFIER
 
     // setParent
@@ -16,12 +16,36 @@
  *
  * usage:
  *
- * java Program3 fastaListFilename outputDir
+ * java Program3 fastaListFilename outputDir [numWorkers] [distanceFormat] [cache=dir] [cachesize=MB]
+ *              [matrix=storage] [clustering=method] [metrics] [consensus]
  *
  * where the argument is
  * 
  *   fastaListFilename      a plaintext file with one line per FASTA alignment file
  *   outputDir              a directory where the trees and statistics will be written
+ *   numWorkers             optional; if given, the alignments are processed
+ *                          concurrently by this many workers (see BatchRunner)
+ *   distanceFormat         optional; evdistance (the default .distances file),
+ *                          phylip, triangular or binary (see DistanceWriter)
+ *   cache=dir              optional; trees are cached in dir, and alignments
+ *                          whose contents did not change since they were
+ *                          last built are not rebuilt (see TreeCache)
+ *   cachesize=MB           optional; size limit of the cache (default 1024)
+ *   matrix=storage         optional; where the distance matrix is stored: heap
+ *                          (the default), mapped (a memory-mapped temporary
+ *                          file, for alignments too large for the heap) or
+ *                          float (mapped float32, half the size, rounded)
+ *   clustering=method      optional; upgma (the default, which assumes a
+ *                          molecular clock) or nj (neighbor joining, see
+ *                          NeighborJoiner)
+ *   metrics                optional; a .metrics.json report of the time spent
+ *                          in each phase is also written per alignment (see
+ *                          BuildMetrics)
+ *   consensus              optional; the majority-rule consensus of all the
+ *                          trees, over the species found in every alignment
+ *                          and with the support of each clade, is also
+ *                          written to outputDir as consensus.tree (see
+ *                          ConsensusBuilder)
  *
  *
  * Note: This will not work unless your outputDir has already been created!
@@ -33,7 +57,7 @@ public class Program3 {
     private static final String slash = "/"; // You may need to change this to "\" on Windows...
 
     public static void main(String[] args) {
-        if( args.length != 2 ) {
+        if( args.length < 2 || args.length > 10 ) {
             System.err.println("Error: Wrong number of arguments.");
             System.exit(2);
         }
@@ -49,46 +73,268 @@ public class Program3 {
             System.exit(1);
         }
 
-        int numFiles = 0;
+        int numWorkers = 0;
+        DistanceWriter.Format distanceFormat = DistanceWriter.Format.EVDISTANCE;
+        String cacheDir = null;
+        long cacheMegabytes = 1024;
+        BuildOptions.MatrixStorage matrixStorage = BuildOptions.MatrixStorage.HEAP;
+        BuildOptions.Clustering clustering = BuildOptions.Clustering.UPGMA;
+        boolean metricsReport = false;
+        boolean consensusTree = false;
+        for( int i=2; i<args.length; i++ ) {
+            DistanceWriter.Format format = DistanceWriter.parseFormat(args[i]);
+            if( format != null ) {
+                distanceFormat = format;
+                continue;
+            }
+            if( args[i].startsWith("cache=") ) {
+                cacheDir = args[i].substring("cache=".length());
+                continue;
+            }
+            if( args[i].equals("metrics") ) {
+                metricsReport = true;
+                continue;
+            }
+            if( args[i].equals("consensus") ) {
+                consensusTree = true;
+                continue;
+            }
+            if( args[i].startsWith("matrix=") ) {
+                String storage = args[i].substring("matrix=".length());
+                if( storage.equals("heap") ) {
+                    matrixStorage = BuildOptions.MatrixStorage.HEAP;
+                } else if( storage.equals("mapped") ) {
+                    matrixStorage = BuildOptions.MatrixStorage.MAPPED;
+                } else if( storage.equals("float") ) {
+                    matrixStorage = BuildOptions.MatrixStorage.MAPPED_FLOAT;
+                } else {
+                    System.err.println("Error: matrix must be heap, mapped or float.");
+                    System.exit(2);
+                }
+                continue;
+            }
+            if( args[i].startsWith("clustering=") ) {
+                String method = args[i].substring("clustering=".length());
+                if( method.equals("upgma") ) {
+                    clustering = BuildOptions.Clustering.UPGMA;
+                } else if( method.equals("nj") ) {
+                    clustering = BuildOptions.Clustering.NEIGHBOR_JOINING;
+                } else {
+                    System.err.println("Error: clustering must be upgma or nj.");
+                    System.exit(2);
+                }
+                continue;
+            }
+            if( args[i].startsWith("cachesize=") ) {
+                try {
+                    cacheMegabytes = Long.parseLong(args[i].substring("cachesize=".length()));
+                } catch( NumberFormatException e ) {
+                    cacheMegabytes = 0;
+                }
+                if( cacheMegabytes < 1 ) {
+                    System.err.println("Error: cachesize must be a positive number.");
+                    System.exit(2);
+                }
+                continue;
+            }
+            try {
+                numWorkers = Integer.parseInt(args[i]);
+            } catch( NumberFormatException e ) {
+                numWorkers = 0;
+            }
+            if( numWorkers < 1 ) {
+                System.err.println("Error: numWorkers must be a positive number.");
+                System.exit(2);
+            }
+        }
+
+        TreeCache cache = null;
+        if( cacheDir != null ) {
+            cache = new TreeCache(cacheDir, cacheMegabytes << 20);
+        }
+
+        java.util.ArrayList<String> fastaFilenames = new java.util.ArrayList<String>();
         while( input.hasNext() ) {
-            String fastaFilename = input.next();
+            fastaFilenames.add(input.next());
+        }
+
+        ConsensusBuilder consensus = null;
+        if( consensusTree ) {
+            java.util.List<String> species = ConsensusBuilder.sharedSpecies(fastaFilenames);
+            if( species.isEmpty() ) {
+                System.err.println("Warning: The alignments share no species; no consensus tree is written");
+            } else {
+                consensus = new ConsensusBuilder(species);
+            }
+        }
+
+        if( numWorkers > 0 ) {
+            BatchRunner runner = new BatchRunner(outputDir, numWorkers, distanceFormat, cache, matrixStorage);
+            runner.setMetricsReport(metricsReport);
+            runner.setClustering(clustering);
+            runner.setConsensus(consensus);
+            runner.run(fastaFilenames);
+            writeConsensus(consensus, fastaFilenames, outputDir, cache, matrixStorage, clustering);
+            return;
+        }
+
+        int numFiles = 0;
+        for( String fastaFilename : fastaFilenames ) {
             numFiles++;
             System.err.print("\nLoading tree " + numFiles);
 
-            java.io.File fastaFile = new java.io.File(fastaFilename);
-
-            PhyloTree tree = new PhyloTree(fastaFilename,PRINTING_DEPTH);
+            BuildOptions options = new BuildOptions();
+            options.setCache(cache);
+            options.setMatrixStorage(matrixStorage);
+            options.setClustering(clustering);
+            PhyloTree tree = new PhyloTree(fastaFilename,PRINTING_DEPTH,options);
             System.err.println(" done");
 
-            java.io.File treeOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".tree");
-            java.io.File distOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".distances");
-            java.io.PrintStream treeOut = null;
-            java.io.PrintStream distOut = null;
-            try {
-                treeOut = new java.io.PrintStream(treeOutFile);
-                distOut = new java.io.PrintStream(distOutFile);
-            } catch( java.io.FileNotFoundException e ) {
-                System.err.println("Error: Unable to open output file for writing" + e);
-                System.exit(1);
+            writeResults(tree, fastaFilename, outputDir, System.out, distanceFormat, metricsReport);
+            if( consensus != null ) {
+                consensus.add(tree);
             }
+        }
+        writeConsensus(consensus, fastaFilenames, outputDir, cache, matrixStorage, clustering);
+        return;
+    }
 
-            System.out.print(tree);
-            treeOut.print(tree.toTreeString());
-
-            java.util.ArrayList<Species> speciesList = tree.getAllSpecies();
-            if( speciesList != null ) {
-                for( int i=0; i<speciesList.size(); i++ ) {
-                    for( int j=0; j<speciesList.size(); j++ ) {
-                        String label1 = speciesList.get(i).getName();
-                        String label2 = speciesList.get(j).getName();
-                        distOut.format("EvDistance(%s,%s) = %.2f\n",label1,label2,tree.findEvolutionaryDistance(label1,label2)); 
-                    }    
-                }
+    // writeConsensus
+    // Pre-conditions:
+    //    - consensus has counted the trees of the alignments in fastaFilenames,
+    //      or is null
+    //    - outputDir is an existing directory
+    // Post-conditions:
+    //    - If consensus is not null and counted any tree, the consensus
+    //      tree has been written to outputDir as consensus.tree
+    //    - If the split table of consensus filled up, the trees have first
+    //      been built again, with the given options, to recount the clades
+    //      that can be in a majority (see ConsensusBuilder.beginRecount)
+    public static void writeConsensus(ConsensusBuilder consensus, java.util.List<String> fastaFilenames, String outputDir,
+                                      TreeCache cache, BuildOptions.MatrixStorage matrixStorage,
+                                      BuildOptions.Clustering clustering) {
+        if( consensus == null ) {
+            return;
+        }
+        if( !consensus.isExact() ) {
+            System.err.println("Recounting the consensus clades over " + fastaFilenames.size() + " trees");
+            consensus.beginRecount();
+            for( String fastaFilename : fastaFilenames ) {
+                BuildOptions options = new BuildOptions();
+                options.setCache(cache);
+                options.setMatrixStorage(matrixStorage);
+                options.setClustering(clustering);
+                consensus.add(new PhyloTree(fastaFilename,PRINTING_DEPTH,options));
+            }
+        }
+        ConsensusTree tree = consensus.build();
+        if( tree == null ) {
+            return;
+        }
+        java.io.File consensusFile = new java.io.File(outputDir + slash + "consensus.tree");
+        try {
+            java.io.Writer out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                                     new java.io.FileOutputStream(consensusFile), java.nio.charset.StandardCharsets.UTF_8), 1 << 16);
+            new NewickWriter(out).write(tree);
+            out.close();
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to write output file " + consensusFile + " " + e);
+            System.exit(1);
+        }
+        System.err.println("Consensus of " + consensus.getNumTrees() + " trees over " + consensus.getNumSpecies()
+                           + " shared species written to " + consensusFile);
+        return;
+    }
+
+    // writeResults
+    // Pre-conditions:
+    //    - tree was built from fastaFilename
+    //    - outputDir is an existing directory
+    // Post-conditions:
+    //    - The .tree and .distances files for fastaFilename have been written to outputDir
+    //    - The tree and its statistics have been printed to console
+    public static void writeResults(PhyloTree tree, String fastaFilename, String outputDir, java.io.PrintStream console) {
+        writeResults(tree, fastaFilename, outputDir, console, DistanceWriter.Format.EVDISTANCE);
+        return;
+    }
+
+    // writeResults
+    // Pre-conditions:
+    //    - tree was built from fastaFilename
+    //    - outputDir is an existing directory
+    // Post-conditions:
+    //    - The .tree file and the distances in distanceFormat for fastaFilename
+    //      have been written to outputDir
+    //    - The tree and its statistics have been printed to console
+    public static void writeResults(PhyloTree tree, String fastaFilename, String outputDir, java.io.PrintStream console,
+                                    DistanceWriter.Format distanceFormat) {
+        writeResults(tree, fastaFilename, outputDir, console, distanceFormat, false);
+        return;
+    }
+
+    // writeResults
+    // Pre-conditions:
+    //    - tree was built from fastaFilename
+    //    - outputDir is an existing directory
+    // Post-conditions:
+    //    - The outputs have been written and printed as above, and the time
+    //      spent on each has been added to the tree's BuildMetrics
+    //    - If metricsReport is true, the BuildMetrics of the tree have been
+    //      written to outputDir as a .metrics.json file
+    public static void writeResults(PhyloTree tree, String fastaFilename, String outputDir, java.io.PrintStream console,
+                                    DistanceWriter.Format distanceFormat, boolean metricsReport) {
+        BuildMetrics metrics = tree.getBuildMetrics();
+        java.io.File fastaFile = new java.io.File(fastaFilename);
+        java.io.File treeOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".tree");
+        java.io.File distOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + distanceFormat.getExtension());
+        java.io.Writer treeOut = null;
+        java.io.FileOutputStream distOut = null;
+        try {
+            treeOut = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                          new java.io.FileOutputStream(treeOutFile), java.nio.charset.StandardCharsets.UTF_8), 1 << 16);
+            distOut = new java.io.FileOutputStream(distOutFile);
+        } catch( java.io.FileNotFoundException e ) {
+            System.err.println("Error: Unable to open output file for writing" + e);
+            System.exit(1);
+        }
+
+        try {
+            metrics.begin(BuildMetrics.Phase.CONSOLE);
+            java.io.Writer consoleOut = new java.io.BufferedWriter(new java.io.OutputStreamWriter(console), 1 << 16);
+            tree.writeString(consoleOut);
+            consoleOut.flush();
+            metrics.end(BuildMetrics.Phase.CONSOLE);
+
+            metrics.begin(BuildMetrics.Phase.NEWICK);
+            tree.writeTreeString(treeOut);
+            treeOut.close();
+            metrics.end(BuildMetrics.Phase.NEWICK);
+            metrics.add(BuildMetrics.Counter.TREE_BYTES, treeOutFile.length());
+
+            metrics.begin(BuildMetrics.Phase.EXPORT);
+            DistanceWriter distanceWriter = new DistanceWriter(distOut, distanceFormat);
+            distanceWriter.write(tree);
+            distOut.close();
+            metrics.end(BuildMetrics.Phase.EXPORT);
+            metrics.add(BuildMetrics.Counter.DISTANCE_BYTES, distanceWriter.getBytesWritten());
+        } catch( java.io.IOException e ) {
+            System.err.println("Error: Unable to write output files for " + fastaFile.getName() + " " + e);
+            System.exit(1);
+        }
+        console.println("# species is " + tree.countAllSpecies());
+        console.println("Tree height is " + tree.getHeight());
+        console.format("Weighted height is %.2f\n",tree.getWeightedHeight());
+
+        metrics.finish();
+        if( metricsReport ) {
+            java.io.File metricsFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".metrics.json");
+            try {
+                metrics.writeJson(metricsFile);
+            } catch( java.io.IOException e ) {
+                System.err.println("Error: Unable to write output file " + metricsFile + " " + e);
+                System.exit(1);
             }
-            System.out.println("# species is " + tree.countAllSpecies());
-            System.out.println("Tree height is " + tree.getHeight());
-            System.out.format("Weighted height is %.2f\n",tree.getWeightedHeight());
         }
         return;
     }
-}
\ No newline at end of file
+}
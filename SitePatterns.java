@@ -0,0 +1,223 @@
+/*
+ * SitePatterns.java
+ *
+ * Site-pattern compression of an alignment for the distance computation
+ *
+ * A column of the alignment (the residues of every species at one site)
+ * is a site pattern.  Species.distance only counts the columns where two
+ * species differ, so
+ *
+ *    - columns that hold the same residue for every species never count
+ *      and are dropped
+ *    - identical columns always count together, so each distinct pattern
+ *      is kept once with a weight, the number of columns it stands for
+ *
+ * The patterns are grouped by weight into runs, and every run starts on a
+ * word boundary of the packed sequences (padded with a residue that is
+ * the same for every species).  The weighted mismatch count of two
+ * species is then the sum over the runs of the weight times the number of
+ * differing bytes in the run's words, counted with the PackedSequence
+ * kernel.  The count is exactly the number of differing columns of the
+ * full sequences, and it is divided by the full length, so the distances
+ * are identical to Species.distance.
+ *
+ * The columns are transposed a word (8 sites) at a time, so the species'
+ * sequences are read sequentially.  When compression would not save at
+ * least an eighth of the words (e.g. on highly variable alignments), the
+ * full sequences are used as a single run of weight 1 instead.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+public class SitePatterns {
+    private int length;                   // Number of columns of the full alignment
+    private int numPatterns;              // Number of distinct variable columns
+    private PackedSequence[] patterns;    // Compressed sequence of each species
+    private int[] runStart;               // First word of each run of equal weights
+    private int[] runEnd;                 // Word after the last word of each run
+    private int[] runWeight;              // Number of columns each pattern of the run stands for
+
+    // CONSTRUCTOR
+
+    // SitePatterns
+    // Pre-conditions:
+    //    - species contains aligned species
+    // Post-conditions:
+    //    - The alignment of species has been compressed to its weighted,
+    //      variable site patterns
+    //    - If the sequences are not the same length, an error is printed and the program exits
+    public SitePatterns(Species[] species) {
+        int n = species.length;
+        this.length = (n == 0) ? 0 : species[0].getPackedSequence().length();
+        for(Species s : species) {
+            if(s.getPackedSequence().length() != this.length) {
+                System.err.println("Error: Sequences must already be aligned");
+                System.exit(5);
+            }
+        }
+
+        // Find the distinct variable columns, and how many columns each stands for
+        HashMap<String,Integer> patternIds = new HashMap<String,Integer>();
+        ArrayList<Integer> firstColumn = new ArrayList<Integer>();    // A column of each pattern
+        ArrayList<Integer> weights = new ArrayList<Integer>();
+        byte[][] columns = new byte[8][n];
+        for(int start=0; start < this.length; start += 8) {
+            int width = Math.min(8, this.length - start);
+            for(int s=0; s < n; s++) {
+                PackedSequence sequence = species[s].getPackedSequence();
+                for(int c=0; c < width; c++)
+                    columns[c][s] = sequence.residueAt(start + c);
+            }
+            for(int c=0; c < width; c++) {
+                if(isConstant(columns[c]))
+                    continue;
+                String key = new String(columns[c], StandardCharsets.ISO_8859_1);
+                Integer id = patternIds.get(key);
+                if(id == null) {
+                    patternIds.put(key, weights.size());
+                    firstColumn.add(start + c);
+                    weights.add(1);
+                }
+                else {
+                    weights.set(id, weights.get(id) + 1);
+                }
+            }
+        }
+        this.numPatterns = weights.size();
+        patternIds = null;
+
+        // Group the patterns by weight, each group starting on a new word
+        TreeMap<Integer,ArrayList<Integer>> runs = new TreeMap<Integer,ArrayList<Integer>>();
+        for(int id=0; id < this.numPatterns; id++) {
+            ArrayList<Integer> run = runs.get(weights.get(id));
+            if(run == null) {
+                run = new ArrayList<Integer>();
+                runs.put(weights.get(id), run);
+            }
+            run.add(firstColumn.get(id));
+        }
+        int fullWords = (this.length + 7) / 8;
+        int compressedWords = 0;
+        for(ArrayList<Integer> run : runs.values())
+            compressedWords += (run.size() + 7) / 8;
+        this.patterns = new PackedSequence[n];
+        if(compressedWords > fullWords - fullWords / 8) {
+            for(int s=0; s < n; s++)
+                this.patterns[s] = species[s].getPackedSequence();
+            this.runStart = new int[] {0};
+            this.runEnd = new int[] {fullWords};
+            this.runWeight = new int[] {1};
+            return;
+        }
+
+        this.runStart = new int[runs.size()];
+        this.runEnd = new int[runs.size()];
+        this.runWeight = new int[runs.size()];
+        int[] layout = new int[8 * compressedWords];   // Column stored at each position, -1 for padding
+        int numPositions = 0;
+        int numRuns = 0;
+        for(java.util.Map.Entry<Integer,ArrayList<Integer>> run : runs.entrySet()) {
+            this.runWeight[numRuns] = run.getKey();
+            this.runStart[numRuns] = numPositions / 8;
+            for(int column : run.getValue())
+                layout[numPositions++] = column;
+            while(numPositions % 8 != 0)
+                layout[numPositions++] = -1;
+            this.runEnd[numRuns] = numPositions / 8;
+            numRuns++;
+        }
+
+        // Gather the compressed sequence of every species
+        byte[] residues = new byte[numPositions];
+        for(int s=0; s < n; s++) {
+            PackedSequence sequence = species[s].getPackedSequence();
+            for(int p=0; p < numPositions; p++)
+                residues[p] = (layout[p] < 0) ? 0 : sequence.residueAt(layout[p]);
+            this.patterns[s] = new PackedSequence(residues);
+        }
+        return;
+    }
+
+    // ACCESSORS
+
+    // length
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of columns of the full alignment
+    public int length() {
+        return this.length;
+    }
+
+    // getNumPatterns
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of distinct variable columns kept
+    public int getNumPatterns() {
+        return this.numPatterns;
+    }
+
+    // getNumRuns
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of distinct pattern weights (1 if the full
+    //      sequences are used)
+    public int getNumRuns() {
+        return this.runWeight.length;
+    }
+
+    // getCompressedLength
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of residues compared per pair of species,
+    //      padding included
+    public int getCompressedLength() {
+        return (this.runEnd.length == 0) ? 0 : 8 * this.runEnd[this.runEnd.length - 1];
+    }
+
+    // mismatches
+    // Pre-conditions:
+    //    - i and j are indices of species given to the constructor
+    // Post-conditions:
+    //    - Returns the number of columns of the full alignment where the two
+    //      species differ
+    public int mismatches(int i, int j) {
+        PackedSequence a = this.patterns[i];
+        PackedSequence b = this.patterns[j];
+        int numDiffs = 0;
+        for(int r=0; r < this.runWeight.length; r++)
+            numDiffs += this.runWeight[r] * PackedSequence.mismatches(a, b, this.runStart[r], this.runEnd[r]);
+        return numDiffs;
+    }
+
+    // distance
+    // Pre-conditions:
+    //    - i and j are indices of species given to the constructor
+    // Post-conditions:
+    //    - Returns Species.distance of the two species
+    public double distance(int i, int j) {
+        return ((double) mismatches(i, j))/this.length;
+    }
+
+    // STATIC
+
+    // isConstant
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns true if every residue of column is the same
+    private static boolean isConstant(byte[] column) {
+        for(int s=1; s < column.length; s++) {
+            if(column[s] != column[0])
+                return false;
+        }
+        return true;
+    }
+}
@@ -12,8 +12,8 @@
  */
 
 public class Species {
-    private String name;          // A unique name associated with the species
-    private String[] sequence;    // The biological sequence describing this species
+    private String name;              // A unique name associated with the species
+    private PackedSequence sequence;  // The biological sequence describing this species
 
     // CONSTRUCTOR
 
@@ -25,7 +25,18 @@ public class Species {
     //       in the genetic sequence 
     // Post-conditions
     //     - The object's fields are set to the provided values
+    //     - The sequence is stored packed, see PackedSequence
     public Species(String name, String[] sequence) {
+        this(name, new PackedSequence(sequence));
+    }
+
+    // Species
+    // Preconditions:
+    //     - name is the intended name of the species
+    //     - sequence is a positive-length packed sequence
+    // Post-conditions
+    //     - The object's fields are set to the provided values
+    public Species(String name, PackedSequence sequence) {
         this.name = name;
         this.sequence = sequence;
         return;
@@ -46,8 +57,20 @@ public class Species {
     // Pre-conditions:
     //        - None
     // Post-conditions:
-    //        - Returns the sequence
+    //        - Returns the sequence, one string per residue
+    // Notes:
+    //        - The array is rebuilt from the packed sequence on every call,
+    //          use getPackedSequence in performance sensitive code
     public String[] getSequence() {
+        return this.sequence.toStrings();
+    }
+
+    // getPackedSequence
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the packed sequence
+    public PackedSequence getPackedSequence() {
         return this.sequence;
     }
 
@@ -63,24 +86,16 @@ public class Species {
     //        - If the sequences are not the same length,
     //          it reports and error and exits
     public static double distance(Species a, Species b) {
-        String[] seq1 = a.getSequence();
-        String[] seq2 = b.getSequence();
+        PackedSequence seq1 = a.getPackedSequence();
+        PackedSequence seq2 = b.getPackedSequence();
     
-        if( seq1.length != seq2.length ) {
+        if( seq1.length() != seq2.length() ) {
             System.err.println("Error: Sequences must already be aligned");
             System.exit(5);
         } 
         
-        int numDiffs = 0;
-        for( int i=0; i<seq1.length; i++ ) {
-            if( !seq1[i].equals(seq2[i]) ) {
-                numDiffs++;
-            }
-        }
-
-        //System.out.println(numDiffs);
-        //System.out.println(((double)numDiffs)/seq1.length);
+        int numDiffs = PackedSequence.mismatches(seq1, seq2);
 
-        return ((double)numDiffs)/seq1.length;
+        return ((double)numDiffs)/seq1.length();
     }
 }
\ No newline at end of file
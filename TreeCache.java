@@ -0,0 +1,503 @@
+/*
+ * TreeCache.java
+ *
+ * Content-addressed on-disk cache of built phylogenetic trees
+ *
+ * An entry is keyed by the SHA-256 hash of the bytes of a FASTA file and of
+ * BuildOptions.getSettingsKey, so a changed alignment or a different
+ * distance or clustering setting never finds a stale tree.  Each entry is
+ * one file, <key>.ptc, in the cache directory:
+ *
+ *    bytes 0-3    magic "PTCE"
+ *    int32        format version (1)
+ *    int64        payload length in bytes
+ *    int32        CRC32 of the payload
+ *    32 bytes     the key
+ *    payload:
+ *       int32          number of species n
+ *       n times        int32 name length + UTF-8 name bytes
+ *       n(n-1)/2       float64 distances between the species, lower
+ *                      triangle row by row (see DistanceMatrix)
+ *       int32          number of tree nodes (2n-1)
+ *       post-order     int32 species index for a leaf, -1 followed by
+ *                      the float64 distanceToChild for a non-terminal, or
+ *                      -2 followed by the float64 edge weights to the left
+ *                      and right children for a non-terminal whose two
+ *                      weights differ (neighbor-joining trees)
+ *
+ * All numbers are little-endian.  Entries are written to a temporary file
+ * and renamed into place, so readers never see a partial entry.  On read
+ * the header, the checksum, the names (which must be those of the loaded
+ * species, in order) and the shape of the tree are validated; an invalid
+ * entry is deleted and treated as a miss.
+ *
+ * A hit sets the modification time of the entry, and after every store the
+ * least recently used entries are deleted until the cache fits in its size
+ * limit.  The cache is best effort: I/O errors are reported as warnings
+ * and the tree is simply built.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+
+public class TreeCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + KEY_LENGTH;
+    private static final String EXTENSION = ".ptc";
+    private static final int INTERNAL = -1;                 // Node tag of a non-terminal
+    private static final int INTERNAL_SPLIT = -2;           // Node tag of a non-terminal with two edge weights
+    private static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private File directory;       // Where the entries are stored
+    private long maxBytes;        // Size limit of all entries together
+
+    // CONSTRUCTOR
+
+    // TreeCache
+    // Pre-conditions:
+    //    - directory is the path of the cache directory
+    // Post-conditions:
+    //    - A cache limited to 1 GiB has been created, see below
+    public TreeCache(String directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+        return;
+    }
+
+    // TreeCache
+    // Pre-conditions:
+    //    - directory is the path of the cache directory
+    //    - maxBytes is a positive number
+    // Post-conditions:
+    //    - A cache storing at most maxBytes bytes of entries in directory has
+    //      been created, the directory exists and fits in maxBytes
+    //    - If the directory cannot be created, an error is printed and the program exits
+    public TreeCache(String directory, long maxBytes) {
+        this.directory = new File(directory);
+        this.maxBytes = Math.max(1, maxBytes);
+        if(!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            System.err.println("Error: Unable to create cache directory " + directory);
+            System.exit(1);
+        }
+        evict();
+        return;
+    }
+
+    // ACCESSORS
+
+    // getDirectory
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the cache directory
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    // key
+    // Pre-conditions:
+    //    - fastaFilename contains the path of a readable file
+    // Post-conditions:
+    //    - Returns the key of the tree built from the file with options
+    //    - If the file cannot be read, an error is printed and the program exits
+    public byte[] key(String fastaFilename, BuildOptions options) {
+        MessageDigest digest = newDigest();
+        digest.update(options.getSettingsKey().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] buffer = new byte[1 << 16];
+        try(InputStream in = new FileInputStream(fastaFilename)) {
+            int numRead;
+            while((numRead = in.read(buffer)) > 0)
+                digest.update(buffer, 0, numRead);
+        } catch(IOException e) {
+            System.err.println("Error: Unable to open file " + fastaFilename);
+            System.exit(1);
+        }
+        return digest.digest();
+    }
+
+    // entryFile
+    // Pre-conditions:
+    //    - key is a cache key
+    // Post-conditions:
+    //    - Returns the file of the entry of key
+    private File entryFile(byte[] key) {
+        return new File(this.directory, hex(key) + EXTENSION);
+    }
+
+    // load
+    // Pre-conditions:
+    //    - key was returned by key(), species are the species of that file
+    //    - withDistances is true if the distances between the species are needed
+    // Post-conditions:
+    //    - Returns the cached tree, whose leaves hold the given species
+    //      objects (and the cached distances if withDistances), or null if
+    //      there is no valid entry for key
+    //    - A hit is marked as the most recently used entry
+    public Entry load(byte[] key, Species[] species, boolean withDistances) {
+        File file = entryFile(key);
+        if(!file.isFile())
+            return null;
+
+        Entry entry = null;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size >= HEADER_LENGTH && size <= Integer.MAX_VALUE) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    entry = decode(mapped, key, species, withDistances);
+                } catch(RuntimeException e) {
+                    // e.g. a name length running past the end of the file
+                    entry = null;
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Warning: Unable to read cache entry " + file + " " + e);
+            return null;
+        }
+
+        if(entry == null) {
+            System.err.println("Warning: Discarding invalid cache entry " + file);
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    // MODIFIER
+
+    // store
+    // Pre-conditions:
+    //    - key was returned by key(), species are the species of that file,
+    //      distances holds the distances between them and root is the root
+    //      of the tree built from them
+    // Post-conditions:
+    //    - The tree and the distances have been stored under key, unless the
+    //      entry would be larger than the cache
+    //    - Least recently used entries have been deleted until the cache fits
+    public void store(byte[] key, Species[] species, DistanceMatrix distances, PhyloTreeNode root) {
+        int n = species.length;
+        if(root == null)
+            return;
+        byte[][] names = new byte[n][];
+        long payloadLength = 4 + 8 * DistanceMatrix.numPairs(n) + 4;
+        for(int i=0; i < n; i++) {
+            names[i] = species[i].getName().getBytes(StandardCharsets.UTF_8);
+            payloadLength += 4 + names[i].length;
+        }
+        PhyloTreeNode[] nodes = postOrder(root);
+        for(PhyloTreeNode node : nodes)
+            payloadLength += node.isLeaf() ? 4 : isSplit(node) ? 20 : 12;
+        if(HEADER_LENGTH + payloadLength > Math.min(this.maxBytes, Integer.MAX_VALUE))
+            return;
+
+        // Leaves are identified by their position in species, not in the tree
+        IdentityHashMap<Species,Integer> speciesIndex = new IdentityHashMap<Species,Integer>(n);
+        for(int i=0; i < n; i++)
+            speciesIndex.put(species[i], i);
+
+        File temp = new File(this.directory, hex(key) + "." + Thread.currentThread().getId() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            channel.position(HEADER_LENGTH);
+
+            buffer.putInt(n);
+            for(byte[] name : names) {
+                buffer = ensure(channel, buffer, crc, 4 + name.length);
+                buffer.putInt(name.length);
+                buffer.put(name);
+            }
+            for(int i=1; i < n; i++) {
+                for(int j=0; j < i; j++) {
+                    buffer = ensure(channel, buffer, crc, 8);
+                    buffer.putDouble(distances.get(i, j));
+                }
+            }
+            buffer = ensure(channel, buffer, crc, 4);
+            buffer.putInt(nodes.length);
+            for(PhyloTreeNode node : nodes) {
+                buffer = ensure(channel, buffer, crc, 20);
+                if(node.isLeaf()) {
+                    buffer.putInt(speciesIndex.get(node.getSpecies()));
+                }
+                else if(isSplit(node)) {
+                    buffer.putInt(INTERNAL_SPLIT);
+                    buffer.putDouble(node.getDistanceToLeftChild());
+                    buffer.putDouble(node.getDistanceToRightChild());
+                }
+                else {
+                    buffer.putInt(INTERNAL);
+                    buffer.putDouble(node.getDistanceToChild());
+                }
+            }
+            flush(channel, buffer, crc);
+
+            buffer.clear();
+            buffer.put("PTCE".getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putLong(payloadLength);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(key);
+            buffer.flip();
+            channel.write(buffer, 0);
+        } catch(IOException e) {
+            System.err.println("Warning: Unable to write cache entry " + temp + " " + e);
+            temp.delete();
+            return;
+        }
+
+        try {
+            Files.move(temp.toPath(), entryFile(key).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            System.err.println("Warning: Unable to add cache entry " + entryFile(key) + " " + e);
+            temp.delete();
+            return;
+        }
+        evict();
+        return;
+    }
+
+    // evict
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The least recently used entries have been deleted until the
+    //      entries take at most maxBytes bytes
+    public synchronized void evict() {
+        File[] entries = this.directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if(entries == null)
+            return;
+        long totalBytes = 0;
+        final long[] lastUsed = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for(int i=0; i < entries.length; i++) {
+            totalBytes += entries[i].length();
+            lastUsed[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+        for(int i=0; i < order.length && totalBytes > this.maxBytes; i++) {
+            long length = entries[order[i]].length();
+            if(entries[order[i]].delete())
+                totalBytes -= length;
+        }
+        return;
+    }
+
+    // STATIC
+
+    // decode
+    // Pre-conditions:
+    //    - buffer holds a whole entry file, little-endian
+    // Post-conditions:
+    //    - Returns the entry, or null if it is not a valid entry for key and species
+    private static Entry decode(ByteBuffer buffer, byte[] key, Species[] species, boolean withDistances) {
+        byte[] magic = new byte[4];
+        byte[] storedKey = new byte[KEY_LENGTH];
+        buffer.get(magic);
+        int version = buffer.getInt();
+        long payloadLength = buffer.getLong();
+        int storedCrc = buffer.getInt();
+        buffer.get(storedKey);
+        if(!"PTCE".equals(new String(magic, StandardCharsets.US_ASCII)) || version != FORMAT_VERSION
+           || !Arrays.equals(storedKey, key) || payloadLength != buffer.remaining())
+            return null;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if((int) crc.getValue() != storedCrc)
+            return null;
+
+        // The checksum matches, so the payload is what was stored; it must
+        // still describe these species
+        int n = buffer.getInt();
+        if(n != species.length)
+            return null;
+        for(int i=0; i < n; i++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            if(!species[i].getName().equals(new String(name, StandardCharsets.UTF_8)))
+                return null;
+        }
+
+        DistanceMatrix distances = null;
+        if(withDistances) {
+            if(8 * DistanceMatrix.numPairs(n) > buffer.remaining())
+                return null;
+            distances = new DistanceMatrix(n);
+            for(int i=1; i < n; i++)
+                for(int j=0; j < i; j++)
+                    distances.set(i, j, buffer.getDouble());
+        }
+        else {
+            long matrixLength = 8 * DistanceMatrix.numPairs(n);
+            if(matrixLength > buffer.remaining())
+                return null;
+            buffer.position(buffer.position() + (int) matrixLength);
+        }
+
+        // Rebuild the tree bottom-up: a non-terminal joins the last two subtrees
+        int numNodes = buffer.getInt();
+        if(numNodes != 2 * n - 1)
+            return null;
+        PhyloTreeNode[] subtrees = new PhyloTreeNode[n];
+        boolean[] used = new boolean[n];
+        int numSubtrees = 0;
+        for(int k=0; k < numNodes; k++) {
+            int tag = buffer.getInt();
+            if(tag == INTERNAL || tag == INTERNAL_SPLIT) {
+                if(numSubtrees < 2)
+                    return null;
+                PhyloTreeNode rightChild = subtrees[--numSubtrees];
+                PhyloTreeNode leftChild = subtrees[--numSubtrees];
+                double distanceToLeftChild = buffer.getDouble();
+                double distanceToRightChild = (tag == INTERNAL_SPLIT) ? buffer.getDouble() : distanceToLeftChild;
+                PhyloTreeNode node = new PhyloTreeNode(null, leftChild, rightChild, distanceToLeftChild, distanceToRightChild);
+                leftChild.setParent(node);
+                rightChild.setParent(node);
+                subtrees[numSubtrees++] = node;
+            }
+            else {
+                if(tag < 0 || tag >= n || used[tag] || numSubtrees == n)
+                    return null;
+                used[tag] = true;
+                subtrees[numSubtrees++] = new PhyloTreeNode(null, species[tag]);
+            }
+        }
+        if(numSubtrees != 1 || buffer.hasRemaining())
+            return null;
+        return new Entry(subtrees[0], distances);
+    }
+
+    // ensure
+    // Pre-conditions:
+    //    - buffer is in write mode
+    // Post-conditions:
+    //    - Returns buffer with room for length more bytes, after writing its
+    //      contents to channel if needed
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, CRC32 crc, int length) throws IOException {
+        if(buffer.remaining() >= length)
+            return buffer;
+        flush(channel, buffer, crc);
+        if(buffer.capacity() < length)
+            return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // flush
+    // Pre-conditions:
+    //    - buffer is in write mode
+    // Post-conditions:
+    //    - The contents of buffer have been added to crc and written to
+    //      channel, and buffer is empty
+    private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        return;
+    }
+
+    // isSplit
+    // Pre-conditions:
+    //    - node is a non-terminal
+    // Post-conditions:
+    //    - Returns true if the edge weights to the two children differ (bit for bit)
+    private static boolean isSplit(PhyloTreeNode node) {
+        return Double.doubleToRawLongBits(node.getDistanceToLeftChild())
+            != Double.doubleToRawLongBits(node.getDistanceToRightChild());
+    }
+
+    // postOrder
+    // Pre-conditions:
+    //    - root is the root of a strictly binary tree
+    // Post-conditions:
+    //    - Returns the nodes of the tree in post-order (left, right, node)
+    private static PhyloTreeNode[] postOrder(PhyloTreeNode root) {
+        // Node, right, left pre-order is the reverse of the post-order
+        PhyloTreeNode[] nodes = new PhyloTreeNode[2 * root.getNumLeafs() - 1];
+        PhyloTreeNode[] stack = new PhyloTreeNode[16];
+        int stackSize = 0;
+        int numNodes = nodes.length;
+        stack[stackSize++] = root;
+        while(stackSize > 0) {
+            PhyloTreeNode node = stack[--stackSize];
+            nodes[--numNodes] = node;
+            if(stackSize + 2 > stack.length)
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            if(node.getLeftChild() != null)
+                stack[stackSize++] = node.getLeftChild();
+            if(node.getRightChild() != null)
+                stack[stackSize++] = node.getRightChild();
+        }
+        return nodes;
+    }
+
+    // newDigest
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a SHA-256 digest (every Java platform provides one)
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // hex
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the bytes as lower-case hexadecimal digits
+    private static String hex(byte[] bytes) {
+        char[] digits = new char[2 * bytes.length];
+        for(int i=0; i < bytes.length; i++) {
+            digits[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            digits[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(digits);
+    }
+
+    // Entry
+    // A tree read from the cache, with the distances between its species
+    public static class Entry {
+        private PhyloTreeNode root;
+        private DistanceMatrix distances;
+
+        Entry(PhyloTreeNode root, DistanceMatrix distances) {
+            this.root = root;
+            this.distances = distances;
+        }
+
+        public PhyloTreeNode getRoot() {
+            return this.root;
+        }
+
+        public DistanceMatrix getDistances() {
+            return this.distances;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * TreeMetrics.java
+ *
+ * Side table with the height, weighted height, depth and weighted depth of
+ * every node of a phylogenetic tree
+ *
+ * The table is filled from the tree's NodeNumbering: depths in pre-order
+ * (from the parent's, whose id is lower), heights in reverse pre-order
+ * (from the children's, whose ids are higher).  Every accessor is then
+ * O(1), a node being found by its id, and degenerate trees cannot
+ * overflow the call stack.
+ *
+ * The heights are computed with the same expressions as
+ * PhyloTree.nodeHeight and PhyloTree.weightedNodeHeight, so the values are
+ * identical to theirs.
+ *
+ */
+
+public class TreeMetrics {
+    private NodeNumbering numbering;  // Pre-order ids of the nodes
+    private int[] height;             // Edges on the longest path down to a leaf
+    private double[] weightedHeight;  // Largest sum of edge weights down to a leaf
+    private int[] depth;              // Edges up to the root
+    private double[] weightedDepth;   // Sum of the edge weights up to the root
+
+    // CONSTRUCTOR
+
+    // TreeMetrics
+    // Pre-conditions:
+    //    - numbering numbers the nodes of a tree
+    // Post-conditions:
+    //    - The metrics of every node of the tree have been computed, the
+    //      depths being measured from its root
+    public TreeMetrics(NodeNumbering numbering) {
+        int numNodes = numbering.size();
+        this.numbering = numbering;
+        this.height = new int[numNodes];
+        this.weightedHeight = new double[numNodes];
+        this.depth = new int[numNodes];
+        this.weightedDepth = new double[numNodes];
+
+        for(int id=1; id < numNodes; id++) {
+            int parentId = numbering.getParent(id);
+            this.depth[id] = this.depth[parentId] + 1;
+            this.weightedDepth[id] = this.weightedDepth[parentId] + numbering.getNode(id).getBranchLength();
+        }
+        for(int id = numNodes - 1; id >= 0; id--)
+            leave(id);
+        return;
+    }
+
+    // ACCESSORS
+
+    // getHeight
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the height of the tree (-1 if it is empty)
+    public int getHeight() {
+        return (this.height.length == 0) ? -1 : this.height[0];
+    }
+
+    // getWeightedHeight
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the weighted height of the tree (NEGATIVE_INFINITY if it is empty)
+    public double getWeightedHeight() {
+        return (this.weightedHeight.length == 0) ? Double.NEGATIVE_INFINITY : this.weightedHeight[0];
+    }
+
+    // getHeight
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - Returns the height of the subtree rooted at node
+    public int getHeight(PhyloTreeNode node) {
+        return this.height[this.numbering.getId(node)];
+    }
+
+    // getWeightedHeight
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - Returns the weighted height of the subtree rooted at node
+    public double getWeightedHeight(PhyloTreeNode node) {
+        return this.weightedHeight[this.numbering.getId(node)];
+    }
+
+    // getDepth
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - Returns the number of edges from the root to node
+    public int getDepth(PhyloTreeNode node) {
+        return this.depth[this.numbering.getId(node)];
+    }
+
+    // getWeightedDepth
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - Returns the sum of the edge weights from the root to node
+    public double getWeightedDepth(PhyloTreeNode node) {
+        return this.weightedDepth[this.numbering.getId(node)];
+    }
+
+    // MODIFIER
+
+    // leave
+    // Pre-conditions:
+    //    - The metrics of the children of node id have been computed
+    // Post-conditions:
+    //    - The height and weighted height of node id have been computed
+    private void leave(int id) {
+        PhyloTreeNode node = this.numbering.getNode(id);
+        int maxHeight = 0;
+        double weightLeft = 0.0;
+        double weightRight = 0.0;
+        if(node.getLeftChild() != null) {
+            int childId = this.numbering.getId(node.getLeftChild());
+            maxHeight = this.height[childId] + 1;
+            weightLeft = this.weightedHeight[childId];
+        }
+        if(node.getRightChild() != null) {
+            int childId = this.numbering.getId(node.getRightChild());
+            maxHeight = Math.max(maxHeight, this.height[childId] + 1);
+            weightRight = this.weightedHeight[childId];
+        }
+        this.height[id] = maxHeight;
+        // Same as adding distanceToChild to the larger weight when the two
+        // edge weights are equal
+        this.weightedHeight[id] = Math.max(weightLeft + node.getDistanceToLeftChild(),
+                                           weightRight + node.getDistanceToRightChild());
+        return;
+    }
+}
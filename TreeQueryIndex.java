@@ -0,0 +1,523 @@
+/*
+ * TreeQueryIndex.java
+ *
+ * Immutable index over a built phylogenetic tree that answers label lookups,
+ * least common ancestor and evolutionary distance queries in O(1)
+ *
+ * The index is built once per tree in O(n log n):
+ *    - a hash index from label to node for the leaves, and the ids of the
+ *      non-terminals sorted by the hash code of their labels, computed from
+ *      the hash codes of the children so that the labels are not built
+ *    - an Euler tour of the tree with a sparse table over the node depths
+ *      along the tour, so the shallowest node between the first visits of
+ *      two nodes (their least common ancestor) is found with two lookups
+ *    - the weighted depth of every node (sum of the edge weights from the root)
+ *    - the distance from every node down to its nearest leaf, which bounds
+ *      the distance to any leaf of its subtree for nearest-relative searches
+ *
+ * Nodes are found by their id in the tree's NodeNumbering, shared with its
+ * other indexes.  All traversals use explicit stacks, so degenerate trees
+ * do not overflow the call stack.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class TreeQueryIndex {
+    private NodeNumbering numbering;          // Pre-order ids of the nodes
+    private HashMap<String,Integer> labelIndex;    // Label -> id of the leaves
+    private long[] nonterminalIndex;          // (label hash code << 32 | id) of the non-terminals, sorted
+    private boolean plusInLeafLabels;         // Some leaf label contains a '+'
+    private double[] weightedDepth;           // Sum of the edge weights from the root to each node
+    private double[] nearestLeafDistance;     // Edge weights from each node down to its nearest leaf
+    private int[] firstVisit;                 // Position of each node's first visit in the Euler tour
+    private int[] tourDepth;                  // Depth of the node at each position of the Euler tour
+    private int[] tourNode;                   // Node at each position of the Euler tour
+    private int[][] sparseTable;              // sparseTable[k][i] = tour position of the shallowest
+                                              // node among positions i .. i + 2^k - 1
+
+    // CONSTRUCTOR
+
+    // TreeQueryIndex
+    // Pre-conditions:
+    //    - numbering numbers the nodes of a phylogenetic tree
+    // Post-conditions:
+    //    - The index of the tree has been built
+    // Notes:
+    //    - If several nodes share a label, the first one in pre-order is indexed,
+    //      matching the search order of PhyloTree.findTreeNodeByLabel
+    public TreeQueryIndex(NodeNumbering numbering) {
+        int numNodes = numbering.size();
+        this.numbering = numbering;
+        this.labelIndex = new HashMap<String,Integer>(numNodes + 1);
+        this.nonterminalIndex = new long[numNodes / 2];
+        this.weightedDepth = new double[numNodes];
+        this.nearestLeafDistance = new double[numNodes];
+        this.firstVisit = new int[numNodes];
+        this.tourDepth = new int[Math.max(0, 2 * numNodes - 1)];
+        this.tourNode = new int[this.tourDepth.length];
+        if(numNodes == 0)
+            return;
+
+        indexNodes();
+        indexNonterminalLabels();
+        computeNearestLeafDistances();
+        buildEulerTour();
+        buildSparseTable();
+        return;
+    }
+
+    // ACCESSORS
+
+    // findNode
+    // Pre-conditions:
+    //    - label is the label of a node you intend to find
+    // Post-conditions:
+    //    - Returns the node with the label, or null if there is none
+    public PhyloTreeNode findNode(String label) {
+        int id = find(label);
+        if(id < 0)
+            return null;
+        return this.numbering.getNode(id);
+    }
+
+    // getWeightedDepth
+    // Pre-conditions:
+    //    - node is a node of the indexed tree
+    // Post-conditions:
+    //    - Returns the sum of the edge weights from the root to node
+    public double getWeightedDepth(PhyloTreeNode node) {
+        return this.weightedDepth[this.numbering.getId(node)];
+    }
+
+    // leastCommonAncestor
+    // Pre-conditions:
+    //    - node1 and node2 are nodes of the indexed tree, or null
+    // Post-conditions:
+    //    - If node1 or node2 is null, returns null
+    //    - Else: returns the deepest node that is an ancestor of both nodes
+    //      (a node counts as an ancestor of itself)
+    public PhyloTreeNode leastCommonAncestor(PhyloTreeNode node1, PhyloTreeNode node2) {
+        if(node1 == null || node2 == null)
+            return null;
+        return this.numbering.getNode(lca(this.numbering.getId(node1), this.numbering.getId(node2)));
+    }
+
+    // commonProperAncestor
+    // Pre-conditions:
+    //    - node1 and node2 are nodes of the indexed tree, or null
+    // Post-conditions:
+    //    - If node1 or node2 is null, or they have no common proper ancestor, returns null
+    //    - Else: returns the deepest node that is a proper ancestor of both
+    //      nodes, which is what PhyloTree.findLeastCommonAncestor has always
+    //      returned (for a node and itself it is the node's parent)
+    public PhyloTreeNode commonProperAncestor(PhyloTreeNode node1, PhyloTreeNode node2) {
+        if(node1 == null || node2 == null)
+            return null;
+        int ancestor = properAncestor(this.numbering.getId(node1), this.numbering.getId(node2));
+        if(ancestor < 0)
+            return null;
+        return this.numbering.getNode(ancestor);
+    }
+
+    // evolutionaryDistance
+    // Pre-conditions:
+    //    - label1 and label2 are the labels of two nodes in the tree
+    // Post-conditions:
+    //    - If either node cannot be found: returns POSITIVE_INFINITY
+    //    - Else: returns the sum of the edge weights on the paths from both
+    //      nodes up to their common proper ancestor (see commonProperAncestor),
+    //      computed in O(1) from the weighted depths
+    //    - If there is no common proper ancestor (one of them is the root),
+    //      the least common ancestor is used instead
+    public double evolutionaryDistance(String label1, String label2) {
+        int id1 = find(label1);
+        int id2 = find(label2);
+        if(id1 < 0 || id2 < 0)
+            return Double.POSITIVE_INFINITY;
+
+        int ancestor = distanceAncestor(id1, id2);
+        return (this.weightedDepth[id1] - this.weightedDepth[ancestor])
+             + (this.weightedDepth[id2] - this.weightedDepth[ancestor]);
+    }
+
+    // pathSumDistance
+    // Pre-conditions:
+    //    - label1 and label2 are the labels of two nodes in the tree
+    // Post-conditions:
+    //    - Same as evolutionaryDistance, but the edge weights are added one by
+    //      one from each node up to the ancestor, exactly as the original
+    //      PhyloTree.findEvolutionaryDistance did
+    // Notes:
+    //    - The two results can differ in the last bit, which is enough to
+    //      change a %.2f rounding of values such as 0.215, so this is the one
+    //      used for the .distances output; it costs O(path length) instead of O(1)
+    public double pathSumDistance(String label1, String label2) {
+        int id1 = find(label1);
+        int id2 = find(label2);
+        if(id1 < 0 || id2 < 0)
+            return Double.POSITIVE_INFINITY;
+
+        int ancestor = distanceAncestor(id1, id2);
+        return sumToAncestor(id1, ancestor) + sumToAncestor(id2, ancestor);
+    }
+
+    // nearestRelatives
+    // Pre-conditions:
+    //    - k >= 0
+    // Post-conditions:
+    //    - If label is not the label of a leaf: returns null
+    //    - Else: returns the min(k, n-1) other leaves closest to that leaf by
+    //      the sum of the edge weights between them, closest first (ties in
+    //      pre-order)
+    // Notes:
+    //    - Best-first search outward from the leaf: a candidate is either the
+    //      subtree of a node, ranked by the distance to the node plus the
+    //      distance from the node down to its nearest leaf (no leaf of the
+    //      subtree is closer), or the step up to the parent of a node, ranked
+    //      by the distance to the parent.  Only the candidates that may hold
+    //      one of the k closest leaves are expanded, so on a balanced tree
+    //      this costs about O(k log n) instead of the O(n) of measuring
+    //      every leaf
+    //    - The weights are added from the leaf outward, so a distance can
+    //      differ from evolutionaryDistance in the last bit
+    public List<Relative> nearestRelatives(String label, int k) {
+        int source = find(label);
+        if(source < 0 || !this.numbering.getNode(source).isLeaf())
+            return null;
+
+        ArrayList<Relative> relatives = new ArrayList<Relative>(Math.min(k, this.numbering.size() / 2 + 1));
+        PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+        if(this.numbering.getParent(source) >= 0)
+            candidates.add(new Candidate(source, true, false, 0.0, this.numbering.getNode(source).getBranchLength()));
+        while(relatives.size() < k && !candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            int id = candidate.node;
+            PhyloTreeNode node = this.numbering.getNode(id);
+            if(candidate.upward) {
+                // Step up to the parent, then into the subtree of the sibling
+                int parentId = this.numbering.getParent(id);
+                double parentDistance = candidate.bound;
+                PhyloTreeNode sibling = (this.numbering.getNode(parentId).getLeftChild() == node)
+                                        ? this.numbering.getNode(parentId).getRightChild() : this.numbering.getNode(parentId).getLeftChild();
+                addSubtree(candidates, this.numbering.getId(sibling), parentDistance);
+                if(this.numbering.getParent(parentId) >= 0)
+                    candidates.add(new Candidate(parentId, true, false, parentDistance,
+                                                 parentDistance + this.numbering.getNode(parentId).getBranchLength()));
+            }
+            else if(node.isLeaf()) {
+                relatives.add(new Relative(node.getSpecies(), candidate.distance));
+            }
+            else {
+                addSubtree(candidates, id + 1, candidate.distance);
+                addSubtree(candidates, this.numbering.getId(node.getRightChild()), candidate.distance);
+            }
+        }
+        // A bound may round one bit above a distance below it; the sort is stable
+        relatives.sort((relative1, relative2) -> Double.compare(relative1.distance, relative2.distance));
+        return relatives;
+    }
+
+    // addSubtree
+    // Pre-conditions:
+    //    - parentDistance is the distance from the source leaf to the parent of id
+    // Post-conditions:
+    //    - The subtree of id has been added to the candidates
+    private void addSubtree(PriorityQueue<Candidate> candidates, int id, double parentDistance) {
+        double distance = parentDistance + this.numbering.getNode(id).getBranchLength();
+        candidates.add(new Candidate(id, false, this.numbering.getNode(id).isLeaf(), distance, distance + this.nearestLeafDistance[id]));
+        return;
+    }
+
+    // find
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the id of the first node in pre-order with the label, -1
+    //      if there is none
+    // Notes:
+    //    - Only the labels of the non-terminals whose hash code matches are
+    //      built (and kept by those nodes)
+    private int find(String label) {
+        Integer leafId = this.labelIndex.get(label);
+        // Every non-terminal label has a '+', so it cannot be a leaf label without one
+        if(leafId != null && !this.plusInLeafLabels)
+            return leafId;
+        int id = (leafId == null) ? -1 : leafId;
+        if(label.indexOf('+') < 0)
+            return id;
+
+        long key = ((long) label.hashCode()) << 32;
+        int low = 0;
+        int high = this.nonterminalIndex.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(this.nonterminalIndex[middle] < key)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        for(int k = low; k < this.nonterminalIndex.length && (this.nonterminalIndex[k] >> 32) == (key >> 32); k++) {
+            int candidate = (int) this.nonterminalIndex[k];
+            if(id >= 0 && candidate > id)
+                break;
+            if(this.numbering.getNode(candidate).getLabel().equals(label))
+                return candidate;
+        }
+        return id;
+    }
+
+    // sumToAncestor
+    // Pre-conditions:
+    //    - ancestor is the id of an ancestor of id (or id itself)
+    // Post-conditions:
+    //    - Returns the edge weights from id up to ancestor, added bottom-up
+    private double sumToAncestor(int id, int ancestor) {
+        double weight = 0;
+        while(id != ancestor) {
+            weight += this.numbering.getNode(id).getBranchLength();
+            id = this.numbering.getParent(id);
+        }
+        return weight;
+    }
+
+    // distanceAncestor
+    // Pre-conditions:
+    //    - id1 and id2 are node ids
+    // Post-conditions:
+    //    - Returns the common proper ancestor of the two nodes, or their least
+    //      common ancestor if they have no common proper ancestor
+    private int distanceAncestor(int id1, int id2) {
+        int ancestor = properAncestor(id1, id2);
+        if(ancestor < 0)
+            ancestor = lca(id1, id2);
+        return ancestor;
+    }
+
+    // properAncestor
+    // Pre-conditions:
+    //    - id1 and id2 are node ids
+    // Post-conditions:
+    //    - Returns the id of the deepest common proper ancestor, -1 if there is none
+    private int properAncestor(int id1, int id2) {
+        int ancestor = lca(id1, id2);
+        if(ancestor == id1 || ancestor == id2)
+            ancestor = this.numbering.getParent(ancestor);
+        return ancestor;
+    }
+
+    // lca
+    // Pre-conditions:
+    //    - id1 and id2 are node ids
+    // Post-conditions:
+    //    - Returns the id of the least common ancestor, in O(1)
+    private int lca(int id1, int id2) {
+        int left = this.firstVisit[id1];
+        int right = this.firstVisit[id2];
+        if(left > right) {
+            int swap = left;
+            left = right;
+            right = swap;
+        }
+        int level = 31 - Integer.numberOfLeadingZeros(right - left + 1);
+        int position1 = this.sparseTable[level][left];
+        int position2 = this.sparseTable[level][right - (1 << level) + 1];
+        if(this.tourDepth[position2] < this.tourDepth[position1])
+            position1 = position2;
+        return this.tourNode[position1];
+    }
+
+    // MODIFIER
+
+    // indexNodes
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Every node has its weighted depth and, for a leaf, an entry in
+    //      the label index
+    private void indexNodes() {
+        for(int id=0; id < this.numbering.size(); id++) {
+            PhyloTreeNode node = this.numbering.getNode(id);
+            if(node.isLeaf()) {
+                this.labelIndex.putIfAbsent(node.getLabel(), id);
+                this.plusInLeafLabels |= node.getLabel().indexOf('+') >= 0;
+            }
+            int parentId = this.numbering.getParent(id);
+            if(parentId >= 0)
+                this.weightedDepth[id] = this.weightedDepth[parentId] + node.getBranchLength();
+        }
+        return;
+    }
+
+    // indexNonterminalLabels
+    // Pre-conditions:
+    //    - The nodes have been numbered
+    // Post-conditions:
+    //    - nonterminalIndex holds the label hash code and id of every
+    //      non-terminal, sorted
+    // Notes:
+    //    - hash("a+b") = hash("a")*31^(|b|+1) + '+'*31^|b| + hash("b") in int
+    //      arithmetic; children have higher ids than their parent
+    private void indexNonterminalLabels() {
+        int[] hash = new int[this.numbering.size()];
+        int[] power = new int[this.numbering.size()];        // 31^(length of the label)
+        int numNonterminals = 0;
+        for(int id = this.numbering.size() - 1; id >= 0; id--) {
+            PhyloTreeNode node = this.numbering.getNode(id);
+            if(node.isLeaf()) {
+                String label = node.getLabel();
+                hash[id] = label.hashCode();
+                power[id] = 1;
+                for(int i=0; i < label.length(); i++)
+                    power[id] *= 31;
+                continue;
+            }
+            int left = this.numbering.getId(node.getLeftChild());
+            int right = this.numbering.getId(node.getRightChild());
+            hash[id] = hash[left] * 31 * power[right] + '+' * power[right] + hash[right];
+            power[id] = power[left] * 31 * power[right];
+            this.nonterminalIndex[numNonterminals++] = (((long) hash[id]) << 32) | id;
+        }
+        this.nonterminalIndex = java.util.Arrays.copyOf(this.nonterminalIndex, numNonterminals);
+        java.util.Arrays.sort(this.nonterminalIndex);
+        return;
+    }
+
+    // computeNearestLeafDistances
+    // Pre-conditions:
+    //    - The nodes have been numbered
+    // Post-conditions:
+    //    - nearestLeafDistance holds the smallest sum of edge weights from
+    //      every node down to a leaf of its subtree (0 for a leaf)
+    private void computeNearestLeafDistances() {
+        // Children have higher ids than their parent
+        for(int id = this.numbering.size() - 1; id >= 0; id--) {
+            PhyloTreeNode node = this.numbering.getNode(id);
+            if(node.isLeaf())
+                continue;
+            PhyloTreeNode left = node.getLeftChild();
+            PhyloTreeNode right = node.getRightChild();
+            this.nearestLeafDistance[id] = Math.min(left.getBranchLength() + this.nearestLeafDistance[id + 1],
+                                                    right.getBranchLength() + this.nearestLeafDistance[this.numbering.getId(right)]);
+        }
+        return;
+    }
+
+    // buildEulerTour
+    // Pre-conditions:
+    //    - The nodes have been numbered
+    // Post-conditions:
+    //    - tourNode / tourDepth hold the Euler tour (every node is listed when it
+    //      is entered and again after each of its children) and firstVisit the
+    //      position of every node's first appearance
+    private void buildEulerTour() {
+        int[] depth = new int[this.numbering.size()];
+        int[] nextChild = new int[this.numbering.size()];  // 0 = left next, 1 = right next, 2 = done
+        int[] idStack = new int[this.numbering.size()];
+        int stackSize = 0;
+        int position = 0;
+
+        idStack[stackSize++] = 0;
+        while(stackSize > 0) {
+            int id = idStack[stackSize - 1];
+            if(nextChild[id] == 0)
+                this.firstVisit[id] = position;
+            this.tourNode[position] = id;
+            this.tourDepth[position] = depth[id];
+            position++;
+
+            PhyloTreeNode child = null;
+            while(child == null && nextChild[id] < 2) {
+                child = (nextChild[id] == 0) ? this.numbering.getNode(id).getLeftChild() : this.numbering.getNode(id).getRightChild();
+                nextChild[id]++;
+            }
+            if(child == null) {
+                stackSize--;
+                continue;
+            }
+            int childId = this.numbering.getId(child);
+            depth[childId] = depth[id] + 1;
+            idStack[stackSize++] = childId;
+        }
+        return;
+    }
+
+    // buildSparseTable
+    // Pre-conditions:
+    //    - The Euler tour has been built
+    // Post-conditions:
+    //    - sparseTable answers range minimum queries over tourDepth
+    private void buildSparseTable() {
+        int length = this.tourDepth.length;
+        int levels = 32 - Integer.numberOfLeadingZeros(length);
+        this.sparseTable = new int[levels][];
+        this.sparseTable[0] = new int[length];
+        for(int i=0; i < length; i++)
+            this.sparseTable[0][i] = i;
+        for(int k=1; k < levels; k++) {
+            int half = 1 << (k - 1);
+            int[] previous = this.sparseTable[k - 1];
+            int[] current = new int[length - (1 << k) + 1];
+            for(int i=0; i < current.length; i++) {
+                int position1 = previous[i];
+                int position2 = previous[i + half];
+                current[i] = (this.tourDepth[position2] < this.tourDepth[position1]) ? position2 : position1;
+            }
+            this.sparseTable[k] = current;
+        }
+        return;
+    }
+
+    // Relative
+    // A leaf found by nearestRelatives and its distance to the source leaf
+    public static class Relative {
+        private Species species;
+        private double distance;
+
+        Relative(Species species, double distance) {
+            this.species = species;
+            this.distance = distance;
+        }
+
+        public Species getSpecies() {
+            return this.species;
+        }
+
+        public double getDistance() {
+            return this.distance;
+        }
+    }
+
+    // Candidate
+    // Entry of the nearestRelatives search: the subtree of a node, or the
+    // step up from a node to its parent, ordered by the lowest distance a
+    // leaf reached through it can have; at equal bounds subtrees come
+    // before leaves and lower ids first, so ties end up in pre-order
+    private static class Candidate implements Comparable<Candidate> {
+        int node;
+        boolean upward;        // The step up from node, not the subtree of node
+        boolean leaf;          // The subtree of a leaf: bound is its distance
+        double distance;       // Distance from the source leaf to node
+        double bound;          // No leaf reached through this candidate is closer
+
+        Candidate(int node, boolean upward, boolean leaf, double distance, double bound) {
+            this.node = node;
+            this.upward = upward;
+            this.leaf = leaf;
+            this.distance = distance;
+            this.bound = bound;
+        }
+
+        public int compareTo(Candidate other) {
+            int order = Double.compare(this.bound, other.bound);
+            if(order != 0)
+                return order;
+            if(this.leaf != other.leaf)
+                return this.leaf ? 1 : -1;
+            return Integer.compare(this.node, other.node);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * TreeRenderer.java
+ *
+ * Renders the indented console view of a phylogenetic tree (PhyloTree.toString)
+ *
+ * The nodes are listed in reverse in-order (right subtree, node, left
+ * subtree), one per line.  Each line is indented with
+ *
+ *    ceil(printingDepth * weightedDepth / maxDepth)
+ *
+ * dots, where weightedDepth is the sum of the edge weights from the root to
+ * the node, followed by the node's toString and a newline.  A node at the
+ * weighted height of the tree is therefore indented by printingDepth dots.
+ *
+ * The traversal is done once, iteratively, when the renderer is created:
+ * it records the nodes in output order with their indentation, computing
+ * each node's weighted depth from its parent's.  The lines can then be
+ * written to any Appendable (e.g. a Writer) or collected in one String
+ * whose size is known in advance.
+ *
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TreeRenderer {
+    private PhyloTreeNode[] nodes;    // Nodes in output (RNL) order
+    private int[] indents;            // Number of dots before each node
+    private String dots;              // As many dots as the deepest indentation
+    private char[] digits;            // Scratch space for formatting distances
+
+    // CONSTRUCTOR
+
+    // TreeRenderer
+    // Pre-conditions:
+    //    - root is the root of a tree (or null for an empty tree)
+    //    - printingDepth is a positive number
+    // Post-conditions:
+    //    - A renderer of the tree has been created, scaled so the deepest
+    //      node is indented by printingDepth dots
+    public TreeRenderer(PhyloTreeNode root, int printingDepth) {
+        this(root, printingDepth, 0.0, Double.NaN);
+        return;
+    }
+
+    // TreeRenderer
+    // Pre-conditions:
+    //    - root points to the root of a tree (or subtree) you intend to print
+    //    - rootDepth is the sum of the edge weights from the overall root to root
+    //    - maxDepth is the weighted depth of the overall tree, or NaN to use
+    //      the deepest node below root
+    // Post-conditions:
+    //    - A renderer of the tree has been created
+    public TreeRenderer(PhyloTreeNode root, int printingDepth, double rootDepth, double maxDepth) {
+        int numNodes = (root == null) ? 0 : 2 * root.getNumLeafs() - 1;
+        this.nodes = new PhyloTreeNode[numNodes];
+        this.digits = new char[24];
+        double[] depths = new double[numNodes];
+
+        // Reverse in-order traversal with an explicit stack
+        PhyloTreeNode[] nodeStack = new PhyloTreeNode[16];
+        double[] depthStack = new double[16];
+        int stackSize = 0;
+        int numLines = 0;
+        double deepest = 0.0;
+        PhyloTreeNode node = root;
+        double depth = rootDepth;
+        while(node != null || stackSize > 0) {
+            while(node != null) {
+                if(stackSize == nodeStack.length) {
+                    nodeStack = Arrays.copyOf(nodeStack, 2 * stackSize);
+                    depthStack = Arrays.copyOf(depthStack, 2 * stackSize);
+                }
+                nodeStack[stackSize] = node;
+                depthStack[stackSize++] = depth;
+                depth += node.getDistanceToRightChild();
+                node = node.getRightChild();
+            }
+            node = nodeStack[--stackSize];
+            depth = depthStack[stackSize];
+            if(numLines == this.nodes.length) {
+                this.nodes = Arrays.copyOf(this.nodes, 2 * numLines + 1);
+                depths = Arrays.copyOf(depths, this.nodes.length);
+            }
+            this.nodes[numLines] = node;
+            depths[numLines++] = depth;
+            deepest = Math.max(deepest, depth);
+            depth += node.getDistanceToLeftChild();
+            node = node.getLeftChild();
+        }
+        this.nodes = Arrays.copyOf(this.nodes, numLines);
+
+        if(Double.isNaN(maxDepth))
+            maxDepth = deepest;
+        this.indents = new int[numLines];
+        int maxIndent = 0;
+        for(int i=0; i < numLines; i++) {
+            double k = printingDepth * (depths[i] / maxDepth);
+            this.indents[i] = (k > 0 && k < Integer.MAX_VALUE) ? (int) Math.ceil(k) : 0;
+            maxIndent = Math.max(maxIndent, this.indents[i]);
+        }
+        this.dots = ".".repeat(maxIndent);
+        return;
+    }
+
+    // ACCESSORS
+
+    // toString
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns all lines of the rendering in one String
+    public String toString() {
+        long length = 0;
+        for(int i=0; i < this.nodes.length; i++) {
+            length += this.indents[i] + 1;
+            length += this.nodes[i].isLeaf() ? this.nodes[i].getLabel().length() : 16;
+        }
+        StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, length));
+        try {
+            write(builder);
+        } catch(IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    // write
+    // Pre-conditions:
+    //    - out is where the rendering should be written
+    // Post-conditions:
+    //    - All lines of the rendering have been appended to out
+    //    - Throws IOException if out throws it
+    public void write(Appendable out) throws IOException {
+        for(int i=0; i < this.nodes.length; i++) {
+            out.append(this.dots, 0, this.indents[i]);
+            appendNode(out, this.nodes[i]);
+            out.append('\n');
+        }
+        return;
+    }
+
+    // appendNode
+    // Pre-conditions:
+    //    - node is a node of the tree
+    // Post-conditions:
+    //    - node.toString() has been appended to out, formatting the
+    //      [NONTERM %.2f] of non-terminals without java.util.Formatter
+    private void appendNode(Appendable out, PhyloTreeNode node) throws IOException {
+        if(node.isLeaf()) {
+            out.append(node.getLabel());
+            return;
+        }
+        double distance = node.getDistanceToChild();
+        long scaled = DistanceWriter.roundScaled(distance, 2);
+        if(scaled < 0 || Double.doubleToRawLongBits(distance) < 0) {
+            out.append(node.toString());
+            return;
+        }
+
+        int numDigits = 0;
+        this.digits[numDigits++] = ']';
+        this.digits[numDigits++] = (char) ('0' + scaled % 10);
+        this.digits[numDigits++] = (char) ('0' + (scaled / 10) % 10);
+        this.digits[numDigits++] = '.';
+        long whole = scaled / 100;
+        do {
+            this.digits[numDigits++] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while(whole > 0);
+        out.append("[NONTERM ");
+        for(int i = numDigits - 1; i >= 0; i--)
+            out.append(this.digits[i]);
+        return;
+    }
+}
@@ -0,0 +1,627 @@
+/*
+ * UpgmaClusterer.java
+ *
+ * Array-backed clustering engine used by PhyloTree.buildTree
+ *
+ * The pairwise distances between the active clusters are stored in a
+ * DistanceMatrix indexed by cluster slot, and every row caches
+ * its closest partner.  Each merge therefore only has to scan the row
+ * minimums to find the closest pair and rescan the few rows whose cached
+ * partner was merged away, which makes clustering O(n^2) on real data
+ * instead of the O(n^3) pair scan done by findMinTreeDistance.
+ *
+ * The merge order, the weighted average distance update and the tie-breaking
+ * conventions are the same as PhyloTree.findMinTreeDistance, so the resulting
+ * trees are identical.  When several pairs are tied at the minimum distance,
+ * findMinTreeDistance picks leftChild / rightChild by comparing labels while
+ * it walks its HashMap, so the result depends on the iteration order of that
+ * map.  labelOrder mirrors that map and the tie-break loop is replayed over
+ * the tied clusters only.
+ *
+ * The labels themselves (leftlabel+rightlabel, whose total length grows
+ * with the square of the number of species on unbalanced trees) are never
+ * built while clustering.  Each cluster has a ClusterLabel instead, which
+ * has the hash code of its label, computed from the hash codes of the two
+ * children, and compares like the label using the rank of the label's
+ * first species name among all names.  labelOrder is keyed by these, so it
+ * iterates in exactly the order of a map keyed by the label strings, and
+ * the non-terminals build their labels only if they are asked for them.
+ *
+ * A clusterer made from the species instead of leaf nodes creates no
+ * PhyloTreeNode at all: clusterCompact() lays the tree out as a CompactTree
+ * from the merge history (see BuildOptions.setCompact).
+ *
+ * Every merge is recorded in a MergeHistory.  When species are appended to
+ * an already clustered set, replay() re-applies the recorded merges that
+ * are provably still chosen, without searching for the closest pair, and
+ * cluster() then finishes the clustering as usual (see PhyloTree.addSpecies).
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class UpgmaClusterer {
+    private PhyloTreeNode[] clusters;     // Active cluster in each slot (null once merged away, or no nodes at all)
+    private int[] clusterSize;            // Number of leaves of the cluster in each slot (0 once merged away)
+    private Species[] species;            // Species of the leaves, in slot order
+    private DistanceMatrix distances;     // Distances between slots
+    private int[] rowPartner;             // Slot of the closest partner of each row (-1 if none)
+    private double[] rowDistance;         // Distance from each row to its closest partner
+    private int numActive;                // Number of clusters that have not been merged away
+    private ClusterLabel[] labels;        // Label of the active cluster in each slot
+    private HashMap<ClusterLabel,Integer> labelOrder; // Label -> slot, updated like the treeMap of findMinTreeDistance
+    private int[] mergeLeft;              // Slot of the left child of each merge so far
+    private int[] mergeRight;             // Slot of the right child of each merge so far
+    private double[] mergeDistance;       // Distance between the two children of each merge
+    private int[] tiedEnd;                // tiedEnd[k] .. tiedEnd[k+1] is the range of merge k in tiedSlots
+    private int[] tiedSlots;              // Clusters each tie-break was made among
+    private int numTiedSlots;
+    private int numMerges;
+
+    // CONSTRUCTOR
+
+    // UpgmaClusterer
+    // Pre-conditions:
+    //    - leaves contains one leaf PhyloTreeNode per species, with unique labels
+    //    - distances holds the pairwise distances of the leaves (leaf i has id i)
+    // Post-conditions:
+    //    - A clusterer ready to run has been created
+    // Notes:
+    //    - distances is updated in place while clustering
+    public UpgmaClusterer(PhyloTreeNode[] leaves, DistanceMatrix distances) {
+        this(leaves.clone(), new Species[leaves.length], distances);
+        for(int i=0; i < leaves.length; i++)
+            this.species[i] = leaves[i].getSpecies();
+    }
+
+    // UpgmaClusterer
+    // Pre-conditions:
+    //    - species have unique names
+    //    - distances holds the pairwise distances of the species
+    // Post-conditions:
+    //    - A clusterer that creates no PhyloTreeNode has been created; its
+    //      tree is given by clusterCompact
+    // Notes:
+    //    - distances is updated in place while clustering
+    public UpgmaClusterer(Species[] species, DistanceMatrix distances) {
+        this(null, species.clone(), distances);
+    }
+
+    // UpgmaClusterer
+    // Pre-conditions:
+    //    - species holds one entry per leaf, leaves are their nodes or null
+    // Post-conditions:
+    //    - A clusterer ready to run has been created
+    private UpgmaClusterer(PhyloTreeNode[] leaves, Species[] species, DistanceMatrix distances) {
+        int numLeafs = species.length;
+        this.clusters = leaves;
+        this.species = species;
+        this.clusterSize = new int[numLeafs];
+        java.util.Arrays.fill(this.clusterSize, 1);
+        this.distances = distances;
+        this.numActive = numLeafs;
+        this.rowPartner = new int[numLeafs];
+        this.rowDistance = new double[numLeafs];
+        String[] names = new String[numLeafs];
+        for(int i=0; i < numLeafs; i++)
+            names[i] = (leaves != null) ? leaves[i].getLabel() : species[i].getName();
+        this.labels = leafLabels(names, leaves);
+        this.labelOrder = new HashMap<ClusterLabel,Integer>();
+        for(int i=0; i < numLeafs; i++)
+            this.labelOrder.put(this.labels[i], i);
+        int maxMerges = Math.max(0, numLeafs - 1);
+        this.mergeLeft = new int[maxMerges];
+        this.mergeRight = new int[maxMerges];
+        this.mergeDistance = new double[maxMerges];
+        this.tiedEnd = new int[maxMerges + 1];
+        this.tiedSlots = new int[16];
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumMerges
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the number of merges done so far (replayed ones included)
+    public int getNumMerges() {
+        return this.numMerges;
+    }
+
+    // getMergeHistory
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the merges done so far, in order
+    public MergeHistory getMergeHistory() {
+        return new MergeHistory(java.util.Arrays.copyOf(this.mergeLeft, this.numMerges),
+                                java.util.Arrays.copyOf(this.mergeRight, this.numMerges),
+                                java.util.Arrays.copyOf(this.mergeDistance, this.numMerges),
+                                java.util.Arrays.copyOf(this.tiedEnd, this.numMerges + 1),
+                                java.util.Arrays.copyOf(this.tiedSlots, this.numTiedSlots));
+    }
+
+    // MODIFIER
+
+    // cluster
+    // Pre-conditions:
+    //    - The clusterer was made from leaf nodes
+    //    - cluster has not been called on this object before
+    // Post-conditions:
+    //    - Repeatedly merges the two closest clusters until a single tree remains
+    //    - Returns the root of that tree (null if there were no leaves)
+    public PhyloTreeNode cluster() {
+        mergeAll();
+        for(int i=0; i < this.clusterSize.length; i++) {
+            if(this.clusterSize[i] > 0)
+                return this.clusters[i];
+        }
+        return null;
+    }
+
+    // clusterCompact
+    // Pre-conditions:
+    //    - cluster and clusterCompact have not been called on this object before
+    // Post-conditions:
+    //    - Repeatedly merges the two closest clusters until a single tree remains
+    //    - Returns that tree, laid out from the merge history (an empty tree
+    //      if there were no leaves)
+    public CompactTree clusterCompact() {
+        mergeAll();
+        return CompactTree.fromMerges(this.species, getMergeHistory());
+    }
+
+    // mergeAll
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - The closest clusters have been merged until at most one is left
+    private void mergeAll() {
+        if(this.numActive == 0)
+            return;
+
+        for(int i=0; i < this.clusterSize.length; i++)
+            rescanRow(i);
+
+        while(this.numActive > 1) {
+            // Find the minimum distance among the cached row minimums
+            double minDistance = Double.POSITIVE_INFINITY;
+            int bestRow = -1;
+            for(int i=0; i < this.clusterSize.length; i++) {
+                if(this.clusterSize[i] > 0 && this.rowPartner[i] >= 0
+                   && (bestRow < 0 || this.rowDistance[i] < minDistance)) {
+                    minDistance = this.rowDistance[i];
+                    bestRow = i;
+                }
+            }
+
+            // Count the clusters that take part in a pair at that distance
+            int numTied = 0;
+            for(int i=0; i < this.clusterSize.length; i++) {
+                if(this.clusterSize[i] > 0 && this.rowPartner[i] >= 0 && this.rowDistance[i] == minDistance)
+                    numTied++;
+            }
+            if(numTied <= 2) {
+                // A single closest pair: the lexicographically first label is the left child
+                int leftSlot = bestRow;
+                int rightSlot = this.rowPartner[bestRow];
+                if(this.labels[leftSlot].compareTo(this.labels[rightSlot]) > 0) {
+                    leftSlot = rightSlot;
+                    rightSlot = bestRow;
+                }
+                merge(leftSlot, rightSlot, minDistance, null, 0);
+            }
+            else {
+                mergeTied(minDistance);
+            }
+        }
+        return;
+    }
+
+    // mergeTied
+    // Pre-conditions:
+    //    - More than two clusters take part in a pair at distance minDistance,
+    //      and no pair is closer
+    // Post-conditions:
+    //    - The pair findMinTreeDistance would have chosen has been merged
+    // Notes:
+    //    - Replays the leftChild / rightChild selection of findMinTreeDistance,
+    //      restricted to the tied clusters, in the iteration order of its treeMap
+    private void mergeTied(double minDistance) {
+        ArrayList<Integer> tied = new ArrayList<Integer>();
+        for(Map.Entry<ClusterLabel,Integer> entry : this.labelOrder.entrySet()) {
+            int slot = entry.getValue();
+            if(this.rowPartner[slot] >= 0 && this.rowDistance[slot] == minDistance)
+                tied.add(slot);
+        }
+        int[] pair = chooseTied(tied, minDistance);
+        merge(pair[0], pair[1], minDistance, tied, 0);
+        return;
+    }
+
+    // chooseTied
+    // Pre-conditions:
+    //    - tied lists the tied clusters in the iteration order of labelOrder
+    // Post-conditions:
+    //    - Returns the left and right slots findMinTreeDistance would have chosen
+    private int[] chooseTied(ArrayList<Integer> tied, double minDistance) {
+        int leftSlot = -1;
+        int rightSlot = -1;
+        for(int tree1 : tied) {
+            for(int tree2 : tied) {
+                if(tree1 == tree2 || this.distances.get(tree1, tree2) != minDistance)
+                    continue;
+                ClusterLabel label1 = this.labels[tree1];
+                ClusterLabel label2 = this.labels[tree2];
+                if(leftSlot < 0) {
+                    leftSlot = tree1;
+                    rightSlot = tree2;
+                    if(label1.compareTo(label2) > 0) {
+                        leftSlot = tree2;
+                        rightSlot = tree1;
+                    }
+                }
+                else if(label1.compareTo(this.labels[leftSlot]) < 0) {
+                    leftSlot = tree1;
+                    rightSlot = tree2;
+                }
+                else if(label2.compareTo(this.labels[leftSlot]) < 0) {
+                    leftSlot = tree2;
+                    rightSlot = tree1;
+                }
+            }
+        }
+        return new int[] {leftSlot, rightSlot};
+    }
+
+    // replay
+    // Pre-conditions:
+    //    - cluster and replay have not been called on this object before
+    //    - The first firstNewSlot leaves are, in the same order, the leaves that
+    //      were clustered with the merges of history, and the distances between
+    //      them are unchanged; the leaves from firstNewSlot on are new
+    // Post-conditions:
+    //    - The longest prefix of history that cluster() would also have done
+    //      has been applied, and its length is returned
+    // Notes:
+    //    - While every pair involving a new leaf is further apart than the
+    //      recorded merge distance d, the clusters tied at d are the same as in
+    //      the original clustering.  A merge that had no tie is then the one
+    //      cluster() picks; for a tie-break the choice also depends on the
+    //      iteration order of labelOrder, which now holds the new labels too,
+    //      so it is made again over the recorded tied clusters and the replay
+    //      stops if it differs.  Only the rows of the new leaves have to be
+    //      kept up to date to check the distance condition.
+    public int replay(MergeHistory history, int firstNewSlot) {
+        for(int i = firstNewSlot; i < this.clusterSize.length; i++)
+            rescanRow(i);
+
+        boolean[] isTied = new boolean[this.clusterSize.length];
+        int numReplayed = 0;
+        for(int k=0; k < history.size(); k++) {
+            int leftSlot = history.getLeft(k);
+            int rightSlot = history.getRight(k);
+            double distance = history.getDistance(k);
+            if(leftSlot >= firstNewSlot || rightSlot >= firstNewSlot
+               || this.clusterSize[leftSlot] == 0 || this.clusterSize[rightSlot] == 0
+               || this.distances.get(leftSlot, rightSlot) != distance)
+                break;
+
+            boolean newPairIsCloser = false;
+            for(int i = firstNewSlot; i < this.clusterSize.length; i++) {
+                if(this.rowPartner[i] >= 0 && this.rowDistance[i] <= distance)
+                    newPairIsCloser = true;
+            }
+            if(newPairIsCloser)
+                break;
+
+            ArrayList<Integer> tied = null;
+            if(history.isTied(k)) {
+                int[] tiedSlots = history.getTiedSlots(k);
+                for(int slot : tiedSlots)
+                    isTied[slot] = true;
+                tied = new ArrayList<Integer>(tiedSlots.length);
+                for(Map.Entry<ClusterLabel,Integer> entry : this.labelOrder.entrySet()) {
+                    if(isTied[entry.getValue()])
+                        tied.add(entry.getValue());
+                }
+                for(int slot : tiedSlots)
+                    isTied[slot] = false;
+                int[] pair = (tied.size() == tiedSlots.length) ? chooseTied(tied, distance) : null;
+                if(pair == null || pair[0] != leftSlot || pair[1] != rightSlot)
+                    break;
+            }
+
+            merge(leftSlot, rightSlot, distance, tied, firstNewSlot);
+            numReplayed++;
+        }
+        return numReplayed;
+    }
+
+    // merge
+    // Pre-conditions:
+    //    - leftSlot and rightSlot are two different active slots
+    //    - minDistance is the distance between them
+    // Post-conditions:
+    //    - The two clusters have been joined under a new non-terminal stored in
+    //      the lower of the two slots, the other slot is retired
+    //    - The distances from the new cluster and the row minimums have been updated
+    //    - The merge has been recorded in the history, with the clusters it
+    //      was chosen among if it was a tie-break (tied is null otherwise)
+    //    - The closest partners of the rows from firstRow on have been updated
+    // Notes:
+    //    - The left child is always the cluster in leftSlot, so callers pass
+    //      the slots in the order findMinTreeDistance would have chosen them
+    //    - cluster() rescans every row before its first merge, so rows below
+    //      firstRow may be left stale by replay()
+    private void merge(int leftSlot, int rightSlot, double minDistance, ArrayList<Integer> tied, int firstRow) {
+        // Create a new tree and reset the parent pointers of the children
+        PhyloTreeNode newNode = null;
+        if(this.clusters != null) {
+            PhyloTreeNode leftChild = this.clusters[leftSlot];
+            PhyloTreeNode rightChild = this.clusters[rightSlot];
+            newNode = new PhyloTreeNode(null, leftChild, rightChild, minDistance/2.0);
+            leftChild.setParent(newNode);
+            rightChild.setParent(newNode);
+        }
+        ClusterLabel label = new ClusterLabel(this.labels[leftSlot], this.labels[rightSlot], newNode);
+
+        int newSlot = Math.min(leftSlot, rightSlot);
+        int oldSlot = Math.max(leftSlot, rightSlot);
+
+        // Compute the distances from this new tree to the other trees
+        // (same expression as findMinTreeDistance so the values are bit-identical)
+        double iLeafs = (double) this.clusterSize[leftSlot];
+        double jLeafs = (double) this.clusterSize[rightSlot];
+        for(int k=0; k < this.clusterSize.length; k++) {
+            if(this.clusterSize[k] == 0 || k == leftSlot || k == rightSlot)
+                continue;
+            double distanceTiT = this.distances.get(leftSlot, k);
+            double distanceTjT = this.distances.get(rightSlot, k);
+            this.distances.set(newSlot, k, (distanceTiT*(iLeafs/(iLeafs + jLeafs))) + (distanceTjT*(jLeafs/(iLeafs + jLeafs))));
+        }
+        if(this.clusters != null) {
+            this.clusters[newSlot] = newNode;
+            this.clusters[oldSlot] = null;
+        }
+        this.clusterSize[newSlot] = this.clusterSize[leftSlot] + this.clusterSize[rightSlot];
+        this.clusterSize[oldSlot] = 0;
+        this.rowPartner[oldSlot] = -1;
+        this.numActive--;
+        this.labelOrder.put(label, newSlot);
+        this.labelOrder.remove(this.labels[leftSlot]);
+        this.labelOrder.remove(this.labels[rightSlot]);
+        this.labels[newSlot] = label;
+        this.labels[oldSlot] = null;
+        this.mergeLeft[this.numMerges] = leftSlot;
+        this.mergeRight[this.numMerges] = rightSlot;
+        this.mergeDistance[this.numMerges] = minDistance;
+        if(tied != null) {
+            for(int slot : tied)
+                this.tiedSlots = appendSlot(this.tiedSlots, this.numTiedSlots++, slot);
+        }
+        this.numMerges++;
+        this.tiedEnd[this.numMerges] = this.numTiedSlots;
+
+        // Rows that pointed at one of the merged clusters must be rescanned,
+        // every other row only has to consider the new cluster
+        for(int k = firstRow; k < this.clusterSize.length; k++) {
+            if(this.clusterSize[k] == 0 || k == newSlot)
+                continue;
+            if(this.rowPartner[k] == leftSlot || this.rowPartner[k] == rightSlot) {
+                rescanRow(k);
+            }
+            else {
+                double distance = this.distances.get(newSlot, k);
+                if(this.rowPartner[k] < 0 || distance < this.rowDistance[k]) {
+                    this.rowDistance[k] = distance;
+                    this.rowPartner[k] = newSlot;
+                }
+            }
+        }
+        if(newSlot >= firstRow)
+            rescanRow(newSlot);
+        return;
+    }
+
+    // rescanRow
+    // Pre-conditions:
+    //    - row is an active slot
+    // Post-conditions:
+    //    - rowPartner[row] and rowDistance[row] describe the closest active
+    //      partner of row (-1 if row is the only active slot)
+    private void rescanRow(int row) {
+        int partner = -1;
+        double best = 0.0;
+        for(int k=0; k < this.clusterSize.length; k++) {
+            if(this.clusterSize[k] == 0 || k == row)
+                continue;
+            double distance = this.distances.get(row, k);
+            if(partner < 0 || distance < best) {
+                best = distance;
+                partner = k;
+            }
+        }
+        this.rowPartner[row] = partner;
+        this.rowDistance[row] = best;
+        return;
+    }
+
+    // STATIC
+
+    // leafLabels
+    // Pre-conditions:
+    //    - names are the labels of the leaves, leaves their nodes (or null)
+    // Post-conditions:
+    //    - Returns the ClusterLabel of each leaf, ranked among all leaf labels
+    private static ClusterLabel[] leafLabels(String[] names, PhyloTreeNode[] leaves) {
+        String[] sorted = names.clone();
+        java.util.Arrays.sort(sorted);
+
+        // Equal names share a rank; a name is a prefix of another one if it
+        // is a prefix of the next different name in sorted order
+        HashMap<String,Integer> rank = new HashMap<String,Integer>(2 * names.length);
+        HashMap<String,Boolean> isPrefix = new HashMap<String,Boolean>(2 * names.length);
+        for(int i=0; i < sorted.length; i++) {
+            if(rank.containsKey(sorted[i]))
+                continue;
+            int next = i + 1;
+            while(next < sorted.length && sorted[next].equals(sorted[i]))
+                next++;
+            rank.put(sorted[i], rank.size());
+            isPrefix.put(sorted[i], next < sorted.length && sorted[next].startsWith(sorted[i]));
+        }
+
+        ClusterLabel[] labels = new ClusterLabel[names.length];
+        for(int i=0; i < names.length; i++)
+            labels[i] = new ClusterLabel(names[i], rank.get(names[i]), isPrefix.get(names[i]), (leaves != null) ? leaves[i] : null);
+        return labels;
+    }
+
+    // appendSlot
+    // Pre-conditions:
+    //    - size is the number of used entries of slots
+    // Post-conditions:
+    //    - slot has been stored at position size, and the (possibly grown)
+    //      array is returned
+    private static int[] appendSlot(int[] slots, int size, int slot) {
+        if(size == slots.length)
+            slots = java.util.Arrays.copyOf(slots, 2 * size);
+        slots[size] = slot;
+        return slots;
+    }
+
+    // ClusterLabel
+    // Stand-in for the label of a cluster: same hash code, equality and
+    // order as the label string, which is only built when the order cannot
+    // be decided from the first species names (one name is a prefix of
+    // another, or two species share a name)
+    static final class ClusterLabel implements Comparable<ClusterLabel> {
+        private int hash;             // String.hashCode() of the label
+        private int power;            // 31^(length of the label), modulo 2^32
+        private int firstRank;        // Rank of the label's first species name among all names
+        private boolean firstIsPrefix;// The first species name is a prefix of another name
+        private PhyloTreeNode node;   // Cluster that can build the label (null without nodes)
+        private ClusterLabel left;    // Labels of the two children (null for a leaf)
+        private ClusterLabel right;
+        private String label;         // The label (built on first use for a non-terminal)
+
+        ClusterLabel(String name, int rank, boolean isPrefix, PhyloTreeNode leaf) {
+            this.label = name;
+            this.hash = name.hashCode();
+            this.power = 1;
+            for(int i=0; i < name.length(); i++)
+                this.power *= 31;
+            this.firstRank = rank;
+            this.firstIsPrefix = isPrefix;
+            this.node = leaf;
+        }
+
+        // hash("a+b") = hash("a")*31^(|b|+1) + '+'*31^|b| + hash("b") (in int arithmetic)
+        ClusterLabel(ClusterLabel left, ClusterLabel right, PhyloTreeNode node) {
+            this.hash = left.hash * 31 * right.power + '+' * right.power + right.hash;
+            this.power = left.power * 31 * right.power;
+            this.firstRank = left.firstRank;
+            this.firstIsPrefix = left.firstIsPrefix;
+            this.node = node;
+            this.left = left;
+            this.right = right;
+        }
+
+        // The node's label when there is a node, so it is only built once;
+        // otherwise the leaf names of the subtree joined by '+'
+        String getLabel() {
+            if(this.label != null)
+                return this.label;
+            if(this.node != null) {
+                this.label = this.node.getLabel();
+                return this.label;
+            }
+            StringBuilder builder = new StringBuilder();
+            ArrayList<ClusterLabel> stack = new ArrayList<ClusterLabel>();
+            stack.add(this);
+            while(!stack.isEmpty()) {
+                ClusterLabel current = stack.remove(stack.size() - 1);
+                if(current.left == null) {
+                    if(builder.length() > 0)
+                        builder.append('+');
+                    builder.append(current.label);
+                    continue;
+                }
+                stack.add(current.right);
+                stack.add(current.left);
+            }
+            this.label = builder.toString();
+            return this.label;
+        }
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public boolean equals(Object other) {
+            if(this == other)
+                return true;
+            if(!(other instanceof ClusterLabel))
+                return false;
+            ClusterLabel label = (ClusterLabel) other;
+            return this.hash == label.hash && compareTo(label) == 0;
+        }
+
+        // Two labels starting with different names, the smaller of which is
+        // not a prefix of any name, differ within that name
+        public int compareTo(ClusterLabel other) {
+            if(this.firstRank != other.firstRank) {
+                boolean lowerIsPrefix = (this.firstRank < other.firstRank) ? this.firstIsPrefix : other.firstIsPrefix;
+                if(!lowerIsPrefix)
+                    return (this.firstRank < other.firstRank) ? -1 : 1;
+            }
+            return getLabel().compareTo(other.getLabel());
+        }
+    }
+
+    // MergeHistory
+    // The merges of a clustering, in order, as pairs of slots
+    public static class MergeHistory {
+        private int[] left;
+        private int[] right;
+        private double[] distance;
+        private int[] tiedEnd;
+        private int[] tiedSlots;
+
+        MergeHistory(int[] left, int[] right, double[] distance, int[] tiedEnd, int[] tiedSlots) {
+            this.left = left;
+            this.right = right;
+            this.distance = distance;
+            this.tiedEnd = tiedEnd;
+            this.tiedSlots = tiedSlots;
+        }
+
+        public int size() {
+            return this.left.length;
+        }
+
+        public int getLeft(int k) {
+            return this.left[k];
+        }
+
+        public int getRight(int k) {
+            return this.right[k];
+        }
+
+        public double getDistance(int k) {
+            return this.distance[k];
+        }
+
+        public boolean isTied(int k) {
+            return this.tiedEnd[k + 1] > this.tiedEnd[k];
+        }
+
+        public int[] getTiedSlots(int k) {
+            return java.util.Arrays.copyOfRange(this.tiedSlots, this.tiedEnd[k], this.tiedEnd[k + 1]);
+        }
+    }
+}
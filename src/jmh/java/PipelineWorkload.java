@@ -0,0 +1,257 @@
+/*
+ * PipelineWorkload.java
+ *
+ * The phases of the tree pipeline, benchmarked by bench.PipelineBenchmark
+ *
+ *   load        FastaReader.read (PhyloTree.loadSpeciesFile)
+ *   distance    Species.distance over every pair, on the calling thread
+ *   patterns    SitePatterns compression of the alignment
+ *   matrix      DistanceMatrixBuilder.build with a given number of threads
+ *   cluster     UpgmaClusterer.cluster on a precomputed matrix
+ *   mapped      the same on a memory-mapped float64 matrix (MappedDistanceMatrix)
+ *   nj          NeighborJoiner.cluster on a precomputed matrix
+ *   compact     CompactTree layout of the tree and its PhyloTreeNode view
+ *   upgmacompact UpgmaClusterer.clusterCompact: the same clustering laid
+ *               out from its merges, without any PhyloTreeNode
+ *   legacy      the original findMinTreeDistance loop
+ *   legacymap   the same loop with a DistanceMap instead of a MultiKeyMap
+ *   build       the whole PhyloTree constructor (load + matrix + cluster)
+ *   cached      the PhyloTree constructor with a TreeCache that holds the
+ *               tree (load + key + cache read)
+ *   newick      PhyloTree.toTreeString
+ *   query       PhyloTree.findEvolutionaryDistance over a fixed set of pairs
+ *   nearest     PhyloTree.findNearestRelatives (10 closest) for the same species
+ *   write       DistanceWriter output of the .distances file to a null stream
+ *
+ * The synthetic alignment is evolved from a random root sequence along a
+ * random tree, with a seed fixed by its size, so every run of a size
+ * benchmarks the same input.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+
+public class PipelineWorkload implements bench.Workload {
+    private static final int PRINTING_DEPTH = 100;
+    private static final int QUERY_PAIRS = 100000;       // Number of pairs queried per call
+    private static final int NEAREST_COUNT = 10;         // Relatives asked for per nearest query
+    private static final double MUTATION_RATE = 0.05;    // Fraction of residues changed along each synthetic edge
+    private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+    private File tempDir;              // Holds the alignment and the tree cache
+    private String filename;           // The synthetic alignment
+    private Species[] species;         // Its species, as loaded
+    private DistanceMatrix distances;  // Their distance matrix
+    private PhyloTreeNode root;        // UPGMA tree of the species
+    private BuildOptions options;
+    private BuildOptions cachedOptions;
+    private PhyloTree tree;            // Tree built by the PhyloTree constructor
+    private PhyloTree legacyTree;      // Tree rebuilt by the legacy loop (made on first use)
+    private String[] queries;          // Pairs of species names queried
+
+    // MODIFIER
+
+    public void setUp(int numSpecies, int numColumns) throws IOException {
+        this.tempDir = Files.createTempDirectory("phylo-bench").toFile();
+        File file = new File(this.tempDir, "synthetic-" + numSpecies + "x" + numColumns + ".fasta");
+        writeSyntheticAlignment(file, numSpecies, numColumns, new Random(241L * numSpecies + numColumns));
+        this.filename = file.getPath();
+        this.species = FastaReader.read(this.filename);
+
+        this.distances = new DistanceMatrixBuilder(Runtime.getRuntime().availableProcessors()).build(this.species);
+        this.root = new UpgmaClusterer(newLeaves(), this.distances.copy()).cluster();
+
+        this.options = new BuildOptions();
+        this.tree = new PhyloTree(this.filename, PRINTING_DEPTH, this.options);
+        this.tree.getQueryIndex();
+
+        File cacheDir = new File(this.tempDir, "cache");
+        cacheDir.mkdir();
+        this.cachedOptions = new BuildOptions();
+        this.cachedOptions.setCache(new TreeCache(cacheDir.getPath()));
+        new PhyloTree(this.filename, PRINTING_DEPTH, this.cachedOptions);
+
+        this.queries = new String[2 * QUERY_PAIRS];
+        Random random = new Random(numSpecies);
+        for(int i=0; i < this.queries.length; i++)
+            this.queries[i] = this.species[random.nextInt(numSpecies)].getName();
+        return;
+    }
+
+    public void tearDown() {
+        deleteAll(this.tempDir);
+        return;
+    }
+
+    // PHASES
+
+    public int load() throws IOException {
+        return FastaReader.read(this.filename).length;
+    }
+
+    public double distance() {
+        double sum = 0;
+        for(int i=1; i < this.species.length; i++)
+            for(int j=0; j < i; j++)
+                sum += Species.distance(this.species[i], this.species[j]);
+        return sum;
+    }
+
+    public int patterns() {
+        return new SitePatterns(this.species).getNumPatterns();
+    }
+
+    public int matrix(int threads) {
+        return new DistanceMatrixBuilder(threads).build(this.species).size();
+    }
+
+    public int cluster() {
+        // The clusterer updates the matrix in place
+        return new UpgmaClusterer(newLeaves(), this.distances.copy()).cluster().getNumLeafs();
+    }
+
+    public int mapped() {
+        int n = this.species.length;
+        return new UpgmaClusterer(newLeaves(), new MappedDistanceMatrix(this.distances, n, false, null)).cluster().getNumLeafs();
+    }
+
+    public int nj() {
+        return new NeighborJoiner(newLeaves(), this.distances.copy()).cluster().getNumLeafs();
+    }
+
+    public int compact() {
+        return new CompactTree(this.root).getNode(0).getNumLeafs();
+    }
+
+    public int upgmaCompact() {
+        return new UpgmaClusterer(this.species, this.distances.copy()).clusterCompact().getNumLeafs();
+    }
+
+    public int legacy() {
+        return runLegacy(new MultiKeyMap<Double>());
+    }
+
+    public int legacyMap() {
+        int n = this.species.length;
+        return runLegacy(new DistanceMap(n * (n - 1) / 2));
+    }
+
+    public int build() {
+        return new PhyloTree(this.filename, PRINTING_DEPTH, this.options).countAllSpecies();
+    }
+
+    public int cached() {
+        return new PhyloTree(this.filename, PRINTING_DEPTH, this.cachedOptions).countAllSpecies();
+    }
+
+    public int newick() {
+        return this.tree.toTreeString().length();
+    }
+
+    public double query() {
+        double sum = 0;
+        for(int i=0; i < this.queries.length; i += 2)
+            sum += this.tree.findEvolutionaryDistance(this.queries[i], this.queries[i + 1]);
+        return sum;
+    }
+
+    public int nearest() {
+        int found = 0;
+        for(int i=0; i < this.queries.length; i += 2)
+            found += this.tree.findNearestRelatives(this.queries[i], NEAREST_COUNT).size();
+        return found;
+    }
+
+    public long write() throws IOException {
+        DistanceWriter writer = new DistanceWriter(OutputStream.nullOutputStream(), DistanceWriter.Format.EVDISTANCE);
+        writer.write(this.tree);
+        return writer.getBytesWritten();
+    }
+
+    // newLeaves
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a new leaf for every species, in order
+    private PhyloTreeNode[] newLeaves() {
+        PhyloTreeNode[] leaves = new PhyloTreeNode[this.species.length];
+        for(int i=0; i < leaves.length; i++)
+            leaves[i] = new PhyloTreeNode(null, this.species[i]);
+        return leaves;
+    }
+
+    // runLegacy
+    // Pre-conditions:
+    //    - distanceMap is empty
+    // Post-conditions:
+    //    - A tree has been rebuilt from the species by the findMinTreeDistance loop
+    //    - Returns the number of leaves of the result
+    private int runLegacy(MultiKeyMap<Double> distanceMap) {
+        if(this.legacyTree == null)
+            this.legacyTree = new PhyloTree(this.filename, PRINTING_DEPTH, this.options);
+        HashMap<String,PhyloTreeNode> treeMap = new HashMap<String,PhyloTreeNode>();
+        for(int i=0; i < this.species.length; i++) {
+            treeMap.put(this.species[i].getName(), new PhyloTreeNode(null, this.species[i]));
+            for(int j=0; j < i; j++)
+                distanceMap.put(this.species[i].getName(), this.species[j].getName(), this.distances.get(i, j));
+        }
+        while(treeMap.size() > 1)
+            this.legacyTree.findMinTreeDistance(treeMap, distanceMap);
+        return this.legacyTree.getOverallRoot().getNumLeafs();
+    }
+
+    // STATIC
+
+    // deleteAll
+    // Pre-conditions:
+    //    - file is a file or directory (or null)
+    // Post-conditions:
+    //    - file and everything below it have been deleted
+    private static void deleteAll(File file) {
+        if(file == null)
+            return;
+        File[] entries = file.listFiles();
+        if(entries != null) {
+            for(File entry : entries)
+                deleteAll(entry);
+        }
+        file.delete();
+        return;
+    }
+
+    // writeSyntheticAlignment
+    // Pre-conditions:
+    //    - numSpecies and numColumns are positive numbers
+    // Post-conditions:
+    //    - file holds an alignment of numSpecies species of numColumns residues
+    //      each, every species being a mutated copy of a random earlier one
+    private static void writeSyntheticAlignment(File file, int numSpecies, int numColumns, Random random) throws IOException {
+        // One extra column, because the loader drops the first residue
+        char[][] sequences = new char[numSpecies][];
+        sequences[0] = new char[numColumns + 1];
+        for(int j=0; j <= numColumns; j++)
+            sequences[0][j] = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+        for(int i=1; i < numSpecies; i++) {
+            sequences[i] = sequences[random.nextInt(i)].clone();
+            for(int j=0; j <= numColumns; j++) {
+                if(random.nextDouble() < MUTATION_RATE)
+                    sequences[i][j] = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+            }
+        }
+
+        PrintStream out = new PrintStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(file), 1 << 16));
+        for(int i=0; i < numSpecies; i++) {
+            out.print(">0|1|2|3|4|5|S" + i + "\n");
+            out.print(sequences[i]);
+            out.print('\n');
+        }
+        out.close();
+        return;
+    }
+}
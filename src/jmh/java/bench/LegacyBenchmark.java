@@ -0,0 +1,62 @@
+/*
+ * LegacyBenchmark.java
+ *
+ * JMH benchmarks of the original findMinTreeDistance clustering loop
+ *
+ * The loop rescans every pair at each merge, so it only runs on small
+ * alignments; these are its own species sizes, apart from the ones of
+ * PipelineBenchmark.  legacy keeps the distances in a MultiKeyMap, as the
+ * original code did, and legacyMap in a DistanceMap.
+ *
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LegacyBenchmark {
+    @Param({"100", "300"})
+    public int species;     // Number of species of the alignment
+
+    @Param({"500"})
+    public int columns;     // Number of columns of the alignment
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.workload = PipelineBenchmark.newWorkload();
+        this.workload.setUp(this.species, this.columns);
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.workload.tearDown();
+        return;
+    }
+
+    @Benchmark
+    public int legacy() {
+        return this.workload.legacy();
+    }
+
+    @Benchmark
+    public int legacyMap() {
+        return this.workload.legacyMap();
+    }
+}
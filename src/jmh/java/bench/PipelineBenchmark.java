@@ -0,0 +1,162 @@
+/*
+ * PipelineBenchmark.java
+ *
+ * JMH benchmarks of every phase of the tree pipeline
+ *
+ * Each phase (see PipelineWorkload) is one @Benchmark method, run on a
+ * synthetic alignment of every combination of the species and columns
+ * parameters.  The defaults are small enough for the whole class to run in
+ * a few minutes; larger inputs are given on the command line, e.g.
+ *
+ *   java -jar build/libs/phylogenetic-tree-generator-jmh.jar \
+ *        'PipelineBenchmark.(cluster|nj)' -p species=10000 -prof gc
+ *
+ * The times are the average per call.  With the gc profiler (always on
+ * under "gradle jmh") every result also has its allocation rate and bytes
+ * allocated per call (gc.alloc.rate.norm), over all threads.
+ *
+ * The matrix phase also takes the number of builder threads, which gives
+ * the scaling curve.  The legacy findMinTreeDistance loop is cubic, so it is
+ * in LegacyBenchmark, with its own smaller sizes.
+ *
+ */
+
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipelineBenchmark {
+    @Param({"100", "1000"})
+    public int species;     // Number of species of the alignment
+
+    @Param({"500"})
+    public int columns;     // Number of columns of the alignment
+
+    private Workload workload;
+
+    // MatrixThreads
+    // Number of threads of the distance matrix builder
+    @State(Scope.Benchmark)
+    public static class MatrixThreads {
+        @Param({"1", "2", "4"})
+        public int threads;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.workload = newWorkload();
+        this.workload.setUp(this.species, this.columns);
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.workload.tearDown();
+        return;
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        return this.workload.load();
+    }
+
+    @Benchmark
+    public double distance() {
+        return this.workload.distance();
+    }
+
+    @Benchmark
+    public int patterns() {
+        return this.workload.patterns();
+    }
+
+    @Benchmark
+    public int matrix(MatrixThreads matrixThreads) {
+        return this.workload.matrix(matrixThreads.threads);
+    }
+
+    @Benchmark
+    public int cluster() {
+        return this.workload.cluster();
+    }
+
+    @Benchmark
+    public int mapped() {
+        return this.workload.mapped();
+    }
+
+    @Benchmark
+    public int nj() {
+        return this.workload.nj();
+    }
+
+    @Benchmark
+    public int compact() {
+        return this.workload.compact();
+    }
+
+    @Benchmark
+    public int upgmaCompact() {
+        return this.workload.upgmaCompact();
+    }
+
+    @Benchmark
+    public int build() {
+        return this.workload.build();
+    }
+
+    @Benchmark
+    public int cached() {
+        return this.workload.cached();
+    }
+
+    @Benchmark
+    public int newick() {
+        return this.workload.newick();
+    }
+
+    @Benchmark
+    public double query() {
+        return this.workload.query();
+    }
+
+    @Benchmark
+    public int nearest() {
+        return this.workload.nearest();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        return this.workload.write();
+    }
+
+    // STATIC
+
+    // newWorkload
+    // Pre-conditions:
+    //    - PipelineWorkload is on the class path
+    // Post-conditions:
+    //    - Returns a new PipelineWorkload, loaded by name since it is in the
+    //      default package
+    static Workload newWorkload() {
+        try {
+            return (Workload) Class.forName("PipelineWorkload").getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load PipelineWorkload", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Workload.java
+ *
+ * The phases of the tree pipeline, as run by the JMH benchmarks
+ *
+ * JMH does not accept benchmark classes in the default package, and the
+ * application classes all live there, where a class in a named package
+ * cannot refer to them.  So the benchmarks only see this interface, and
+ * the phases are written against the application in PipelineWorkload
+ * (default package, jmh source set), which is loaded by name.
+ *
+ * Every phase runs once per call and returns a value derived from its
+ * result, which the benchmark hands back to JMH so the work is not
+ * optimized away.
+ *
+ */
+
+package bench;
+
+import java.io.IOException;
+
+public interface Workload {
+
+    // setUp
+    // Pre-conditions:
+    //    - numSpecies >= 2 and numColumns >= 1
+    // Post-conditions:
+    //    - A synthetic alignment of numSpecies species of numColumns residues
+    //      has been written to a temporary file and loaded, and its distance
+    //      matrix, tree, tree cache and query pairs have been prepared
+    //    - Throws IOException if the temporary files cannot be written
+    void setUp(int numSpecies, int numColumns) throws IOException;
+
+    // tearDown
+    // Pre-conditions:
+    //    - setUp has been called
+    // Post-conditions:
+    //    - The temporary files have been deleted
+    void tearDown();
+
+    // The phases (see PipelineWorkload)
+    int load() throws IOException;
+    double distance();
+    int patterns();
+    int matrix(int threads);
+    int cluster();
+    int mapped();
+    int nj();
+    int compact();
+    int upgmaCompact();
+    int legacy();
+    int legacyMap();
+    int build();
+    int cached();
+    int newick();
+    double query();
+    int nearest();
+    long write() throws IOException;
+}